@@ -0,0 +1,170 @@
+package scheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scheduler.bench.jmh.BenchmarkDatabase;
+import scheduler.db.Repositories;
+import scheduler.model.CaregiverAvailabilityIndex;
+import scheduler.model.ReservationEngine;
+import scheduler.model.UsernameIndex;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The commands a logged-in user runs, measured end to end through Scheduler.dispatch with their
+ * output thrown away. Lives in this package because dispatch is package-private.
+ *
+ * Each benchmark thread has its own session, logged in as the same user, or as nobody for
+ * create_patient.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmark {
+
+    // outside the generated year, so the slots reserve and cancel use never mix with the data
+    private static final Date RESERVE_DAY = Date.valueOf("2040-01-01");
+    private static final Date CANCEL_DAY = Date.valueOf("2040-01-02");
+
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"h2", "memory"})
+        public String store;
+
+        @Param({"1000", "100000", "1000000"})
+        public int appointments;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            BenchmarkDatabase.create(store, appointments);
+            insertSlot(CANCEL_DAY);
+            UsernameIndex.warmUp();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchmarkDatabase.drop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PatientSession {
+        private final Session session = quietSession();
+
+        @Setup(Level.Trial)
+        public void setUp(Database database) {
+            Scheduler.dispatch(session, new String[]{"login_patient", BenchmarkDatabase.patient(0), BenchmarkDatabase.PASSWORD});
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CaregiverSession {
+        private final Session session = quietSession();
+
+        @Setup(Level.Trial)
+        public void setUp(Database database) {
+            Scheduler.dispatch(session, new String[]{"login_caregiver", BenchmarkDatabase.caregiver(0), BenchmarkDatabase.PASSWORD});
+        }
+    }
+
+    // nobody logged in, for create_patient
+    @State(Scope.Thread)
+    public static class AnonymousSession {
+        private final Session session = quietSession();
+        // a name no other thread or run uses, so every create is a new user as at a mass registration
+        private final String prefix = "new-" + UUID.randomUUID().toString().substring(0, 8) + "-";
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp(Database database) {
+            // nothing to log in, but the database has to exist first
+        }
+    }
+
+    private static Session quietSession() {
+        PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream());
+        return new Session(nowhere, System.err);
+    }
+
+    // a slot for reserve to take
+    @State(Scope.Thread)
+    public static class OpenSlot {
+        @Setup(Level.Invocation)
+        public void setUp(Database database) throws SQLException {
+            insertSlot(RESERVE_DAY);
+        }
+    }
+
+    // an appointment for cancel to remove, booked on the slot the previous cancel gave back
+    @State(Scope.Thread)
+    public static class BookedAppointment {
+        private final ReservationEngine engine = new ReservationEngine();
+        private String id;
+
+        @Setup(Level.Invocation)
+        public void setUp(Database database) throws SQLException {
+            ReservationEngine.Reservation reservation =
+                    engine.reserve(CANCEL_DAY, BenchmarkDatabase.vaccine(0), BenchmarkDatabase.patient(0));
+            if (reservation.getStatus() != ReservationEngine.Status.RESERVED) {
+                throw new IllegalStateException("Could not book an appointment to cancel: " + reservation.getStatus());
+            }
+            id = String.valueOf(reservation.getAppointmentId());
+        }
+    }
+
+    @Benchmark
+    public boolean reserve(PatientSession patient, OpenSlot slot) {
+        return Scheduler.dispatch(patient.session, new String[]{"reserve", RESERVE_DAY.toString(), BenchmarkDatabase.vaccine(0)});
+    }
+
+    @Benchmark
+    public boolean createPatient(AnonymousSession anonymous) {
+        String username = anonymous.prefix + anonymous.next++;
+        return Scheduler.dispatch(anonymous.session, new String[]{"create_patient", username, BenchmarkDatabase.PASSWORD});
+    }
+
+    @Benchmark
+    public boolean cancel(PatientSession patient, BookedAppointment appointment) {
+        return Scheduler.dispatch(patient.session, new String[]{"cancel", appointment.id});
+    }
+
+    @Benchmark
+    public boolean searchCaregiverSchedule(PatientSession patient) {
+        Date d = BenchmarkDatabase.day(ThreadLocalRandom.current().nextInt(BenchmarkDatabase.DAYS));
+        return Scheduler.dispatch(patient.session, new String[]{"search_caregiver_schedule", d.toString()});
+    }
+
+    @Benchmark
+    public boolean showAppointmentsAsPatient(PatientSession patient) {
+        return Scheduler.dispatch(patient.session, new String[]{"show_appointments"});
+    }
+
+    @Benchmark
+    public boolean showAppointmentsAsCaregiver(CaregiverSession caregiver) {
+        return Scheduler.dispatch(caregiver.session, new String[]{"show_appointments"});
+    }
+
+    private static void insertSlot(Date d) throws SQLException {
+        Repositories.get().addAvailability(d, BenchmarkDatabase.caregiver(0), 1);
+        CaregiverAvailabilityIndex.getInstance().added(d, BenchmarkDatabase.caregiver(0), 1);
+    }
+}
@@ -0,0 +1,92 @@
+package scheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scheduler.bench.jmh.BenchmarkDatabase;
+import scheduler.util.PasswordHasher;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * import_users of a file of new users, with the passwords hashed on 1 to 8 threads, to show how
+ * an import scales with cores. At 10 iterations, the default, hashing is cheap and the inserts
+ * dominate; at 10000 most of the time is hashing. Lives in this package because UserImporter is
+ * package-private.
+ *
+ * Each invocation imports USERS users under names no other invocation uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImportBenchmark {
+
+    private static final int USERS = 1000;
+
+    @Param({"h2", "memory"})
+    public String store;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"10", "10000"})
+    public int iterations;
+
+    private UserImporter importer;
+    private final PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream());
+    private Path file;
+    private int run = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkDatabase.create(store, 1000);
+        importer = new UserImporter(threads, USERS,
+                new PasswordHasher(new PasswordHasher.Params("PBKDF2WithHmacSHA1", iterations, 128)));
+        file = Files.createTempFile("import", ".csv");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        BenchmarkDatabase.drop();
+    }
+
+    @Setup(Level.Invocation)
+    public void writeFile() throws IOException {
+        run++;
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.write("role,username,password\n");
+            for (int i = 0; i < USERS; i++) {
+                writer.write("patient,import" + run + "-" + i + "," + BenchmarkDatabase.PASSWORD + "\n");
+            }
+        }
+    }
+
+    @Benchmark
+    public int importUsers() throws Exception {
+        UserImporter.Result result = importer.run(file, nowhere);
+        if (result.getImported() != USERS) {
+            throw new IllegalStateException("Imported " + result.getImported() + " of " + USERS);
+        }
+        return result.getImported();
+    }
+}
@@ -0,0 +1,66 @@
+package scheduler.bench;
+
+import scheduler.util.PasswordHasher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures password hashes per second per core for a range of PasswordHasher settings, to help
+ * pick HashAlgorithm/HashIterations/HashKeyLength. Needs no database.
+ *
+ * Usage: HashBenchmark [seconds per setting] [algorithm:iterations:keyLength ...]
+ */
+public class HashBenchmark {
+
+    private static final String[] DEFAULT_SETTINGS = {
+            PasswordHasher.LEGACY.encode(),
+            "PBKDF2WithHmacSHA256:10000:256",
+            "PBKDF2WithHmacSHA256:100000:256",
+            "PBKDF2WithHmacSHA512:210000:512"
+    };
+
+    public static void main(String[] args) throws InterruptedException {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        List<PasswordHasher.Params> settings = new ArrayList<>();
+        for (String setting : args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : DEFAULT_SETTINGS) {
+            settings.add(PasswordHasher.Params.decode(setting));
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("setting                              1 thread/s   " + cores + " threads/s   per core/s");
+        for (PasswordHasher.Params params : settings) {
+            // untimed run so the JIT has compiled the hash loop before we measure it
+            measure(params, 1, Math.min(seconds, 1));
+            double single = measure(params, 1, seconds);
+            double all = measure(params, cores, seconds);
+            System.out.printf("%-35s %12.1f %12.1f %12.1f%n", params.encode(), single, all, all / cores);
+        }
+    }
+
+    private static double measure(PasswordHasher.Params params, int threads, double seconds)
+            throws InterruptedException {
+        PasswordHasher hasher = new PasswordHasher(params);
+        AtomicLong hashes = new AtomicLong();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                byte[] salt = hasher.generateSalt();
+                long count = 0;
+                while (System.nanoTime() < deadline) {
+                    hasher.hash("correct horse battery staple", salt);
+                    count++;
+                }
+                hashes.addAndGet(count);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return hashes.get() / ((System.nanoTime() - start) / 1e9);
+    }
+}
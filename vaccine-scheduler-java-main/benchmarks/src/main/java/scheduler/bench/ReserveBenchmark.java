@@ -0,0 +1,156 @@
+package scheduler.bench;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.JdbcSchedulerRepository;
+import scheduler.db.RetryPolicy;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.ReservationEngine;
+import scheduler.model.Vaccine;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures reservation throughput with 1, 8 and 64 concurrent reservers all booking the same
+ * date, which is the worst case for slot contention.
+ *
+ * Usage: ReserveBenchmark [slots per run]
+ *
+ * Runs against whatever database ConnectionManager is configured for and cleans up the rows it
+ * creates. Set PoolMaxSize to at least 64 so the pool does not become the bottleneck.
+ */
+public class ReserveBenchmark {
+
+    private static final String PREFIX = "bench_";
+    private static final String PATIENT = PREFIX + "patient";
+    private static final String VACCINE = PREFIX + "vaccine";
+    private static final int[] CONCURRENCY = {1, 8, 64};
+
+    public static void main(String[] args) throws Exception {
+        int slots = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        RetryPolicy retryPolicy = new RetryPolicy(10, 5);
+        ReservationEngine engine = new ReservationEngine(new JdbcSchedulerRepository(retryPolicy));
+
+        setUp(slots);
+        try {
+            // one untimed run to warm up the JIT, the pool and the server's plan cache
+            run(engine, 8, slots, Date.valueOf("2099-01-01"));
+            System.out.println("reservers  reserved  failed  seconds  reservations/s");
+            for (int i = 0; i < CONCURRENCY.length; i++) {
+                Date d = Date.valueOf("2099-01-0" + (i + 2));
+                long start = System.nanoTime();
+                int[] outcome = run(engine, CONCURRENCY[i], slots, d);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%9d  %8d  %6d  %7.2f  %14.1f%n",
+                        CONCURRENCY[i], outcome[0], outcome[1], seconds, outcome[0] / seconds);
+            }
+            System.out.println("deadlock retries: " + retryPolicy.getRetryCount()
+                    + ", gave up: " + retryPolicy.getExhaustedCount());
+            System.out.println(ConnectionManager.stats());
+        } finally {
+            tearDown();
+            ConnectionManager.shutdown();
+        }
+    }
+
+    // returns {reserved, failed}
+    private static int[] run(ReservationEngine engine, int threads, int slots, Date d) throws Exception {
+        uploadSlots(slots, d);
+        AtomicInteger reserved = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    while (true) {
+                        ReservationEngine.Reservation r = engine.reserve(d, VACCINE, PATIENT);
+                        if (r.getStatus() != ReservationEngine.Status.RESERVED) {
+                            return;
+                        }
+                        reserved.incrementAndGet();
+                    }
+                } catch (SQLException e) {
+                    failed.incrementAndGet();
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        ready.await();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return new int[]{reserved.get(), failed.get()};
+    }
+
+    private static void setUp(int slots) throws SQLException {
+        tearDown();
+        byte[] salt = Util.generateSalt();
+        byte[] hash = Util.generateHash("bench", salt);
+        Patient.saveAllToDB(Collections.singletonList(new Patient.PatientBuilder(PATIENT, salt, hash).build()));
+        List<Caregiver> caregivers = new ArrayList<>();
+        for (int i = 0; i < slots; i++) {
+            caregivers.add(new Caregiver.CaregiverBuilder(caregiverName(i), salt, hash).build());
+        }
+        Caregiver.saveAllToDB(caregivers);
+        new Vaccine.VaccineBuilder(VACCINE, Integer.MAX_VALUE).build().saveToDB();
+    }
+
+    private static void uploadSlots(int slots, Date d) throws SQLException {
+        try (Connection con = ConnectionManager.getPool().borrow();
+             PreparedStatement statement =
+                     con.prepareStatement("INSERT INTO Availabilities (Time, Username, Capacity) VALUES (?, ?, ?)")) {
+            con.setAutoCommit(false);
+            // one slot per caregiver, so every reservation of the run contends for its own row
+            for (int i = 0; i < slots; i++) {
+                statement.setDate(1, d);
+                statement.setString(2, caregiverName(i));
+                statement.setInt(3, 1);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            con.commit();
+        }
+    }
+
+    private static void tearDown() throws SQLException {
+        String[] cleanup = {
+                "DELETE FROM Appointment WHERE pUsername LIKE 'bench\\_%' ESCAPE '\\'",
+                "DELETE FROM Availabilities WHERE Username LIKE 'bench\\_%' ESCAPE '\\'",
+                "DELETE FROM Caregivers WHERE Username LIKE 'bench\\_%' ESCAPE '\\'",
+                "DELETE FROM Patients WHERE pUsername LIKE 'bench\\_%' ESCAPE '\\'",
+                // every reservation appended to the dose ledger, which references the vaccine
+                "DELETE FROM DoseSnapshots WHERE Name LIKE 'bench\\_%' ESCAPE '\\'",
+                "DELETE FROM DoseLedger WHERE Name LIKE 'bench\\_%' ESCAPE '\\'",
+                "DELETE FROM Vaccines WHERE Name LIKE 'bench\\_%' ESCAPE '\\'"
+        };
+        try (Connection con = ConnectionManager.getPool().borrow()) {
+            for (String sql : cleanup) {
+                try (PreparedStatement statement = con.prepareStatement(sql)) {
+                    statement.executeUpdate();
+                }
+            }
+        }
+    }
+
+    private static String caregiverName(int i) {
+        return PREFIX + "caregiver_" + i;
+    }
+}
@@ -0,0 +1,175 @@
+package scheduler.bench.jmh;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.InMemorySchedulerRepository;
+import scheduler.db.JdbcSchedulerRepository;
+import scheduler.db.Repositories;
+import scheduler.db.SchedulerRepository;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sets up the store the benchmarks and tests run against and, for the benchmarks, fills it with
+ * generated data. The store is
+ * either "h2", an in-memory H2 database in SQL Server mode created from create.sql and reached
+ * through JdbcSchedulerRepository, or "memory", the InMemorySchedulerRepository.
+ *
+ * The data is sized by the number of appointments: 100 caregivers available on every day of
+ * {@link #YEAR}, one patient per 100 appointments (at least 10), and the appointments spread evenly
+ * over days, caregivers, patients and vaccines. Every user's password is {@link #PASSWORD}.
+ */
+public final class BenchmarkDatabase {
+
+    public static final String PASSWORD = "password";
+    public static final int CAREGIVERS = 100;
+    public static final int VACCINES = 5;
+    public static final int DAYS = 365;
+    // the year the generated availabilities and appointments fall in
+    public static final LocalDate YEAR = LocalDate.of(2030, 1, 1);
+
+    private static final int BATCH_SIZE = 1000;
+
+    private BenchmarkDatabase() {
+    }
+
+    public static String patient(int i) {
+        return "patient" + i;
+    }
+
+    public static String caregiver(int i) {
+        return "caregiver" + i;
+    }
+
+    public static String vaccine(int i) {
+        return "vaccine" + i;
+    }
+
+    public static Date day(int i) {
+        return Date.valueOf(YEAR.plusDays(i));
+    }
+
+    public static int patients(int appointments) {
+        return Math.max(10, appointments / 100);
+    }
+
+    public static void create(String store, int appointments) throws SQLException, IOException {
+        populate(open(store), appointments);
+    }
+
+    /**
+     * Sets up the store with nothing in it and makes it the process-wide repository, e.g. for a
+     * test that adds its own rows. drop() takes it down again.
+     */
+    public static SchedulerRepository open(String store) throws SQLException, IOException {
+        SchedulerRepository repository = Repositories.create(store.equals("h2") ? "jdbc" : store);
+        if (repository instanceof JdbcSchedulerRepository) {
+            // IGNORECASE matches SQL Server's default case-insensitive collation
+            ConnectionManager.configure("jdbc:h2:mem:scheduler;MODE=MSSQLServer;DATABASE_TO_UPPER=FALSE;"
+                    + "CASE_INSENSITIVE_IDENTIFIERS=TRUE;IGNORECASE=TRUE;DB_CLOSE_DELAY=-1", "sa", "");
+            try (Connection con = ConnectionManager.getPool().borrow();
+                 Statement statement = con.createStatement()) {
+                for (String sql : schema()) {
+                    statement.execute(sql);
+                }
+            }
+        }
+        Repositories.configure(repository);
+        return repository;
+    }
+
+    public static void drop() {
+        // the configured repository is wrapped for metrics, but only the jdbc store opens a pool
+        if (ConnectionManager.statsIfOpen() != null) {
+            try (Connection con = ConnectionManager.getPool().borrow();
+                 Statement statement = con.createStatement()) {
+                statement.execute("DROP ALL OBJECTS");
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            ConnectionManager.shutdown();
+        }
+        Repositories.configure(null);
+    }
+
+    private static String[] schema() throws IOException {
+        try (InputStream in = BenchmarkDatabase.class.getResourceAsStream("/create.sql")) {
+            if (in == null) {
+                throw new IOException("create.sql is not on the classpath");
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                if (!line.trim().startsWith("--")) {
+                    sb.append(line).append('\n');
+                }
+            }
+            return sb.toString().trim().split(";\\s*");
+        }
+    }
+
+    private static void populate(SchedulerRepository repository, int appointments) throws SQLException {
+        // one hash for everybody, hashing a million passwords would dwarf the rest of the setup
+        byte[] salt = Util.generateSalt();
+        byte[] hash = Util.generateHash(PASSWORD, salt);
+        int patients = patients(appointments);
+
+        List<Caregiver> caregivers = new ArrayList<>();
+        for (int i = 0; i < CAREGIVERS; i++) {
+            caregivers.add(new Caregiver.CaregiverBuilder(caregiver(i), salt, hash).build());
+        }
+        repository.saveCaregivers(caregivers);
+        List<Patient> patientList = new ArrayList<>();
+        for (int i = 0; i < patients; i++) {
+            patientList.add(new Patient.PatientBuilder(patient(i), salt, hash).build());
+        }
+        repository.savePatients(patientList);
+        for (int i = 0; i < VACCINES; i++) {
+            repository.addVaccine(vaccine(i), Integer.MAX_VALUE / 2);
+        }
+        List<Date> days = new ArrayList<>();
+        for (int d = 0; d < DAYS; d++) {
+            days.add(day(d));
+        }
+        for (int c = 0; c < CAREGIVERS; c++) {
+            repository.addAvailabilities(caregiver(c), days, 1, SchedulerRepository.Waiting.NONE);
+        }
+
+        // appointments are only ever made by reserve, which would also use up the availabilities
+        if (repository instanceof InMemorySchedulerRepository) {
+            InMemorySchedulerRepository memory = (InMemorySchedulerRepository) repository;
+            for (int i = 0; i < appointments; i++) {
+                memory.addAppointment(day(i % DAYS), caregiver(i % CAREGIVERS), patient(i % patients), vaccine(i % VACCINES));
+            }
+            return;
+        }
+        try (Connection con = ConnectionManager.getPool().borrow();
+             PreparedStatement statement = con.prepareStatement(
+                     "INSERT INTO Appointment (Time, Username, pUsername, Name) VALUES (?, ?, ?, ?)")) {
+            con.setAutoCommit(false);
+            for (int i = 0; i < appointments; i++) {
+                statement.setDate(1, day(i % DAYS));
+                statement.setString(2, caregiver(i % CAREGIVERS));
+                statement.setString(3, patient(i % patients));
+                statement.setString(4, vaccine(i % VACCINES));
+                statement.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                }
+            }
+            statement.executeBatch();
+            con.commit();
+        }
+    }
+}
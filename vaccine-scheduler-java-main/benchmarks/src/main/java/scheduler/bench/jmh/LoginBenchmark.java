@@ -0,0 +1,63 @@
+package scheduler.bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A login is one lookup by username plus a password hash.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginBenchmark {
+
+    @Param({"h2", "memory"})
+    public String store;
+
+    @Param({"1000", "100000", "1000000"})
+    public int appointments;
+
+    private int patients;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkDatabase.create(store, appointments);
+        patients = BenchmarkDatabase.patients(appointments);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDatabase.drop();
+    }
+
+    @Benchmark
+    public Patient patientLogin() throws Exception {
+        String username = BenchmarkDatabase.patient(ThreadLocalRandom.current().nextInt(patients));
+        return new Patient.PatientGetter(username, BenchmarkDatabase.PASSWORD).get();
+    }
+
+    @Benchmark
+    public Caregiver caregiverLogin() throws Exception {
+        String username = BenchmarkDatabase.caregiver(ThreadLocalRandom.current().nextInt(BenchmarkDatabase.CAREGIVERS));
+        return new Caregiver.CaregiverGetter(username, BenchmarkDatabase.PASSWORD).get();
+    }
+}
@@ -0,0 +1,42 @@
+package scheduler.bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scheduler.util.Util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Password hashing and trimming the zero padding a fixed-width column adds to a hash. Needs no
+ * database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UtilBenchmark {
+
+    private final byte[] salt = Util.generateSalt();
+    // a 16 byte hash as it comes back from a BINARY(64) column
+    private final byte[] padded = Arrays.copyOf(Util.generateHash(BenchmarkDatabase.PASSWORD, salt), 64);
+
+    @Benchmark
+    public byte[] generateHash() {
+        return Util.generateHash(BenchmarkDatabase.PASSWORD, salt);
+    }
+
+    @Benchmark
+    public byte[] trim() {
+        return Util.trim(padded);
+    }
+}
@@ -0,0 +1,123 @@
+package scheduler;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import scheduler.bench.jmh.BenchmarkDatabase;
+import scheduler.model.VaccineInventoryCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs scripts against the H2 store, where a batched insert that breaks a column limit fails the
+ * way it would on SQL Server, or the memory store where the database does not matter.
+ */
+class BatchRunnerTest {
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void tearDown() {
+        BenchmarkDatabase.drop();
+    }
+
+    @Test
+    void writesOneJsonObjectPerCommand() throws Exception {
+        List<String> results = run("h2",
+                "# comments and blank lines are skipped but counted",
+                "",
+                "create_patient amy secret",
+                "create_caregiver carl secret",
+                "login_caregiver carl secret",
+                "add_doses Pfizer 2",
+                "upload_availability 2030-03-01");
+        assertEquals(5, results.size());
+        assertEquals("{\"line\":3,\"command\":\"create_patient\",\"status\":\"ok\",\"output\":\"Created user amy\"}",
+                results.get(0));
+        assertEquals("{\"line\":4,\"command\":\"create_caregiver\",\"status\":\"ok\",\"output\":\"Created user carl\"}",
+                results.get(1));
+        assertTrue(results.get(2).startsWith("{\"line\":5,\"command\":\"login_caregiver\",\"status\":\"ok\""),
+                results.get(2));
+        assertTrue(results.get(3).startsWith("{\"line\":6,\"command\":\"add_doses\",\"status\":\"ok\""), results.get(3));
+        assertTrue(results.get(4).startsWith("{\"line\":7,\"command\":\"upload_availability\",\"status\":\"ok\""),
+                results.get(4));
+    }
+
+    @Test
+    void aFailedGroupRunsOneCommandAtATime() throws Exception {
+        String tooLong = "x".repeat(300);
+        List<String> results = run("h2",
+                "create_caregiver carl secret",
+                "create_caregiver " + tooLong + " secret",
+                "create_caregiver cora secret");
+        assertEquals(3, results.size());
+        // the batch broke on the long name, the others were created on their own
+        assertEquals("{\"line\":1,\"command\":\"create_caregiver\",\"status\":\"ok\",\"output\":\"Created user carl\"}",
+                results.get(0));
+        assertEquals("{\"line\":2,\"command\":\"create_caregiver\",\"status\":\"error\",\"output\":\"Failed to create user.\"}",
+                results.get(1));
+        assertEquals("{\"line\":3,\"command\":\"create_caregiver\",\"status\":\"ok\",\"output\":\"Created user cora\"}",
+                results.get(2));
+    }
+
+    @Test
+    void groupedDosesReportWhoWasBookedOnTheirVaccine() throws Exception {
+        List<String> results = run("memory",
+                "create_patient amy secret",
+                "create_caregiver carl secret",
+                "login_caregiver carl secret",
+                "add_doses Pfizer 0",
+                "upload_availability 2030-03-01",
+                "logout",
+                "login_patient amy secret",
+                "waitlist 2030-03-01 Pfizer",
+                "logout",
+                "login_caregiver carl secret",
+                "add_doses Pfizer 1",
+                "add_doses Moderna 1");
+        assertEquals(12, results.size());
+        assertEquals("{\"line\":8,\"command\":\"waitlist\",\"status\":\"ok\","
+                + "\"output\":\"Added to the waitlist for 2030-03-01 Pfizer, position: 1\"}", results.get(7));
+        // the last two run as one batch, the booking is reported by the command that added its vaccine
+        assertEquals("{\"line\":11,\"command\":\"add_doses\",\"status\":\"ok\",\"output\":\"Doses updated!\\n"
+                + "Promoted from the waitlist: Appointment_ID: 1 Patient username: amy Caregiver username: carl\"}",
+                results.get(10));
+        assertEquals("{\"line\":12,\"command\":\"add_doses\",\"status\":\"ok\",\"output\":\"Doses updated!\"}",
+                results.get(11));
+    }
+
+    @Test
+    void quotesLikeJson() {
+        assertEquals("\"a\\\"b\\\\c\\nd\\te\\u0001\"", BatchRunner.quote("a\"b\\c\nd\te\u0001"));
+        assertEquals("{\"line\":1,\"command\":\"x\",\"status\":\"ok\",\"output\":\"\"}",
+                BatchRunner.result(1, "x", "ok", ""));
+    }
+
+    private List<String> run(String store, String... lines) throws IOException, SQLException {
+        BenchmarkDatabase.open(store);
+        VaccineInventoryCache.getInstance().reconcile();
+        Path script = dir.resolve("script.txt");
+        Files.write(script, Arrays.asList(lines), StandardCharsets.UTF_8);
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            BatchRunner.run(script.toString());
+        } finally {
+            System.setOut(out);
+        }
+        return Arrays.asList(captured.toString(StandardCharsets.UTF_8).split("\\R"));
+    }
+}
@@ -0,0 +1,103 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import scheduler.db.ConnectionManager.Route;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs with ReadStalenessMs unset, so a user's reads stay on the primary for 5 seconds after
+ * they write. Each test uses its own usernames, the routing remembers writers process-wide.
+ */
+class ReadRoutingTest {
+
+    private static final String PRIMARY = "jdbc:h2:mem:routing_primary;DB_CLOSE_DELAY=-1";
+    private static final String REPLICA = "jdbc:h2:mem:routing_replica;DB_CLOSE_DELAY=-1";
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        mark(PRIMARY, "primary");
+        mark(REPLICA, "replica");
+        ConnectionManager.configure(PRIMARY, "sa", "");
+        ConnectionManager.configureReads(REPLICA, "sa", "");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReadRouting.end();
+        ConnectionManager.shutdown();
+    }
+
+    @Test
+    void readsGoToTheReplicaUntilTheCommandWrites() throws SQLException {
+        ReadRouting.begin("alice");
+        assertEquals("replica", database(Route.READ));
+        assertEquals("primary", database(Route.PRIMARY));
+        assertEquals("primary", database(Route.WRITE));
+        assertEquals("primary", database(Route.READ));
+    }
+
+    @Test
+    void writersArePinnedToThePrimaryAcrossCommands() throws SQLException {
+        ReadRouting.begin("Bob");
+        database(Route.WRITE);
+        ReadRouting.end();
+
+        ReadRouting.begin("bob");
+        assertEquals("primary", database(Route.READ));
+        ReadRouting.end();
+
+        ReadRouting.begin("carol");
+        assertEquals("replica", database(Route.READ));
+        ReadRouting.end();
+
+        // nobody logged in has nothing to be pinned by
+        ReadRouting.begin(null);
+        assertEquals("replica", database(Route.READ));
+    }
+
+    @Test
+    void readsOutsideACommandGoToThePrimary() throws SQLException {
+        assertEquals("primary", database(Route.READ));
+    }
+
+    @Test
+    void unreachableReplicaFallsBackToThePrimary() throws SQLException {
+        ConnectionManager.configureReads("jdbc:h2:tcp://localhost:1/unreachable", "sa", "");
+        long fallbacks = ReadRouting.getFallbacks();
+        long primaryReads = ReadRouting.getPrimaryReads();
+        ReadRouting.begin("dave");
+        assertEquals("primary", database(Route.READ));
+        assertEquals(fallbacks + 1, ReadRouting.getFallbacks());
+        assertEquals(primaryReads + 1, ReadRouting.getPrimaryReads());
+    }
+
+    // which database the route was served by
+    private static String database(Route route) throws SQLException {
+        ConnectionManager cm = new ConnectionManager(route);
+        try (Statement statement = cm.createConnection().createStatement();
+             ResultSet rs = statement.executeQuery("SELECT Name FROM Marker")) {
+            rs.next();
+            return rs.getString(1);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void mark(String url, String name) throws SQLException {
+        try (Connection con = DriverManager.getConnection(url, "sa", "");
+             Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS Marker (Name VARCHAR(10))");
+            statement.execute("DELETE FROM Marker");
+            statement.execute("INSERT INTO Marker VALUES ('" + name + "')");
+        }
+    }
+}
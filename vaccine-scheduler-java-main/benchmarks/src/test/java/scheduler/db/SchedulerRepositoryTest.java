@@ -0,0 +1,239 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import scheduler.bench.jmh.BenchmarkDatabase;
+import scheduler.model.Appointment;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.ReservationEngine.Reservation;
+import scheduler.model.ReservationEngine.Status;
+import scheduler.model.VaccineInventoryCache;
+import scheduler.model.Waitlist;
+import scheduler.model.WaitlistEntry;
+import scheduler.util.Util;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs every test against both stores, "h2" through JdbcSchedulerRepository and "memory", which
+ * must behave the same.
+ */
+class SchedulerRepositoryTest {
+
+    private static final Date DAY = Date.valueOf("2030-03-01");
+    private static final Date OTHER_DAY = Date.valueOf("2030-03-02");
+    private static final String VACCINE = "Pfizer";
+
+    private SchedulerRepository repository;
+
+    private void open(String store, int doses) throws SQLException, IOException {
+        repository = BenchmarkDatabase.open(store);
+        byte[] salt = Util.generateSalt();
+        byte[] hash = Util.generateHash(BenchmarkDatabase.PASSWORD, salt);
+        List<Patient> patients = new ArrayList<>();
+        for (String username : Arrays.asList("zed", "amy", "kim")) {
+            patients.add(new Patient.PatientBuilder(username, salt, hash).build());
+        }
+        repository.savePatients(patients);
+        repository.saveCaregivers(Arrays.asList(new Caregiver.CaregiverBuilder("carl", salt, hash).build(),
+                new Caregiver.CaregiverBuilder("cora", salt, hash).build()));
+        repository.addVaccine(VACCINE, doses);
+        // the cache outlives the store, the waitlist tells it about its bookings
+        VaccineInventoryCache.getInstance().reconcile();
+    }
+
+    @AfterEach
+    void tearDown() {
+        BenchmarkDatabase.drop();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory"})
+    void reservingCountsTheCapacityDown(String store) throws Exception {
+        open(store, 10);
+        repository.addAvailability(DAY, "carl", 2);
+        Reservation first = repository.reserve(DAY, VACCINE, "zed");
+        assertEquals(Status.RESERVED, first.getStatus());
+        assertEquals(Map.of("carl", 1), repository.findAvailableCaregivers(DAY));
+        assertEquals(Status.RESERVED, repository.reserve(DAY, VACCINE, "amy").getStatus());
+
+        // the last slot taken deletes the row
+        assertTrue(repository.findAvailableCaregivers(DAY).isEmpty());
+        assertEquals(0, availabilityRows());
+        assertEquals(Status.NO_CAREGIVER, repository.reserve(DAY, VACCINE, "kim").getStatus());
+        assertEquals(8, repository.findDoses(VACCINE));
+
+        // and a cancel creates it again
+        assertEquals(1, repository.cancelAppointments(List.of(first.getAppointmentId()), "zed", false,
+                SchedulerRepository.Waiting.NONE).size());
+        assertEquals(Map.of("carl", 1), repository.findAvailableCaregivers(DAY));
+        assertEquals(1, availabilityRows());
+        assertEquals(9, repository.findDoses(VACCINE));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory"})
+    void cancelReturnsEverySlotAndDose(String store) throws Exception {
+        open(store, 10);
+        repository.addAvailability(DAY, "carl", 3);
+        repository.addAvailability(OTHER_DAY, "carl", 1);
+        int zedFirst = repository.reserve(DAY, VACCINE, "zed").getAppointmentId();
+        int zedSecond = repository.reserve(OTHER_DAY, VACCINE, "zed").getAppointmentId();
+        int amys = repository.reserve(DAY, VACCINE, "amy").getAppointmentId();
+        assertEquals(7, repository.findDoses(VACCINE));
+
+        // another patient's appointment and an unknown ID are left alone
+        List<Appointment> cancelled = repository.cancelAppointments(List.of(zedFirst, amys, zedSecond, 9999),
+                "zed", false, SchedulerRepository.Waiting.NONE);
+        assertEquals(List.of(zedFirst, zedSecond), ids(cancelled));
+        assertEquals(Map.of("carl", 2), repository.findAvailableCaregivers(DAY));
+        assertEquals(Map.of("carl", 1), repository.findAvailableCaregivers(OTHER_DAY));
+        assertEquals(9, repository.findDoses(VACCINE));
+        assertNull(repository.findAppointment(zedFirst));
+        assertNotNull(repository.findAppointment(amys));
+
+        // the caregiver may cancel it instead
+        assertEquals(List.of(amys), ids(repository.cancelAppointments(List.of(amys), "carl", true,
+                SchedulerRepository.Waiting.NONE)));
+        assertEquals(Map.of("carl", 3), repository.findAvailableCaregivers(DAY));
+        assertEquals(10, repository.findDoses(VACCINE));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory"})
+    void cancellingADayFreesTheDosesButNotTheSlots(String store) throws Exception {
+        open(store, 10);
+        repository.addAvailability(DAY, "carl", 3);
+        repository.addAvailability(DAY, "cora", 1);
+        repository.reserve(DAY, "carl", VACCINE, "zed");
+        repository.reserve(DAY, "carl", VACCINE, "amy");
+        int kims = repository.reserve(DAY, "cora", VACCINE, "kim").getAppointmentId();
+
+        List<Appointment> cancelled = repository.cancelCaregiverDay("carl", DAY, SchedulerRepository.Waiting.NONE);
+        assertEquals(2, cancelled.size());
+        assertEquals(Map.of(), repository.findAvailableCaregivers(DAY));
+        assertEquals(9, repository.findDoses(VACCINE));
+        assertNotNull(repository.findAppointment(kims));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory"})
+    void newSlotsBookTheWaitlistInTheOrderItJoined(String store) throws Exception {
+        open(store, 10);
+        Waitlist waitlist = Waitlist.getInstance();
+        waitlist.add(DAY, VACCINE, "zed");
+        waitlist.add(DAY, VACCINE, "amy");
+        waitlist.add(DAY, VACCINE, "kim");
+
+        Waitlist.Offer offer = waitlist.offer();
+        repository.addAvailabilities("carl", List.of(DAY), 2, offer);
+        List<String> booked = new ArrayList<>();
+        for (Waitlist.Promotion promotion : offer.committed()) {
+            assertEquals(Status.RESERVED, promotion.getReservation().getStatus());
+            booked.add(promotion.getEntry().getPatientUsername());
+        }
+        assertEquals(List.of("zed", "amy"), booked);
+        assertEquals(List.of("kim"), patients(repository.findWaitlist()));
+        assertEquals(Map.of(), repository.findAvailableCaregivers(DAY));
+        assertEquals(8, repository.findDoses(VACCINE));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory"})
+    void newDosesBookTheWaitlistInTheOrderItJoined(String store) throws Exception {
+        open(store, 0);
+        repository.addAvailability(DAY, "carl", 3);
+        Waitlist waitlist = Waitlist.getInstance();
+        waitlist.add(DAY, VACCINE, "kim");
+        waitlist.add(DAY, VACCINE, "amy");
+
+        Waitlist.Offer offer = waitlist.offer();
+        repository.addDoses(Map.of("pfizer", 1), offer);
+        List<Waitlist.Promotion> promoted = offer.committed();
+        assertEquals(1, promoted.size());
+        assertEquals("kim", promoted.get(0).getEntry().getPatientUsername());
+        assertEquals(List.of("amy"), patients(repository.findWaitlist()));
+        assertEquals(0, repository.findDoses(VACCINE));
+        assertEquals(Map.of("carl", 2), repository.findAvailableCaregivers(DAY));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory"})
+    void aFailedBookingIsUndoneOnItsOwn(String store) throws Exception {
+        open(store, 0);
+        repository.addAvailability(DAY, "carl", 1);
+        WaitlistEntry kim = repository.addToWaitlist(OTHER_DAY, VACCINE, "kim");
+        WaitlistEntry amy = repository.addToWaitlist(DAY, VACCINE, "amy");
+        // takes kim's entry off the waitlist, then cannot book a patient who does not exist
+        WaitlistEntry ghost = new WaitlistEntry(kim.getWaitlistId(), DAY, VACCINE, "ghost");
+        List<Map<WaitlistEntry, Reservation>> settled = new ArrayList<>();
+        SchedulerRepository.Waiting waiting = new SchedulerRepository.Waiting() {
+            @Override
+            public List<WaitlistEntry> find(Collection<Date> dates, Collection<String> vaccineNames) {
+                return List.of(ghost, amy);
+            }
+
+            @Override
+            public void settled(Map<WaitlistEntry, Reservation> outcomes) {
+                settled.add(outcomes);
+            }
+        };
+
+        repository.addDoses(Map.of(VACCINE, 1), waiting);
+        assertEquals(1, settled.size());
+        assertEquals(List.of(amy), new ArrayList<>(settled.get(0).keySet()));
+        assertEquals(Status.RESERVED, settled.get(0).get(amy).getStatus());
+        // kim's entry is back, amy got the slot and the dose added in the same transaction
+        assertEquals(List.of("kim"), patients(repository.findWaitlist()));
+        assertEquals(0, repository.findDoses(VACCINE));
+        assertEquals(Map.of(), repository.findAvailableCaregivers(DAY));
+        assertNotNull(repository.findAppointment(settled.get(0).get(amy).getAppointmentId()));
+    }
+
+    // the rows in Availabilities, or the caregivers with free slots that day for the memory store
+    private int availabilityRows() throws SQLException {
+        if (!(repository instanceof JdbcSchedulerRepository)) {
+            return repository.findAvailableCaregivers(DAY).size();
+        }
+        try (Connection con = ConnectionManager.getPool().borrow();
+             Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM Availabilities")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static List<Integer> ids(List<Appointment> appointments) {
+        List<Integer> ids = new ArrayList<>();
+        for (Appointment appointment : appointments) {
+            ids.add(appointment.getAppointmentId());
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    private static List<String> patients(List<WaitlistEntry> entries) {
+        List<String> patients = new ArrayList<>();
+        for (WaitlistEntry entry : entries) {
+            patients.add(entry.getPatientUsername());
+        }
+        return patients;
+    }
+}
@@ -0,0 +1,97 @@
+package scheduler.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    private static final long LAST_EXACT = 31;
+    private static final long TOP = 1L << 40;
+
+    @Test
+    void smallValuesHaveABucketEach() {
+        for (long nanos = 0; nanos <= LAST_EXACT; nanos++) {
+            assertEquals(nanos, LatencyHistogram.bucket(nanos));
+            assertEquals(nanos, LatencyHistogram.lowerBound((int) nanos));
+        }
+        // from 32 on each bucket is two wide, then four, ...
+        assertEquals(32, LatencyHistogram.bucket(32));
+        assertEquals(32, LatencyHistogram.bucket(33));
+        assertEquals(33, LatencyHistogram.bucket(34));
+    }
+
+    @Test
+    void bucketsAreOrderedAndTight() {
+        int previous = -1;
+        for (long nanos = 0; nanos < TOP; nanos = nanos < 1000 ? nanos + 1 : nanos + nanos / 7) {
+            int bucket = LatencyHistogram.bucket(nanos);
+            assertTrue(bucket >= previous, "bucket of " + nanos);
+            previous = bucket;
+            long low = LatencyHistogram.lowerBound(bucket);
+            long high = LatencyHistogram.lowerBound(bucket + 1);
+            assertTrue(low <= nanos && nanos < high, nanos + " in [" + low + ", " + high + ")");
+            // every bucket is at most a sixteenth of its lower bound wide
+            assertTrue((high - low) * 16 <= Math.max(low, 16), "width at " + nanos);
+        }
+    }
+
+    @Test
+    void everyBucketStartsWhereThePreviousEnds() {
+        int last = LatencyHistogram.bucket(TOP);
+        for (int bucket = 0; bucket < last; bucket++) {
+            long low = LatencyHistogram.lowerBound(bucket);
+            assertEquals(bucket, LatencyHistogram.bucket(low));
+            assertEquals(bucket, LatencyHistogram.bucket(LatencyHistogram.lowerBound(bucket + 1) - 1));
+        }
+    }
+
+    @Test
+    void hugeValuesShareTheLastBucket() {
+        int last = LatencyHistogram.bucket(TOP);
+        assertEquals(last, LatencyHistogram.bucket(TOP + 1));
+        assertEquals(last, LatencyHistogram.bucket(Long.MAX_VALUE));
+        assertTrue(LatencyHistogram.bucket(TOP - 1) < last);
+    }
+
+    @Test
+    void emptySnapshot() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getSumNanos());
+        assertEquals(0, snapshot.percentileNanos(0.5));
+        assertEquals(0, snapshot.percentileNanos(1));
+    }
+
+    @Test
+    void percentilesAreWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500_500_000L, snapshot.getSumNanos());
+        assertEquals(1_000_000, snapshot.getMaxNanos());
+        assertNear(500_000, snapshot.percentileNanos(0.5));
+        assertNear(990_000, snapshot.percentileNanos(0.99));
+        assertNear(1000, snapshot.percentileNanos(0));
+        // never above the largest value recorded
+        assertEquals(1_000_000, Math.max(snapshot.percentileNanos(1), 1_000_000));
+    }
+
+    @Test
+    void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(0, snapshot.getSumNanos());
+        assertEquals(0, snapshot.percentileNanos(1));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(Math.abs(actual - expected) * 16 <= expected, actual + " is not within 1/16 of " + expected);
+    }
+}
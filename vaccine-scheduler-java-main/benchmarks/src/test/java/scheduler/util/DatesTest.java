@@ -0,0 +1,92 @@
+package scheduler.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Date;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DatesTest {
+
+    @Test
+    void parsesAbsoluteDatesStrictly() {
+        assertEquals(LocalDate.of(2024, 2, 29), Dates.parseLocal("2024-02-29"));
+        assertThrows(IllegalArgumentException.class, () -> Dates.parseLocal("2024-02-30"));
+        assertThrows(IllegalArgumentException.class, () -> Dates.parseLocal("2023-02-29"));
+        assertThrows(IllegalArgumentException.class, () -> Dates.parseLocal("2024-2-1"));
+        assertThrows(IllegalArgumentException.class, () -> Dates.parseLocal(""));
+    }
+
+    @Test
+    void parsesRelativeDates() {
+        LocalDate today = LocalDate.now();
+        assertEquals(today, Dates.parseLocal("today"));
+        assertEquals(today.plusDays(7), Dates.parseLocal("+7d"));
+        assertEquals(today.minusDays(1), Dates.parseLocal("-1d"));
+        assertEquals(today.plusWeeks(2), Dates.parseLocal("+2w"));
+        assertEquals(today, Dates.parseLocal("+0d"));
+    }
+
+    @Test
+    void rejectsMalformedOffsets() {
+        for (String text : new String[]{"+d", "+", "-", "+7", "+7x", "+7dd", "+-7d", "+ 7d", "+99999999999d", "+36501d",
+                "+5215w"}) {
+            assertThrows(IllegalArgumentException.class, () -> Dates.parseLocal(text), text);
+        }
+        assertEquals(LocalDate.now().plusDays(36_500), Dates.parseLocal("+36500d"));
+    }
+
+    @Test
+    void cachedDatesAreNotShared() {
+        Date first = Dates.parse("2030-06-01");
+        Date second = Dates.parse("2030-06-01");
+        assertNotSame(first, second);
+        first.setTime(0);
+        assertEquals(Date.valueOf("2030-06-01"), Dates.parse("2030-06-01"));
+    }
+
+    @Test
+    void parsesRanges() {
+        assertEquals(List.of(Date.valueOf("2030-01-01")), Dates.parseRange(new String[]{"2030-01-01"}));
+        // 2030-01-07 is a Monday
+        assertEquals(List.of(Date.valueOf("2030-01-07"), Date.valueOf("2030-01-09"), Date.valueOf("2030-01-11")),
+                Dates.parseRange(new String[]{"2030-01-07", "2030-01-13", "mon,wed,fri"}));
+        assertEquals(7, Dates.parseRange(new String[]{"2030-01-07", "2030-01-13"}).size());
+        assertThrows(IllegalArgumentException.class, () -> Dates.parseRange(new String[0]));
+        assertThrows(IllegalArgumentException.class,
+                () -> Dates.parseRange(new String[]{"2030-01-01", "2030-01-02", "mon", "tue"}));
+    }
+
+    @Test
+    void rangesSpanAtMostAYear() {
+        LocalDate from = LocalDate.of(2030, 1, 1);
+        assertEquals(1, new DateRange(from, from).dates().size());
+        assertEquals(DateRange.MAX_DAYS, new DateRange(from, from.plusDays(DateRange.MAX_DAYS - 1)).dates().size());
+        assertThrows(IllegalArgumentException.class, () -> new DateRange(from, from.plusDays(DateRange.MAX_DAYS)));
+        assertThrows(IllegalArgumentException.class, () -> new DateRange(from, from.minusDays(1)));
+    }
+
+    @Test
+    void emptyWeekdaysMeanEveryDay() {
+        LocalDate from = LocalDate.of(2030, 1, 1);
+        assertEquals(7, new DateRange(from, from.plusDays(6), EnumSet.noneOf(DayOfWeek.class)).dates().size());
+        assertEquals(EnumSet.noneOf(DayOfWeek.class), DateRange.parseWeekdays(" , "));
+    }
+
+    @Test
+    void parsesWeekdayNames() {
+        assertEquals(EnumSet.of(DayOfWeek.MONDAY, DayOfWeek.WEDNESDAY, DayOfWeek.FRIDAY),
+                DateRange.parseWeekdays("mon,wed,fri"));
+        assertEquals(EnumSet.of(DayOfWeek.SUNDAY), DateRange.parseWeekdays(" Sunday "));
+        assertEquals(EnumSet.of(DayOfWeek.TUESDAY), DateRange.parseWeekdays("TUE,tues"));
+        // two letters could be more than one day
+        assertThrows(IllegalArgumentException.class, () -> DateRange.parseWeekdays("mo"));
+        assertThrows(IllegalArgumentException.class, () -> DateRange.parseWeekdays("mon,funday"));
+    }
+}
@@ -1,34 +1,85 @@
+-- HashParams records how Hash was made, see PasswordHasher.Params
 CREATE TABLE Caregivers (
     Username varchar(255),
     Salt BINARY(16),
-    Hash BINARY(16),
+    Hash VARBINARY(64),
+    HashParams varchar(64),
     PRIMARY KEY (Username)
 );
 
 CREATE TABLE Patients (
     pUsername varchar(255),
     Salt BINARY(16),
-    Hash BINARY(16),
+    Hash VARBINARY(64),
+    HashParams varchar(64),
     PRIMARY KEY (pUsername)
 );
 
+-- Capacity is how many more appointments the caregiver can take that day, e.g. the free 15 minute
+-- slots. A reservation takes one and the row is deleted when none are left, so every row has room.
+-- Databases created before this need migrate_availability_capacity.sql.
 CREATE TABLE Availabilities (
     Time date,
     Username varchar(255) REFERENCES Caregivers,
+    Capacity int NOT NULL DEFAULT 1,
     PRIMARY KEY (Time, Username)
 );
 
+CREATE TABLE Vaccines (
+    Name varchar(255),
+    Doses int,
+    PRIMARY KEY (Name)
+);
+
+-- Appointment_ID is assigned by the database on insert, see ReservationEngine
 CREATE TABLE Appointment (
      Time date,
-     Appointment_ID INT UNIQUE,
+     Appointment_ID INT IDENTITY(1, 1),
      Username varchar(255) REFERENCES Caregivers,
      pUsername varchar(255) REFERENCES Patients,
      Name varchar(255) REFERENCES Vaccines,
-     PRIMARY KEY (Time, Appointment_ID)
+     PRIMARY KEY (Appointment_ID)
 );
 
-CREATE TABLE Vaccines (
-    Name varchar(255),
-    Doses int,
-    PRIMARY KEY (Name)
-);
\ No newline at end of file
+-- patients waiting for a fully booked date and vaccine, promoted in Waitlist_ID order, see Waitlist
+CREATE TABLE Waitlist (
+     Waitlist_ID INT IDENTITY(1, 1),
+     Time date,
+     Name varchar(255) REFERENCES Vaccines,
+     pUsername varchar(255) REFERENCES Patients,
+     PRIMARY KEY (Waitlist_ID),
+     UNIQUE (Time, Name, pUsername)
+);
+
+-- every change to a vaccine's doses, appended with the change itself; Vaccines.Doses is their sum.
+-- Compaction folds a vaccine's entries into a DoseSnapshots row and deletes them, see DoseLedger.
+CREATE TABLE DoseLedger (
+     Entry_ID BIGINT IDENTITY(1, 1),
+     Name varchar(255) REFERENCES Vaccines,
+     Delta int NOT NULL,
+     Reason varchar(16) NOT NULL,
+     Time datetime2 NOT NULL DEFAULT CURRENT_TIMESTAMP,
+     PRIMARY KEY (Entry_ID)
+);
+
+-- a vaccine's doses after every ledger entry up to Entry_ID
+CREATE TABLE DoseSnapshots (
+     Name varchar(255) REFERENCES Vaccines,
+     Entry_ID BIGINT,
+     Doses int NOT NULL,
+     Time datetime2 NOT NULL DEFAULT CURRENT_TIMESTAMP,
+     PRIMARY KEY (Name, Entry_ID)
+);
+
+-- journaled intents that have been replayed, so none is applied twice, see ReplayMarker
+CREATE TABLE Journal_Replays (
+     Intent_ID varchar(64),
+     PRIMARY KEY (Intent_ID)
+);
+
+-- Availabilities lookups by Time are served by its (Time, Username) primary key.
+-- show_appointments and cancel look appointments up by patient or caregiver.
+CREATE INDEX IX_Appointment_pUsername ON Appointment (pUsername);
+CREATE INDEX IX_Appointment_Username ON Appointment (Username);
+-- inventory_history and compaction read one vaccine's entries, in order.
+CREATE INDEX IX_DoseLedger_Name ON DoseLedger (Name, Entry_ID);
@@ -0,0 +1,25 @@
+-- Migrates an Appointment table created by an older create.sql, where the application picked
+-- Appointment_ID itself, to the IDENTITY-backed column the application now expects.
+-- SQL Server cannot add IDENTITY to an existing column, so the rows are copied into a new table.
+-- Existing IDs are kept and new ones continue after the current maximum.
+
+BEGIN TRANSACTION;
+
+CREATE TABLE Appointment_new (
+     Time date,
+     Appointment_ID INT IDENTITY(1, 1),
+     Username varchar(255) REFERENCES Caregivers,
+     pUsername varchar(255) REFERENCES Patients,
+     Name varchar(255) REFERENCES Vaccines,
+     PRIMARY KEY (Appointment_ID)
+);
+
+SET IDENTITY_INSERT Appointment_new ON;
+INSERT INTO Appointment_new (Time, Appointment_ID, Username, pUsername, Name)
+    SELECT Time, Appointment_ID, Username, pUsername, Name FROM Appointment WITH (TABLOCKX);
+SET IDENTITY_INSERT Appointment_new OFF;
+
+DROP TABLE Appointment;
+EXEC sp_rename 'Appointment_new', 'Appointment';
+
+COMMIT;
@@ -0,0 +1,4 @@
+-- Migrates an Availabilities table created by an older create.sql, where every row was one
+-- appointment, so caregivers can offer several slots a day. Existing rows keep one slot each.
+
+ALTER TABLE Availabilities ADD Capacity int NOT NULL DEFAULT 1;
@@ -0,0 +1,29 @@
+-- Adds the dose ledger to a database created by an older create.sql. Each vaccine starts with a
+-- snapshot of its current doses at Entry_ID 0, so its history begins at the migration.
+
+BEGIN TRANSACTION;
+
+CREATE TABLE DoseLedger (
+     Entry_ID BIGINT IDENTITY(1, 1),
+     Name varchar(255) REFERENCES Vaccines,
+     Delta int NOT NULL,
+     Reason varchar(16) NOT NULL,
+     Time datetime2 NOT NULL DEFAULT CURRENT_TIMESTAMP,
+     PRIMARY KEY (Entry_ID)
+);
+
+CREATE TABLE DoseSnapshots (
+     Name varchar(255) REFERENCES Vaccines,
+     Entry_ID BIGINT,
+     Doses int NOT NULL,
+     Time datetime2 NOT NULL DEFAULT CURRENT_TIMESTAMP,
+     PRIMARY KEY (Name, Entry_ID)
+);
+
+CREATE INDEX IX_DoseLedger_Name ON DoseLedger (Name, Entry_ID);
+
+-- TABLOCKX keeps doses from changing until the ledger can record them
+INSERT INTO DoseSnapshots (Name, Entry_ID, Doses)
+    SELECT Name, 0, Doses FROM Vaccines WITH (TABLOCKX);
+
+COMMIT;
@@ -0,0 +1,9 @@
+-- Migrates Caregivers and Patients tables created by an older create.sql so password hashes can
+-- record the parameters they were made with. Existing rows keep a NULL HashParams, which means
+-- the legacy parameters, and are rehashed with the configured ones on their next login.
+
+ALTER TABLE Caregivers ALTER COLUMN Hash VARBINARY(64);
+ALTER TABLE Caregivers ADD HashParams varchar(64);
+
+ALTER TABLE Patients ALTER COLUMN Hash VARBINARY(64);
+ALTER TABLE Patients ADD HashParams varchar(64);
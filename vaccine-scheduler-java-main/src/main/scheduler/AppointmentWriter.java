@@ -0,0 +1,93 @@
+package scheduler;
+
+import scheduler.model.Appointment;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes one page of show_appointments in the requested format, buffered so a page costs one
+ * write to the session's stream rather than one per row.
+ *
+ * text is what show_appointments has always printed, plus a hint for fetching the next page.
+ * csv has a header row and one row per appointment. json is a single object, {"appointments":
+ * [...], "next_after": id or null}. For csv, a page shorter than the limit is the last one.
+ */
+final class AppointmentWriter {
+
+    enum Format {
+        TEXT,
+        CSV,
+        JSON;
+
+        // null if there is no such format
+        static Format named(String name) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    private AppointmentWriter() {
+    }
+
+    /**
+     * Writes the page. otherRole is "caregiver" for a patient's appointments and "patient" for a
+     * caregiver's; nextAfter is the cursor for the next page, or 0 if this is the last one.
+     */
+    static void write(PrintStream out, Format format, String otherRole, List<Appointment> page, int nextAfter) {
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+        boolean caregivers = otherRole.equals("caregiver");
+        switch (format) {
+            case TEXT:
+                writer.println("Appointment ID    Vaccine Name    Date    " + (caregivers ? "Caregiver" : "Patient") + " Name    ");
+                for (Appointment appointment : page) {
+                    writer.println(appointment.getAppointmentId() + " " + appointment.getTime() + " "
+                            + appointment.getVaccineName() + " " + other(appointment, caregivers));
+                }
+                if (nextAfter != 0) {
+                    writer.println("More appointments, repeat with --after " + nextAfter);
+                }
+                break;
+            case CSV:
+                writer.println("appointment_id,date,vaccine_name," + otherRole + "_name");
+                for (Appointment appointment : page) {
+                    writer.println(appointment.getAppointmentId() + "," + appointment.getTime() + ","
+                            + csv(appointment.getVaccineName()) + "," + csv(other(appointment, caregivers)));
+                }
+                break;
+            case JSON:
+                writer.print("{\"appointments\":[");
+                for (int i = 0; i < page.size(); i++) {
+                    Appointment appointment = page.get(i);
+                    writer.print((i == 0 ? "" : ",")
+                            + "{\"appointment_id\":" + appointment.getAppointmentId()
+                            + ",\"date\":\"" + appointment.getTime() + "\""
+                            + ",\"vaccine_name\":" + BatchRunner.quote(appointment.getVaccineName())
+                            + ",\"" + otherRole + "_name\":" + BatchRunner.quote(other(appointment, caregivers)) + "}");
+                }
+                writer.println("],\"next_after\":" + (nextAfter == 0 ? "null" : nextAfter) + "}");
+                break;
+        }
+        // flush, not close: the session's stream outlives this command
+        writer.flush();
+    }
+
+    private static String other(Appointment appointment, boolean caregiver) {
+        return caregiver ? appointment.getCaregiverUsername() : appointment.getPatientUsername();
+    }
+
+    private static String csv(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0) {
+            return field;
+        }
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,365 @@
+package scheduler;
+
+import scheduler.journal.QueuedException;
+import scheduler.metrics.Metrics;
+import scheduler.metrics.OperationMetrics;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.VaccineInventoryCache;
+import scheduler.model.Waitlist;
+import scheduler.util.Dates;
+import scheduler.util.Util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs a script of scheduler commands without prompts, for nightly imports and other tooling.
+ *
+ * The whole script is parsed up front. Runs of consecutive create_patient, create_caregiver,
+ * add_doses and upload_availability commands are executed as one batched transaction each;
+ * everything else, and any group whose batch fails, runs one command at a time exactly as in
+ * interactive mode. Either way the messages are the ones the interactive commands would print.
+ *
+ * One JSON object is written per command, in script order:
+ * {"line":3,"command":"reserve","status":"ok","output":"Appointment_ID: 7 Caregiver username: bob"}
+ * status is "error" when the command failed with an exception rather than with a message.
+ */
+class BatchRunner {
+
+    // commands per batched transaction
+    private static final int MAX_GROUP = 1000;
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Session session;
+
+    private BatchRunner(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+        this.session = new Session(out, err);
+    }
+
+    static void run(String source) throws IOException {
+        List<Command> commands = parse(source);
+        BatchRunner runner = new BatchRunner(System.out, System.err);
+        runner.execute(commands);
+        runner.out.flush();
+    }
+
+    private static List<Command> parse(String source) throws IOException {
+        List<Command> commands = new ArrayList<>();
+        try (BufferedReader reader = source.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(source))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                // split exactly like interactive mode does
+                String[] tokens = CommandRegistry.tokenize(line);
+                if (tokens.length > 0) {
+                    commands.add(new Command(lineNumber, tokens));
+                }
+            }
+        }
+        return commands;
+    }
+
+    private static final class Command {
+        private final int line;
+        private final String[] tokens;
+
+        private Command(int line, String[] tokens) {
+            this.line = line;
+            this.tokens = tokens;
+        }
+
+        private String operation() {
+            return tokens[0];
+        }
+    }
+
+    private void execute(List<Command> commands) {
+        int i = 0;
+        while (i < commands.size()) {
+            Command first = commands.get(i);
+            int end = i + 1;
+            // groups are formed lazily since whether a command can join one depends on who is logged in
+            if (isGroupable(first)) {
+                while (end < commands.size() && end - i < MAX_GROUP
+                        && commands.get(end).operation().equals(first.operation())
+                        && isGroupable(commands.get(end))) {
+                    end++;
+                }
+            }
+            List<Command> group = commands.subList(i, end);
+            if (group.size() == 1 || !runGroup(group)) {
+                for (Command command : group) {
+                    if (!runSingle(command)) {
+                        return;
+                    }
+                }
+            }
+            i = end;
+        }
+    }
+
+    private boolean isGroupable(Command command) {
+        String[] tokens = command.tokens;
+        switch (command.operation()) {
+            case "create_patient":
+            case "create_caregiver":
+                return tokens.length == 3;
+            case "add_doses":
+                if (tokens.length != 3 || session.getCaregiver() == null) {
+                    return false;
+                }
+                try {
+                    return Integer.parseInt(tokens[2]) > 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            case "upload_availability":
+                if (tokens.length < 2 || tokens.length > 4 || session.getCaregiver() == null) {
+                    return false;
+                }
+                try {
+                    Dates.parseRange(Arrays.copyOfRange(tokens, 1, tokens.length));
+                    return true;
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+    // returns false if the group has to be run command by command instead
+    private boolean runGroup(List<Command> group) {
+        String[] outputs = new String[group.size()];
+        boolean[] failed = new boolean[group.size()];
+        long start = System.nanoTime();
+        try {
+            switch (group.get(0).operation()) {
+                case "create_patient":
+                    createUsers(group, outputs, true);
+                    break;
+                case "create_caregiver":
+                    createUsers(group, outputs, false);
+                    break;
+                case "add_doses":
+                    addDoses(group, outputs);
+                    break;
+                case "upload_availability":
+                    uploadAvailability(group, outputs, failed);
+                    break;
+                default:
+                    return false;
+            }
+        } catch (QueuedException e) {
+            // the whole group was journaled as one change, running it again would queue it twice;
+            // commands that already have an output, such as a taken username, were not part of it
+            for (int i = 0; i < outputs.length; i++) {
+                if (outputs[i] == null) {
+                    outputs[i] = e.getMessage();
+                }
+            }
+        } catch (SQLException e) {
+            // nothing was committed, so replaying the commands one by one gives the same outcome
+            return false;
+        }
+        // each command in the group is recorded with an equal share of the group's time
+        long share = (System.nanoTime() - start) / group.size();
+        OperationMetrics metrics = Metrics.command(group.get(0).operation());
+        for (int i = 0; i < group.size(); i++) {
+            metrics.record(share);
+            if (failed[i]) {
+                metrics.error();
+            }
+            emit(group.get(i), failed[i] ? "error" : "ok", outputs[i]);
+        }
+        return true;
+    }
+
+    private void createUsers(List<Command> group, String[] outputs, boolean patients) throws SQLException {
+        List<String> usernames = new ArrayList<>();
+        for (Command command : group) {
+            usernames.add(command.tokens[1]);
+        }
+        // the database compares usernames case-insensitively
+        Set<String> taken = new HashSet<>();
+        Set<String> existing = patients ? Patient.existingUsernames(usernames) : Caregiver.existingUsernames(usernames);
+        for (String username : existing) {
+            taken.add(username.toLowerCase(Locale.ROOT));
+        }
+
+        List<Patient> newPatients = new ArrayList<>();
+        List<Caregiver> newCaregivers = new ArrayList<>();
+        List<Integer> created = new ArrayList<>();
+        for (int i = 0; i < group.size(); i++) {
+            String username = group.get(i).tokens[1];
+            String password = group.get(i).tokens[2];
+            if (!taken.add(username.toLowerCase(Locale.ROOT))) {
+                outputs[i] = "Username taken, try again!";
+                continue;
+            }
+            byte[] salt = Util.generateSalt();
+            byte[] hash = Util.generateHash(password, salt);
+            if (patients) {
+                newPatients.add(new Patient.PatientBuilder(username, salt, hash).build());
+            } else {
+                newCaregivers.add(new Caregiver.CaregiverBuilder(username, salt, hash).build());
+            }
+            created.add(i);
+        }
+        if (patients) {
+            Patient.saveAllToDB(newPatients);
+        } else {
+            Caregiver.saveAllToDB(newCaregivers);
+        }
+        for (int i : created) {
+            outputs[i] = "Created user " + group.get(i).tokens[1];
+        }
+    }
+
+    private void addDoses(List<Command> group, String[] outputs) throws SQLException {
+        Map<String, Integer> deltas = new LinkedHashMap<>();
+        for (Command command : group) {
+            deltas.merge(command.tokens[1], Integer.parseInt(command.tokens[2]), Integer::sum);
+        }
+        Waitlist.Offer offer = Waitlist.getInstance().offer();
+        VaccineInventoryCache.getInstance().addDoses(deltas, offer);
+        Arrays.fill(outputs, "Doses updated!");
+        // each booking is an extra output line of the first command that added its vaccine
+        for (Waitlist.Promotion promotion : offer.committed()) {
+            for (int i = 0; i < group.size(); i++) {
+                if (group.get(i).tokens[1].equalsIgnoreCase(promotion.getEntry().getVaccineName())) {
+                    outputs[i] += "\n" + promotion;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void uploadAvailability(List<Command> group, String[] outputs, boolean[] failed) throws SQLException {
+        List<Date> dates = new ArrayList<>();
+        int[] starts = new int[group.size() + 1];
+        for (int i = 0; i < group.size(); i++) {
+            String[] tokens = group.get(i).tokens;
+            starts[i] = dates.size();
+            dates.addAll(Dates.parseRange(Arrays.copyOfRange(tokens, 1, tokens.length)));
+        }
+        starts[group.size()] = dates.size();
+
+        Waitlist.Offer offer = Waitlist.getInstance().offer();
+        Caregiver.UploadReport report = session.getCaregiver().uploadAvailability(dates, Caregiver.DEFAULT_SLOTS, offer);
+        // which command added each date, whose output lists the bookings on it
+        Map<Date, Integer> addedBy = new HashMap<>();
+        for (int i = 0; i < group.size(); i++) {
+            int inserted = 0;
+            for (int row = starts[i]; row < starts[i + 1]; row++) {
+                if (report.wasInserted(row)) {
+                    inserted++;
+                    addedBy.putIfAbsent(dates.get(row), i);
+                }
+            }
+            if (group.get(i).tokens.length == 2) {
+                // a single date that already exists is an error in interactive mode
+                failed[i] = inserted == 0;
+                outputs[i] = failed[i] ? "Error occurred when uploading availability" : "Availability uploaded!";
+            } else {
+                int skipped = starts[i + 1] - starts[i] - inserted;
+                outputs[i] = "Availability uploaded! " + inserted + " inserted, " + skipped + " skipped in "
+                        + report.getElapsedMillis() + " ms";
+            }
+        }
+        for (Waitlist.Promotion promotion : offer.committed()) {
+            outputs[addedBy.get(promotion.getEntry().getTime())] += "\n" + promotion;
+        }
+    }
+
+    // returns false once the script asked to quit
+    private boolean runSingle(Command command) {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        ByteArrayOutputStream capturedErr = new ByteArrayOutputStream();
+        session.redirect(new PrintStream(captured, true, StandardCharsets.UTF_8),
+                new PrintStream(capturedErr, true, StandardCharsets.UTF_8));
+        boolean keepGoing = true;
+        boolean failed;
+        try {
+            keepGoing = Scheduler.dispatch(session, command.tokens);
+            failed = capturedErr.size() > 0;
+        } catch (RuntimeException e) {
+            session.error(e);
+            failed = true;
+        }
+        // stack traces still belong on stderr, just not interleaved with the results
+        err.print(capturedErr.toString(StandardCharsets.UTF_8));
+        emit(command, failed ? "error" : "ok", captured.toString(StandardCharsets.UTF_8).trim());
+        return keepGoing;
+    }
+
+    private void emit(Command command, String status, String output) {
+        out.println(result(command.line, command.operation(), status, output));
+    }
+
+    // the JSON object reported for one command, also used by the server
+    static String result(int line, String command, String status, String output) {
+        return "{\"line\":" + line
+                + ",\"command\":" + quote(command)
+                + ",\"status\":" + quote(status)
+                + ",\"output\":" + quote(output) + "}";
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
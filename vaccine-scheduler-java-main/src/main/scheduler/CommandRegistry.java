@@ -0,0 +1,320 @@
+package scheduler;
+
+import scheduler.db.ReadRouting;
+import scheduler.metrics.Metrics;
+import scheduler.metrics.OperationMetrics;
+import scheduler.util.Dates;
+
+import java.sql.Date;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The commands the scheduler understands, looked up by name in one hash probe. Each command
+ * declares how many arguments it takes, who has to be logged in to run it and how its typed
+ * arguments are parsed, and the registry checks all of that before the handler runs, so handlers
+ * only deal with input that is already known to be well-formed.
+ *
+ * The interactive prompt, batch mode, the server and the benchmarks all dispatch through here.
+ */
+final class CommandRegistry {
+
+    // who may run a command, and what everyone else is told
+    enum Role {
+        ANY(null),
+        LOGGED_OUT("User already logged in."),
+        LOGGED_IN("Please login first!"),
+        PATIENT("Please login as a patient!"),
+        CAREGIVER("Please login as a caregiver first!");
+
+        private final String refusal;
+
+        Role(String refusal) {
+            this.refusal = refusal;
+        }
+
+        // null if the session may run the command
+        private String refuse(Session session) {
+            switch (this) {
+                case LOGGED_OUT:
+                    return session.isLoggedIn() ? refusal : null;
+                case LOGGED_IN:
+                    return session.isLoggedIn() ? null : refusal;
+                case PATIENT:
+                    if (!session.isLoggedIn()) {
+                        return LOGGED_IN.refusal;
+                    }
+                    return session.getPatient() == null ? refusal : null;
+                case CAREGIVER:
+                    return session.getCaregiver() == null ? refusal : null;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    interface Handler {
+        void run(Session session, Arguments args);
+    }
+
+    // turns one token into a value, throwing IllegalArgumentException if it cannot
+    interface Parser {
+        Object parse(String token);
+    }
+
+    static final String INVALID_DATE = "Invalid date format. Please use yyyy-MM-dd format.";
+
+    // yyyy-MM-dd, today or +Nd, see Dates
+    static final Parser DATE = Dates::parse;
+    static final Parser INTEGER = Integer::parseInt;
+
+    private final Map<String, Command> commands = new HashMap<>();
+    // everything that is not a command is counted together, so typos cannot grow the metrics
+    private final OperationMetrics invalid = Metrics.command("invalid");
+
+    void register(Command command) {
+        if (commands.putIfAbsent(command.name, command) != null) {
+            throw new IllegalArgumentException("Command registered twice: " + command.name);
+        }
+    }
+
+    // null if there is no such command
+    Command find(String name) {
+        return commands.get(name);
+    }
+
+    /**
+     * Runs the command the tokens name and records it in Metrics. Returns false once the user
+     * asked to quit.
+     */
+    boolean dispatch(Session session, String[] tokens) {
+        Command command = tokens.length == 0 ? null : commands.get(tokens[0]);
+        OperationMetrics metrics = command == null ? invalid : command.metrics;
+        session.takeFailed();
+        long start = System.nanoTime();
+        boolean completed = false;
+        // the user's own recent changes are read back from the primary, see ReadRouting
+        ReadRouting.begin(session.getUsername());
+        try {
+            boolean keepGoing = true;
+            if (tokens.length == 0) {
+                session.getOut().println("Please try again!");
+            } else if (command == null) {
+                session.getOut().println("Invalid operation name!");
+            } else {
+                keepGoing = command.run(session, tokens);
+            }
+            completed = true;
+            return keepGoing;
+        } finally {
+            ReadRouting.end();
+            if (!completed || session.takeFailed()) {
+                metrics.error();
+            }
+            metrics.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Splits a command line into tokens at runs of spaces and tabs, ignoring leading and trailing
+     * ones. A blank line has no tokens.
+     */
+    static String[] tokenize(String line) {
+        int length = line.length();
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (!isSeparator(line.charAt(i)) && (i == 0 || isSeparator(line.charAt(i - 1)))) {
+                count++;
+            }
+        }
+        String[] tokens = new String[count];
+        int t = 0;
+        int i = 0;
+        while (t < count) {
+            while (isSeparator(line.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && !isSeparator(line.charAt(i))) {
+                i++;
+            }
+            tokens[t++] = line.substring(start, i);
+        }
+        return tokens;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    static final class Command {
+        private final String name;
+        private final int minArgs;
+        private final int maxArgs;
+        private final Role role;
+        private final String usage;
+        private final Parser[] parsers;
+        private final String[] parseFailures;
+        private final Parser restParser;
+        private final String restFailure;
+        private final boolean quits;
+        private final Handler handler;
+        private final OperationMetrics metrics;
+
+        private Command(CommandBuilder builder) {
+            this.name = builder.name;
+            this.minArgs = builder.minArgs;
+            this.maxArgs = builder.maxArgs;
+            this.role = builder.role;
+            this.usage = builder.usage;
+            this.parsers = builder.parsers;
+            this.parseFailures = builder.parseFailures;
+            this.restParser = builder.restParser;
+            this.restFailure = builder.restFailure;
+            this.quits = builder.quits;
+            this.handler = builder.handler;
+            this.metrics = Metrics.command(builder.name);
+        }
+
+        // Getters
+        String getName() {
+            return name;
+        }
+
+        // checks the session and the arguments, then runs the handler; false if the command quits
+        private boolean run(Session session, String[] tokens) {
+            String refusal = role.refuse(session);
+            if (refusal != null) {
+                session.getOut().println(refusal);
+                return true;
+            }
+            int args = tokens.length - 1;
+            if (args < minArgs || args > maxArgs) {
+                session.getOut().println(usage);
+                return true;
+            }
+            Object[] values = new Object[tokens.length];
+            for (int i = 1; i < tokens.length; i++) {
+                boolean declared = i < parsers.length;
+                Parser parser = declared ? parsers[i] : restParser;
+                if (parser == null) {
+                    continue;
+                }
+                try {
+                    values[i] = parser.parse(tokens[i]);
+                } catch (IllegalArgumentException e) {
+                    session.getOut().println(declared ? parseFailures[i] : restFailure);
+                    return true;
+                }
+            }
+            handler.run(session, new Arguments(tokens, values));
+            return !quits;
+        }
+    }
+
+    static final class CommandBuilder {
+        private final String name;
+        private final Handler handler;
+        private int minArgs = 0;
+        private int maxArgs = 0;
+        private Role role = Role.ANY;
+        private String usage = "Please try again!";
+        private Parser[] parsers = new Parser[1];
+        private String[] parseFailures = new String[1];
+        private Parser restParser = null;
+        private String restFailure = null;
+        private boolean quits = false;
+
+        CommandBuilder(String name, Handler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        // exactly this many arguments after the command name
+        CommandBuilder args(int count) {
+            return args(count, count);
+        }
+
+        CommandBuilder args(int min, int max) {
+            this.minArgs = min;
+            this.maxArgs = max;
+            return this;
+        }
+
+        CommandBuilder role(Role role) {
+            this.role = role;
+            return this;
+        }
+
+        // what to print when the number of arguments is wrong
+        CommandBuilder usage(String usage) {
+            this.usage = usage;
+            return this;
+        }
+
+        // the token at this position (the command name is at 0), if present, is parsed with the parser
+        CommandBuilder parse(int position, Parser parser, String failure) {
+            if (position >= parsers.length) {
+                int size = position + 1;
+                parsers = Arrays.copyOf(parsers, size);
+                parseFailures = Arrays.copyOf(parseFailures, size);
+            }
+            parsers[position] = parser;
+            parseFailures[position] = failure;
+            return this;
+        }
+
+        // every token after the last position given to parse() is parsed with the parser
+        CommandBuilder parseRest(Parser parser, String failure) {
+            this.restParser = parser;
+            this.restFailure = failure;
+            return this;
+        }
+
+        // the session ends after this command
+        CommandBuilder quits() {
+            this.quits = true;
+            return this;
+        }
+
+        Command build() {
+            return new Command(this);
+        }
+    }
+
+    /**
+     * The tokens of a command line, with the command name at position 0, and the values the
+     * command's parsers made of them.
+     */
+    static final class Arguments {
+        private final String[] tokens;
+        private final Object[] values;
+
+        private Arguments(String[] tokens, Object[] values) {
+            this.tokens = tokens;
+            this.values = values;
+        }
+
+        // number of tokens, including the command name
+        int size() {
+            return tokens.length;
+        }
+
+        String get(int position) {
+            return tokens[position];
+        }
+
+        Date date(int position) {
+            return (Date) values[position];
+        }
+
+        int integer(int position) {
+            return (Integer) values[position];
+        }
+
+        String[] tokens() {
+            return tokens;
+        }
+    }
+}
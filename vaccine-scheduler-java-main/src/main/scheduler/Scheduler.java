@@ -1,52 +1,140 @@
 package scheduler;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.Repositories;
+import scheduler.db.PoolStats;
+import scheduler.db.ReadRouting;
+import scheduler.db.SchedulerRepository;
+import scheduler.journal.OfflineQueue;
+import scheduler.journal.QueuedException;
+import scheduler.metrics.LatencyHistogram;
+import scheduler.metrics.Metrics;
+import scheduler.metrics.OperationMetrics;
+import scheduler.metrics.PrometheusExporter;
+import scheduler.model.Appointment;
 import scheduler.model.Caregiver;
+import scheduler.model.CaregiverAvailabilityIndex;
+import scheduler.model.CaregiverSchedule;
+import scheduler.model.DoseHistory;
+import scheduler.model.DoseLedger;
 import scheduler.model.Patient;
+import scheduler.model.ReservationEngine;
 import scheduler.model.Vaccine;
+import scheduler.model.UsernameIndex;
+import scheduler.model.VaccineInventoryCache;
+import scheduler.model.Waitlist;
+import scheduler.util.Dates;
+import scheduler.util.PasswordHasher;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.io.PrintStream;
 import java.sql.SQLException;
 import java.sql.Date;
+import java.sql.Timestamp;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.text.SimpleDateFormat;
-import java.text.ParseException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class Scheduler {
 
-    // objects to keep track of the currently logged-in user
-    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
-    private static int appID = 0;
+    private static final ReservationEngine reservationEngine = new ReservationEngine();
+
+    private static final int DEFAULT_PORT = 5414;
+
+    private static final CommandRegistry registry = commands();
+
+    // show_appointments rows per page unless --limit says otherwise, and the most --limit allows
+    private static final int DEFAULT_APPOINTMENT_PAGE = 100;
+    private static final int MAX_APPOINTMENT_PAGE = 1000;
+    // inventory_history snapshots unless asked for another number, and the most it shows
+    private static final int DEFAULT_HISTORY_SNAPSHOTS = 10;
+    private static final int MAX_HISTORY_SNAPSHOTS = 1000;
 
     public static void main(String[] args) {
+        PrometheusExporter.startFromEnvironment();
+        // replays whatever an earlier run queued while the database was down
+        OfflineQueue.getInstance();
+        UsernameIndex.warmUp();
+        // starts compacting the dose ledger
+        DoseLedger.getInstance();
+
+        // --batch [file] runs a script of commands without prompts, "-" or no file reads stdin
+        if (args.length > 0 && args[0].equals("--batch")) {
+            String source = args.length > 1 ? args[1] : "-";
+            try {
+                BatchRunner.run(source);
+            } catch (IOException e) {
+                System.err.println("Could not read " + source + ": " + e.getMessage());
+            } finally {
+                ConnectionManager.shutdown();
+            }
+            return;
+        }
+
+        // --server [port] serves many clients at once over TCP, see SchedulerServer
+        if (args.length > 0 && args[0].equals("--server")) {
+            String port = args.length > 1 ? args[1] : String.valueOf(DEFAULT_PORT);
+            try {
+                int number = Integer.parseInt(port);
+                if (number < 0 || number > 65535) {
+                    throw new NumberFormatException(port);
+                }
+                SchedulerServer server = SchedulerServer.fromEnvironment(number);
+                System.out.println("Listening on port " + server.getPort());
+                server.serve();
+            } catch (NumberFormatException e) {
+                System.err.println("Usage: --server [port], with the port between 0 and 65535");
+            } catch (IOException e) {
+                System.err.println("Could not serve on port " + port + ": " + e.getMessage());
+            } finally {
+                ConnectionManager.shutdown();
+            }
+            return;
+        }
+
         // printing greetings text
         System.out.println();
         System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
         System.out.println("*** Please enter one of the following commands ***");
         System.out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
         System.out.println("> create_caregiver <username> <password>");
+        System.out.println("> import_users <csv>");
         System.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
         System.out.println("> login_caregiver <username> <password>");
+        System.out.println("> login_patient --token <token>");
+        System.out.println("> login_caregiver --token <token>");
         System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
+        System.out.println("> search_caregiver_schedule <from> <to> [page]");
         System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
-        System.out.println("> upload_availability <date>");
+        System.out.println("> waitlist <date> <vaccine>");
+        System.out.println("> upload_availability <date> [--slots <n>]");
+        System.out.println("> upload_availability <from> <to> [weekdays] [--slots <n>]");
+        System.out.println("> upload_availability_file <path>");
         System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
+        System.out.println("> cancel <appointment_id> <appointment_id> ...");
+        System.out.println("> cancel_all --date <date>");
         System.out.println("> add_doses <vaccine> <number>");
+        System.out.println("> inventory_history <vaccine> [snapshots]");
         System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
+        System.out.println("> show_appointments [--from <date>] [--to <date>] [--limit <n>] [--after <id>] [--format text|csv|json]");
+        System.out.println("> change_password <old_password> <new_password>");
         System.out.println("> logout");  // TODO: implement logout (Part 2)
+        System.out.println("> stats");
         System.out.println("> quit");
         System.out.println();
 
         // read input from user
+        Session session = new Session(System.out, System.err);
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
             System.out.print("> ");
@@ -56,58 +144,80 @@ public class Scheduler {
             } catch (IOException e) {
                 System.out.println("Please try again!");
             }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
-                continue;
-            }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
+            // split the user input by spaces, a blank line gets "Please try again!"
+            String[] tokens = CommandRegistry.tokenize(response);
+            if (!dispatch(session, tokens)) {
+                ConnectionManager.shutdown();
                 return;
-            } else {
-                System.out.println("Invalid operation name!");
             }
         }
     }
 
-    private static void createPatient(String[] tokens) {
+    // runs a single command, returns false once the user asked to quit
+    static boolean dispatch(Session session, String[] tokens) {
+        return registry.dispatch(session, tokens);
+    }
+
+    private static CommandRegistry commands() {
+        CommandRegistry registry = new CommandRegistry();
+        registry.register(new CommandRegistry.CommandBuilder("create_patient", Scheduler::createPatient)
+                .args(2).usage("Failed to create user.").build());
+        registry.register(new CommandRegistry.CommandBuilder("create_caregiver", Scheduler::createCaregiver)
+                .args(2).usage("Failed to create user.").build());
+        registry.register(new CommandRegistry.CommandBuilder("import_users", Scheduler::importUsers)
+                .args(1).build());
+        registry.register(new CommandRegistry.CommandBuilder("login_patient", Scheduler::loginPatient)
+                .args(2).role(CommandRegistry.Role.LOGGED_OUT).usage("Login failed.").build());
+        registry.register(new CommandRegistry.CommandBuilder("login_caregiver", Scheduler::loginCaregiver)
+                .args(2).role(CommandRegistry.Role.LOGGED_OUT).usage("Login failed.").build());
+        registry.register(new CommandRegistry.CommandBuilder("search_caregiver_schedule", Scheduler::searchCaregiverSchedule)
+                .args(1, 3).role(CommandRegistry.Role.LOGGED_IN)
+                .parse(1, CommandRegistry.DATE, CommandRegistry.INVALID_DATE)
+                .parse(2, CommandRegistry.DATE, CommandRegistry.INVALID_DATE)
+                .parse(3, CommandRegistry.INTEGER, "Please try again!").build());
+        registry.register(new CommandRegistry.CommandBuilder("reserve", Scheduler::reserve)
+                .args(2).role(CommandRegistry.Role.PATIENT)
+                .parse(1, CommandRegistry.DATE, CommandRegistry.INVALID_DATE).build());
+        registry.register(new CommandRegistry.CommandBuilder("waitlist", Scheduler::waitlist)
+                .args(2).role(CommandRegistry.Role.PATIENT)
+                .parse(1, CommandRegistry.DATE, CommandRegistry.INVALID_DATE).build());
+        registry.register(new CommandRegistry.CommandBuilder("upload_availability", Scheduler::uploadAvailability)
+                .args(1, 5).role(CommandRegistry.Role.CAREGIVER).build());
+        registry.register(new CommandRegistry.CommandBuilder("upload_availability_file", Scheduler::uploadAvailabilityFile)
+                .args(1).role(CommandRegistry.Role.CAREGIVER).build());
+        registry.register(new CommandRegistry.CommandBuilder("cancel", Scheduler::cancel)
+                .args(1, Integer.MAX_VALUE).role(CommandRegistry.Role.LOGGED_IN)
+                .parseRest(CommandRegistry.INTEGER, "Please try again!").build());
+        registry.register(new CommandRegistry.CommandBuilder("cancel_all", Scheduler::cancelAll)
+                .args(2).role(CommandRegistry.Role.CAREGIVER)
+                .parse(2, CommandRegistry.DATE, CommandRegistry.INVALID_DATE).build());
+        registry.register(new CommandRegistry.CommandBuilder("add_doses", Scheduler::addDoses)
+                .args(2).role(CommandRegistry.Role.CAREGIVER)
+                .parse(2, CommandRegistry.INTEGER, "Please try again!").build());
+        registry.register(new CommandRegistry.CommandBuilder("inventory_history", Scheduler::inventoryHistory)
+                .args(1, 2).role(CommandRegistry.Role.CAREGIVER)
+                .parse(2, CommandRegistry.INTEGER, "Please try again!").build());
+        // flags come in pairs, showAppointments checks which
+        registry.register(new CommandRegistry.CommandBuilder("show_appointments", Scheduler::showAppointments)
+                .args(0, 10).role(CommandRegistry.Role.LOGGED_IN).build());
+        registry.register(new CommandRegistry.CommandBuilder("change_password", Scheduler::changePassword)
+                .args(2).role(CommandRegistry.Role.LOGGED_IN).build());
+        registry.register(new CommandRegistry.CommandBuilder("logout", Scheduler::logout)
+                .args(0).role(CommandRegistry.Role.LOGGED_IN).build());
+        registry.register(new CommandRegistry.CommandBuilder("stats", Scheduler::stats).args(0).build());
+        registry.register(new CommandRegistry.CommandBuilder("quit", (session, args) -> session.getOut().println("Bye!"))
+                .args(0, Integer.MAX_VALUE).quits().build());
+        return registry;
+    }
+
+    private static void createPatient(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
         // create_patient <username> <password>
-        // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
-            return;
-        }
-        String username = tokens[1];
-        String password = tokens[2];
-        // check 2: check if the username has been taken already
-        if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again!");
+        String username = args.get(1);
+        String password = args.get(2);
+        // check if the username has been taken already
+        if (usernameExistsPatient(session, username)) {
+            out.println("Username taken, try again!");
             return;
         }
         byte[] salt = Util.generateSalt();
@@ -117,45 +227,45 @@ public class Scheduler {
             Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
             // save to patient information to our database
             patient.saveToDB();
-            System.out.println("Created user " + username);
+            out.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
-            e.printStackTrace();
+            if (queued(session, e)) {
+                return;
+            }
+            // class 23 is an integrity violation, here the primary key: the username was taken
+            // after all, e.g. by another process since the UsernameIndex was warmed
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                out.println("Username taken, try again!");
+                return;
+            }
+            out.println("Failed to create user.");
+            session.error(e);
         }
     }
 
-    private static boolean usernameExistsPatient(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Patients WHERE pUsername = ?";
+    private static boolean usernameExistsPatient(Session session, String username) {
+        PrintStream out = session.getOut();
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            return !Patient.existingUsernames(Collections.singletonList(username)).isEmpty();
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+            if (OfflineQueue.getInstance().queues(e)) {
+                // the create is queued, and the replay fails if the username turns out to be taken
+                return false;
+            }
+            out.println("Error occurred when checking username");
+            session.error(e);
         }
         return true;
     }
 
-    private static void createCaregiver(String[] tokens) {
+    private static void createCaregiver(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
         // create_caregiver <username> <password>
-        // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
-            return;
-        }
-        String username = tokens[1];
-        String password = tokens[2];
-        // check 2: check if the username has been taken already
-        if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+        String username = args.get(1);
+        String password = args.get(2);
+        // check if the username has been taken already
+        if (usernameExistsCaregiver(session, username)) {
+            out.println("Username taken, try again!");
             return;
         }
         byte[] salt = Util.generateSalt();
@@ -165,514 +275,691 @@ public class Scheduler {
             Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
             // save to caregiver information to our database
             caregiver.saveToDB();
-            System.out.println("Created user " + username);
+            out.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
-            e.printStackTrace();
+            if (queued(session, e)) {
+                return;
+            }
+            // class 23 is an integrity violation, here the primary key: the username was taken
+            // after all, e.g. by another process since the UsernameIndex was warmed
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                out.println("Username taken, try again!");
+                return;
+            }
+            out.println("Failed to create user.");
+            session.error(e);
         }
     }
 
-    private static boolean usernameExistsCaregiver(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
+    private static boolean usernameExistsCaregiver(Session session, String username) {
+        PrintStream out = session.getOut();
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            return !Caregiver.existingUsernames(Collections.singletonList(username)).isEmpty();
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+            if (OfflineQueue.getInstance().queues(e)) {
+                // the create is queued, and the replay fails if the username turns out to be taken
+                return false;
+            }
+            out.println("Error occurred when checking username");
+            session.error(e);
         }
         return true;
     }
 
-    private static void loginPatient(String[] tokens) {
-        // login_caregiver <username> <password>
-        // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+    private static void importUsers(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // import_users <path>
+        // each line of the file is role,username,password, see UserImporter
+        String path = args.get(1);
+        UserImporter importer = UserImporter.fromEnvironment();
+        UserImporter.Result result;
+        try {
+            result = importer.run(Paths.get(path), out);
+        } catch (IOException e) {
+            out.println("Could not read " + path);
+            return;
+        } catch (SQLException e) {
+            out.println("Import stopped by an error, the chunks before it were imported.");
+            session.error(e);
             return;
         }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Login failed.");
+        double seconds = result.getNanos() / 1e9;
+        out.println(String.format("Imported %d of %d users in %.0f ms (%.0f users/s, hashed on %d thread(s))",
+                result.getImported(), result.getImported() + result.getFailed(), seconds * 1000,
+                seconds == 0 ? 0 : result.getImported() / seconds, importer.getThreads()));
+        if (result.getQueued() > 0) {
+            out.println(result.getQueued() + " of them are queued until the database is back.");
+        }
+    }
+
+    private static void loginPatient(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // login_patient <username> <password>, only while nobody is logged in
+        // login_patient --token <token> reuses an earlier login without touching the database
+        if (args.get(1).equals("--token")) {
+            Patient patient = SessionTokenStore.getInstance().findPatient(args.get(2));
+            if (patient == null) {
+                out.println("Login failed.");
+            } else {
+                out.println("Logged in as: " + patient.getUsername());
+                session.setPatient(patient);
+                session.setToken(args.get(2));
+            }
             return;
         }
-        String username = tokens[1];
-        String password = tokens[2];
+        String username = args.get(1);
+        String password = args.get(2);
 
         Patient patient = null;
         try {
             patient = new Patient.PatientGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
-            e.printStackTrace();
+            out.println("Login failed.");
+            session.error(e);
         }
         // check if the login was successful
         if (patient == null) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
-            currentPatient = patient;
+            out.println("Logged in as: " + username);
+            session.setPatient(patient);
+            String token = SessionTokenStore.getInstance().issue(patient);
+            session.setToken(token);
+            out.println("Session token: " + token);
         }
     }
 
-    private static void loginCaregiver(String[] tokens) {
-        // login_caregiver <username> <password>
-        // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
-            return;
-        }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Login failed.");
+    private static void loginCaregiver(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // login_caregiver <username> <password>, only while nobody is logged in
+        // login_caregiver --token <token> reuses an earlier login without touching the database
+        if (args.get(1).equals("--token")) {
+            Caregiver caregiver = SessionTokenStore.getInstance().findCaregiver(args.get(2));
+            if (caregiver == null) {
+                out.println("Login failed.");
+            } else {
+                out.println("Logged in as: " + caregiver.getUsername());
+                session.setCaregiver(caregiver);
+                session.setToken(args.get(2));
+            }
             return;
         }
-        String username = tokens[1];
-        String password = tokens[2];
+        String username = args.get(1);
+        String password = args.get(2);
 
         Caregiver caregiver = null;
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
-            e.printStackTrace();
+            out.println("Login failed.");
+            session.error(e);
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
-            currentCaregiver = caregiver;
+            out.println("Logged in as: " + username);
+            session.setCaregiver(caregiver);
+            String token = SessionTokenStore.getInstance().issue(caregiver);
+            session.setToken(token);
+            out.println("Session token: " + token);
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens) {
-        // format is yyyy-mm-dd
-        // Still need check date
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    private static void searchCaregiverSchedule(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // search_caregiver_schedule <date>
+        // search_caregiver_schedule <from> <to> [page]
+        // dates are yyyy-mm-dd, today or +Nd
+        Date from = args.date(1);
+        Date to = args.size() > 2 ? args.date(2) : from;
+        int page = args.size() > 3 ? args.integer(3) : 1;
 
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        CaregiverSchedule schedule;
+        try {
+            schedule = new CaregiverSchedule.ScheduleGetter(from, to, page, CaregiverSchedule.DEFAULT_PAGE_SIZE).get();
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage());
+            return;
+        } catch (SQLException e) {
+            out.println("Please try again!");
+            session.error(e);
             return;
         }
 
-        String date = tokens[1];
+        out.println("Date          Caregiver Name    Free Slots");
+        for (CaregiverSchedule.Slot slot : schedule.getSlots()) {
+            out.println(slot.getDate() + "    " + slot.getCaregiverUsername() + "    " + slot.getFreeSlots());
+        }
+        if (schedule.getSlots().isEmpty()) {
+            out.println("No Caregiver is available!");
+        }
+        // over the whole range, not just this page
+        for (Map.Entry<Date, Integer> day : schedule.getFreeSlotsByDay().entrySet()) {
+            out.println(day.getKey() + " free slots: " + day.getValue());
+        }
+        if (schedule.hasMore()) {
+            out.println("More results: search_caregiver_schedule " + from + " " + to + " " + (page + 1));
+        }
+        out.println("Vaccines Name     Doses");
+        for (Vaccine vaccine : schedule.getVaccines()) {
+            out.println(vaccine.getVaccineName() + " " + vaccine.getAvailableDoses());
+        }
+    }
 
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        sdf.setLenient(false);
+    private static void reserve(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // reserve <date> <vaccine>
+        Date d = args.date(1);
+        String vaccine = args.get(2);
         try {
-            sdf.parse(date);
-            if (currentCaregiver == null && currentPatient == null) {
-                System.out.println("Please login first!");
-            } else if (currentPatient != null || currentCaregiver != null) {
-                System.out.println("Caregiver Name     Vaccines Name     Doses   ");
-                String show = "SELECT Username, Name, Doses FROM Availabilities, Vaccines WHERE Time = ? ORDER BY Username";
-                try {
-                    Date d = Date.valueOf(date);
-                    PreparedStatement statement = con.prepareStatement(show);
-                    statement.setDate(1, d);
-                    ResultSet resultSet = statement.executeQuery();
-                    while (resultSet.next()) {
-                        String cUsername = resultSet.getString("Username");
-                        String vName = resultSet.getString("Name");
-                        int doses = resultSet.getInt("Doses");
-
-                        System.out.println(cUsername + " " + vName + " " + doses);
-                    }
-                } catch (SQLException e) {
-                    System.out.println("Please try again!");
-                    e.printStackTrace();
-                } finally {
-                    cm.closeConnection();
-                }
+            ReservationEngine.Reservation reservation =
+                    reservationEngine.reserve(d, vaccine, session.getPatient().getUsername());
+            switch (reservation.getStatus()) {
+                case NO_CAREGIVER:
+                    out.println("No Caregiver is available!");
+                    break;
+                case NO_SUCH_VACCINE:
+                    out.println("No such vaccine!");
+                    break;
+                case NO_DOSES:
+                    out.println("Not enough available doses!");
+                    break;
+                default:
+                    out.println("Appointment_ID: " + reservation.getAppointmentId()
+                            + " Caregiver username: " + reservation.getCaregiverUsername());
+            }
+        } catch (SQLException e) {
+            if (queued(session, e)) {
+                return;
+            }
+            out.println("Please try again!");
+            session.error(e);
+        }
+    }
 
+    private static void waitlist(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // waitlist <date> <vaccine>
+        Date d = args.date(1);
+        String vaccine = args.get(2);
+        try {
+            if (VaccineInventoryCache.getInstance().getDoses(vaccine) == null) {
+                out.println("No such vaccine!");
+                return;
+            }
+            Waitlist waitlist = Waitlist.getInstance();
+            int position = waitlist.add(d, vaccine, session.getPatient().getUsername());
+            out.println("Added to the waitlist for " + d + " " + vaccine + ", position: " + position);
+            // there may be room already, e.g. a slot that freed up before anyone was waiting
+            announce(session, () -> waitlist.promoteDates(Collections.singletonList(d)));
+        } catch (SQLException e) {
+            // class 23 is an integrity violation, here the unique key on date, vaccine and patient
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                out.println("Already on the waitlist!");
             } else {
-                System.out.println("Please try again!");
+                out.println("Please try again!");
+                session.error(e);
             }
-        } catch (ParseException e) {
-            System.out.println("Invalid date format. Please use yyyy-MM-dd format.");
         }
     }
 
-    private static void reserve(String[] tokens) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        if (tokens.length != 3) {
-            System.out.println("Please try again!");
-            return;
-        }
+    interface Promoter {
+        List<Waitlist.Promotion> promote() throws SQLException;
+    }
 
-        String date = tokens[1];
-        Date d = Date.valueOf(date);
-        String vaccine = tokens[2];
-        String cUsername = "";
-        int doses = 0;
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        sdf.setLenient(false);
+    // tells the user who the capacity their command freed or added got booked
+    private static void announce(Session session, Promoter promoter) {
         try {
-            sdf.parse(date);
-            if (currentCaregiver == null && currentPatient == null) {
-                System.out.println("Please login first!");
-            } else if (currentCaregiver != null) {
-                System.out.println("Please login as a patient!");
-            } else if (currentPatient != null) {
-                // get Availabilities
-                String show = "SELECT Username FROM Availabilities WHERE Time = ? ORDER BY Username";
-                try {
-                    PreparedStatement statement = con.prepareStatement(show);
-                    statement.setDate(1, d);
-                    ResultSet resultSet = statement.executeQuery();
-                    if (!resultSet.next()) {
-                        System.out.println("No Caregiver is available!");
-                    } else {
-                        cUsername = resultSet.getString("Username");
-                    }
-                } catch (SQLException e) {
-                    System.out.println("Please try again!");
-                    e.printStackTrace();
-                }
-
-                // get Vaccines
-                show = "SELECT Doses FROM Vaccines WHERE Name = ?";
-                try {
-                    PreparedStatement statement = con.prepareStatement(show);
-                    statement.setString(1, vaccine);
-                    ResultSet resultSet = statement.executeQuery();
-                    if (!resultSet.next()) {
-                        System.out.println("No such vaccine!");
-                    } else {
-                        doses = resultSet.getInt("Doses");
-                        if (doses == 0) {
-                            System.out.println("Not enough available doses!");
-                        }
-                    }
-                } catch (SQLException e) {
-                    System.out.println("Please try again!");
-                    e.printStackTrace();
-                }
-
-                if (!(cUsername.equals("")) && doses != 0) {
-                    // Update Availabilities
-                    show = "DELETE FROM Availabilities WHERE Time = ? AND Username = ?";
-                    try {
-                        PreparedStatement statement = con.prepareStatement(show);
-                        statement.setDate(1, d);
-                        statement.setString(2, cUsername);
-                        statement.executeUpdate();
-                    } catch (SQLException e) {
-                        e.printStackTrace();
-                    }
-
-                    // Update Vaccine
-                    show = "UPDATE Vaccines SET Doses = ? WHERE Name = ?";
-                    try {
-                        PreparedStatement statement = con.prepareStatement(show);
-                        statement.setInt(1, doses - 1);
-                        statement.setString(2, vaccine);
-                        statement.executeUpdate();
-                    } catch (SQLException e) {
-                        e.printStackTrace();
-                    }
-
-                    // get appointment_ID
-                    show = "SELECT * FROM Appointment";
-                    try {
-                        PreparedStatement statement = con.prepareStatement(show);
-                        ResultSet resultSet = statement.executeQuery();
-                        while (resultSet.next()) {
-                            appID = resultSet.getInt("Appointment_ID");
-                        }
-                    } catch (SQLException e) {
-                        e.printStackTrace();
-                    }
-
-                    // Update Appointment (Time, Appointment_ID, Username, pUsername, Name)
-                    show = "INSERT INTO Appointment VALUES (? , ?, ?, ?, ?)";
-                    appID++;
-                    try {
-                        PreparedStatement statement = con.prepareStatement(show);
-                        statement.setDate(1, d);
-                        statement.setInt(2, appID);
-                        statement.setString(3, cUsername);
-                        statement.setString(4, currentPatient.getUsername());
-                        statement.setString(5, vaccine);
-                        statement.executeUpdate();
-
-                    } catch (SQLException e) {
-                        e.printStackTrace();
-                    } finally {
-                        cm.closeConnection();
-                    }
-                }
-                System.out.println("Appointment_ID: " + appID  + " Caregiver username: " + cUsername);
-            } else {
-                System.out.println("Please try again!");
+            for (Waitlist.Promotion promotion : promoter.promote()) {
+                session.getOut().println(promotion);
             }
-        } catch(ParseException e) {
-            System.out.println("Invalid date format. Please use yyyy-MM-dd format.");
+        } catch (SQLException e) {
+            // the waitlist entries stay, the next added capacity promotes them
+            session.error(e);
         }
     }
 
-    private static void uploadAvailability(String[] tokens) {
-        // upload_availability <date>
-        // format is yyyy-mm-dd
-        // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
-            return;
+    // tells the user their change was journaled because the database is down, see OfflineQueue
+    private static boolean queued(Session session, SQLException e) {
+        if (!(e instanceof QueuedException)) {
+            return false;
+        }
+        session.getOut().println(e.getMessage());
+        return true;
+    }
+
+    private static void uploadAvailability(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // upload_availability <date> [--slots <n>]
+        // upload_availability <from> <to> [weekdays] [--slots <n>]
+        // dates are yyyy-mm-dd, today or +Nd, weekdays is a comma separated list such as mon,wed,fri
+        // --slots is how many appointments the caregiver can take each day, 1 if not given
+        String[] tokens = args.tokens();
+        int slots = Caregiver.DEFAULT_SLOTS;
+        int end = tokens.length;
+        if (end > 3 && tokens[end - 2].equals("--slots")) {
+            try {
+                slots = Integer.parseInt(tokens[end - 1]);
+            } catch (NumberFormatException e) {
+                slots = 0;
+            }
+            if (slots < 1 || slots > Caregiver.MAX_SLOTS) {
+                out.println("Slots must be between 1 and " + Caregiver.MAX_SLOTS + "!");
+                return;
+            }
+            end -= 2;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        if (end > 2) {
+            List<Date> dates;
+            try {
+                dates = Dates.parseRange(Arrays.copyOfRange(tokens, 1, end));
+            } catch (IllegalArgumentException e) {
+                out.println("Please enter a valid date range!");
+                return;
+            }
+            uploadAvailabilities(session, dates, slots);
             return;
         }
         String date = tokens[1];
         try {
-            Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            Date d = Dates.parse(date);
+            Waitlist.Offer offer = Waitlist.getInstance().offer();
+            session.getCaregiver().uploadAvailability(d, slots, offer);
+            out.println("Availability uploaded!");
+            announce(session, offer::committed);
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            out.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
-            e.printStackTrace();
+            if (queued(session, e)) {
+                return;
+            }
+            out.println("Error occurred when uploading availability");
+            session.error(e);
         }
     }
 
-    private static void cancel(String[] tokens) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    private static void uploadAvailabilityFile(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // upload_availability_file <path>
+        // each line of the file holds either <date> or <from> <to> [weekdays], # starts a comment
+        String path = args.get(1);
+        List<Date> dates = new ArrayList<>();
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                String[] range = CommandRegistry.tokenize(line);
+                if (range.length == 0) {
+                    continue;
+                }
+                dates.addAll(Dates.parseRange(range));
+            }
+        } catch (IOException e) {
+            out.println("Could not read " + path);
+            return;
+        } catch (IllegalArgumentException e) {
+            out.println("Please enter a valid date range! (line " + lineNumber + ")");
+            return;
+        }
+        uploadAvailabilities(session, dates, Caregiver.DEFAULT_SLOTS);
+    }
 
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+    private static void uploadAvailabilities(Session session, List<Date> dates, int slots) {
+        PrintStream out = session.getOut();
+        try {
+            Waitlist.Offer offer = Waitlist.getInstance().offer();
+            Caregiver.UploadReport report = session.getCaregiver().uploadAvailability(dates, slots, offer);
+            out.println("Availability uploaded! " + report);
+            announce(session, offer::committed);
+        } catch (SQLException e) {
+            if (queued(session, e)) {
+                return;
+            }
+            out.println("Error occurred when uploading availability");
+            session.error(e);
         }
+    }
 
-        int appID = Integer.valueOf(tokens[1]), validFlag = 0, doses = 0;
-        String vaccine = "", cUsername = "", pUsername = "";
-        Date time = new Date(0000, 00, 00);
+    private static void cancel(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // cancel <appointment_id> [<appointment_id> ...]
+        Set<Integer> appointmentIds = new LinkedHashSet<>();
+        for (int i = 1; i < args.size(); i++) {
+            appointmentIds.add(args.integer(i));
+        }
 
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+        boolean asCaregiver = session.getCaregiver() != null;
+        String username = asCaregiver ? session.getCaregiver().getUsername() : session.getPatient().getUsername();
+        SchedulerRepository repository = Repositories.get();
+        Waitlist.Offer offer = Waitlist.getInstance().offer();
+        List<Appointment> cancelled;
+        try {
+            cancelled = Appointment.cancel(new ArrayList<>(appointmentIds), username, asCaregiver, offer);
+        } catch (SQLException e) {
+            if (queued(session, e)) {
+                return;
+            }
+            out.println("Please try again!");
+            session.error(e);
+            return;
+        }
+        Set<Integer> cancelledIds = new HashSet<>();
+        for (Appointment appointment : cancelled) {
+            cancelledIds.add(appointment.getAppointmentId());
         }
-        else  {
-            // check appointment is valid
-            String show = "SELECT * FROM Appointment WHERE Appointment_ID = ?";
+        for (int appointmentId : appointmentIds) {
+            String prefix = appointmentIds.size() > 1 ? appointmentId + ": " : "";
+            if (cancelledIds.contains(appointmentId)) {
+                out.println(prefix + "Cancel successful!");
+                continue;
+            }
+            // only the failures are looked up again, to tell the user why
             try {
-                PreparedStatement statement = con.prepareStatement(show);
-                statement.setInt(1, appID);
-                ResultSet resultSet = statement.executeQuery();
-                if (!resultSet.next()) {
-                    System.out.println("No such appointment!");
-                }
-                else {
-                    time = resultSet.getDate("Time");
-                    vaccine = resultSet.getString("Name");
-                    cUsername = resultSet.getString("Username");
-                    pUsername = resultSet.getString("pUsername");
-                    validFlag = 1;
+                if (repository.findAppointment(appointmentId) == null) {
+                    out.println(prefix + "No such appointment!");
+                } else {
+                    out.println(prefix + "You're not the Patient or Caregiver of this appointment. Please login the correct user!");
                 }
             } catch (SQLException e) {
-                System.out.println("Please try again!");
-                e.printStackTrace();
-            }
-
-            if(validFlag == 1) {
-                if((currentCaregiver != null && cUsername.equals(currentCaregiver.getUsername())) || (currentPatient != null && pUsername.equals(currentPatient.getUsername()))) {
-                    // delete appointment
-                    show = "DELETE FROM Appointment WHERE Appointment_ID = ?";
-                    try {
-                        PreparedStatement statement = con.prepareStatement(show);
-                        statement.setInt(1, appID);
-                        statement.executeUpdate();
-                    } catch (SQLException e) {
-                        System.out.println("Please try again!");
-                        e.printStackTrace();
-                    }
-
-                    // Update Availability
-                    show = "INSERT INTO Availabilities VALUES (? ,?)";
-                    try {
-                        PreparedStatement statement = con.prepareStatement(show);
-                        statement.setDate(1, time);
-                        statement.setString(2, cUsername);
-                        statement.executeUpdate();
-                    } catch (SQLException e) {
-                        e.printStackTrace();
-                    }
-
-                    // Update Vaccines
-                    // get doses of vaccine first
-                    show = "SELECT * FROM Vaccines WHERE Name = ?";
-                    try {
-                        PreparedStatement statement = con.prepareStatement(show);
-                        statement.setString(1, vaccine);
-                        ResultSet resultSet = statement.executeQuery();
-                        if(resultSet.next()) {
-                            doses = resultSet.getInt("Doses");
-                        }
-                        else {
-                        }
-                    } catch (SQLException e) {
-                        System.out.println("Please try again!");
-                        e.printStackTrace();
-                    }
-
-                    // update doses of vaccines
-                    show = "UPDATE Vaccines SET Doses = ? WHERE Name = ?";
-                    try {
-                        PreparedStatement statement = con.prepareStatement(show);
-                        statement.setInt(1, doses + 1);
-                        statement.setString(2, vaccine);
-                        statement.executeUpdate();
-                    } catch (SQLException e) {
-                        e.printStackTrace();
-                    }
-
-                    System.out.println("Cancel successful!");
-                }
-                else {
-                    System.out.println("You're not the Patient or Caregiver of this appointment. Please login the correct user!");
-                }
+                out.println(prefix + "Please try again!");
+                session.error(e);
             }
+        }
+        announce(session, offer::committed);
+    }
 
+    private static void cancelAll(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // cancel_all --date <date>, for a caregiver who cannot come in that day
+        if (!args.get(1).equals("--date")) {
+            out.println("Please try again!");
+            return;
+        }
+        Date d = args.date(2);
+        String caregiver = session.getCaregiver().getUsername();
+        Waitlist.Offer offer = Waitlist.getInstance().offer();
+        List<Appointment> cancelled;
+        try {
+            cancelled = Repositories.get().cancelCaregiverDay(caregiver, d, offer);
+        } catch (SQLException e) {
+            out.println("Please try again!");
+            session.error(e);
+            return;
         }
+        CaregiverAvailabilityIndex index = CaregiverAvailabilityIndex.getInstance();
+        VaccineInventoryCache inventory = VaccineInventoryCache.getInstance();
+        index.lost(d, caregiver);
+        for (Appointment appointment : cancelled) {
+            index.unbooked(appointment.getCaregiverUsername());
+            inventory.applyCommitted(appointment.getVaccineName(), 1);
+            out.println("Cancelled appointment " + appointment.getAppointmentId()
+                    + " of patient " + appointment.getPatientUsername());
+        }
+        out.println("Cancelled " + cancelled.size() + " appointment(s) on " + d + ".");
+        // the caches have the doses back, so the bookings can take them
+        announce(session, offer::committed);
     }
 
-    private static void addDoses(String[] tokens) {
+    private static void addDoses(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
         // add_doses <vaccine> <number>
-        // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        String vaccineName = args.get(1);
+        int doses = args.integer(2);
+        if (doses < 0) {
+            out.println("Argument cannot be negative!");
+            return;
+        }
+        // creates the vaccine if it is not in the table yet, and queues the doses if the database is down
+        Waitlist.Offer offer = Waitlist.getInstance().offer();
+        try {
+            VaccineInventoryCache.getInstance().addDoses(Collections.singletonMap(vaccineName, doses), offer);
+        } catch (SQLException e) {
+            if (queued(session, e)) {
+                return;
+            }
+            out.println("Error occurred when adding doses");
+            session.error(e);
             return;
         }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Please try again!");
+        out.println("Doses updated!");
+        announce(session, offer::committed);
+    }
+
+    private static void inventoryHistory(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // inventory_history <vaccine> [snapshots]
+        String vaccineName = args.get(1);
+        int snapshots = args.size() > 2 ? args.integer(2) : DEFAULT_HISTORY_SNAPSHOTS;
+        if (snapshots < 1 || snapshots > MAX_HISTORY_SNAPSHOTS) {
+            out.println("Please try again!");
             return;
         }
-        String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
-        Vaccine vaccine = null;
+        DoseHistory history;
         try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+            history = DoseLedger.getInstance().history(vaccineName, snapshots);
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
-            e.printStackTrace();
+            out.println("Please try again!");
+            session.error(e);
+            return;
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
-        //          table
-        if (vaccine == null) {
-            try {
-                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
-                vaccine.saveToDB();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
-            }
-        } else {
-            // if the vaccine is not null, meaning that the vaccine already exists in our table
-            try {
-                vaccine.increaseAvailableDoses(doses);
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
-            }
+        if (history == null) {
+            out.println("No such vaccine: " + vaccineName);
+            return;
+        }
+        // the snapshots give the count at each compaction, the entries since are replayed onto the last
+        out.println("Time                   Change    Reason     Doses");
+        for (DoseHistory.Snapshot snapshot : history.getSnapshots()) {
+            out.println(String.format("%-22s %-9s %-10s %d",
+                    formatTime(snapshot.getTime()), "", "snapshot", snapshot.getDoses()));
         }
-        System.out.println("Doses updated!");
+        int doses = history.getStartDoses();
+        for (DoseHistory.Change change : history.getChanges()) {
+            doses += change.getDelta();
+            out.println(String.format("%-22s %+-9d %-10s %d",
+                    formatTime(change.getTime()), change.getDelta(), change.getReason(), doses));
+        }
+        out.println(history.getVaccineName() + ": " + doses + " doses");
     }
 
-    private static void showAppointments(String[] tokens) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    // to the second, as the database clock had it
+    private static String formatTime(Timestamp time) {
+        String text = time.toString();
+        int fraction = text.indexOf('.');
+        return fraction < 0 ? text : text.substring(0, fraction);
+    }
 
-        if (tokens.length != 1) {
-            System.out.println("Please try again!");
+    private static void showAppointments(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // show_appointments [--from <date>] [--to <date>] [--limit <n>] [--after <id>] [--format text|csv|json]
+        String[] tokens = args.tokens();
+        if (tokens.length % 2 != 1) {
+            out.println("Please try again!");
             return;
         }
-
-        if(currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
-        }
-        else if(currentPatient != null) {
-            System.out.println("Appointment ID    Vaccine Name    Date    Caregiver Name    ");
-            String show = "SELECT Appointment_ID, Name, Time, Username FROM Appointment WHERE pUsername = ? ORDER BY Appointment_ID";
-            try {
-                PreparedStatement statement = con.prepareStatement(show);
-                statement.setString(1, currentPatient.getUsername());
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    int appointmentID = resultSet.getInt("Appointment_ID");
-                    Date time = resultSet.getDate("Time");
-                    String vName = resultSet.getString("Name");
-                    String cUsername = resultSet.getString("Username");
-                    System.out.println(appointmentID + " " + time + " " + vName + " " + cUsername);
+        Date from = null;
+        Date to = null;
+        int limit = DEFAULT_APPOINTMENT_PAGE;
+        int after = 0;
+        AppointmentWriter.Format format = AppointmentWriter.Format.TEXT;
+        try {
+            for (int i = 1; i < tokens.length; i += 2) {
+                String value = tokens[i + 1];
+                switch (tokens[i]) {
+                    case "--from":
+                        from = Dates.parse(value);
+                        break;
+                    case "--to":
+                        to = Dates.parse(value);
+                        break;
+                    case "--limit":
+                        limit = Integer.parseInt(value);
+                        break;
+                    case "--after":
+                        after = Integer.parseInt(value);
+                        break;
+                    case "--format":
+                        format = AppointmentWriter.Format.named(value);
+                        break;
+                    default:
+                        out.println("Please try again!");
+                        return;
                 }
             }
-            catch (SQLException e) {
-                System.out.println("Show appointment failed.");
-                e.printStackTrace();
-            }
-            finally {
-                cm.closeConnection();
-            }
+        } catch (IllegalArgumentException e) {
+            // also covers NumberFormatException
+            out.println("Please try again!");
+            return;
         }
-        else if(currentCaregiver != null) {
-            System.out.println("Appointment ID    Vaccine Name    Date    Patient Name    ");
-            String show = "SELECT Appointment_ID, Name, Time, pUsername FROM Appointment WHERE Username = ? ORDER BY Appointment_ID";
-            try {
-                PreparedStatement statement = con.prepareStatement(show);
-                statement.setString(1, currentCaregiver.getUsername());
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    int appointmentID = resultSet.getInt("Appointment_ID");
-                    Date time = resultSet.getDate("Time");
-                    String vName = resultSet.getString("Name");
-                    String pUsername = resultSet.getString("pUsername");
-                    System.out.println(appointmentID + " " + time + " " + vName + " " + pUsername);
-                }
-            }
-            catch (SQLException e) {
-                System.out.println("Show appointment failed.");
-                e.printStackTrace();
+        if (limit < 1 || limit > MAX_APPOINTMENT_PAGE || after < 0 || format == null) {
+            out.println("Please try again!");
+            return;
+        }
+
+        try {
+            // one extra row tells whether there is another page
+            List<Appointment> page;
+            String otherRole;
+            if (session.getPatient() != null) {
+                page = Repositories.get().findAppointmentsByPatient(session.getPatient().getUsername(), from, to, after, limit + 1);
+                otherRole = "caregiver";
+            } else {
+                page = Repositories.get().findAppointmentsByCaregiver(session.getCaregiver().getUsername(), from, to, after, limit + 1);
+                otherRole = "patient";
             }
-            finally {
-                cm.closeConnection();
+            int nextAfter = 0;
+            if (page.size() > limit) {
+                page = page.subList(0, limit);
+                nextAfter = page.get(limit - 1).getAppointmentId();
             }
+            AppointmentWriter.write(out, format, otherRole, page, nextAfter);
         }
-        else {
-            System.out.println("Please try again!");
+        catch (SQLException e) {
+            out.println("Show appointment failed.");
+            session.error(e);
         }
     }
 
-    private static void logout(String[] tokens) {
-        if (tokens.length != 1) {
-            System.out.println("Please try again!");
-            return;
+    private static void logout(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        if(session.getCaregiver() != null) {
+            session.setCaregiver(null);
+            revokeToken(session);
+            out.println("Successfully logged out!");
+        }
+        else if(session.getPatient() != null){
+            session.setPatient(null);
+            revokeToken(session);
+            out.println("Successfully logged out!");
         }
-        else if(currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+        else {
+            out.println("Please try again!");
         }
-        else if(currentCaregiver != null) {
-            currentCaregiver = null;
-            System.out.println("Successfully logged out!");
+    }
+
+    private static void stats(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        out.println("Commands (latency in ms)");
+        printMetrics(out, Metrics.commands());
+        out.println("Repository calls (latency in ms)");
+        printMetrics(out, Metrics.repositoryOperations());
+        List<OperationMetrics> acquire = Collections.singletonList(Metrics.connectionAcquire());
+        out.println("Connection acquire (latency in ms)");
+        printMetrics(out, acquire);
+        PoolStats pool = ConnectionManager.statsIfOpen();
+        if (pool != null) {
+            out.println(pool);
+        }
+        PoolStats readPool = ConnectionManager.readStatsIfOpen();
+        if (readPool != null) {
+            out.println("Read replica " + readPool);
+            out.println(String.format("Reads: %d from the replica, %d from the primary, %d fell back to it",
+                    ReadRouting.getReplicaReads(), ReadRouting.getPrimaryReads(), ReadRouting.getFallbacks()));
+        }
+        out.println(SessionTokenStore.getInstance().stats());
+        out.println(UsernameIndex.patients());
+        out.println(UsernameIndex.caregivers());
+        out.println(DoseLedger.getInstance());
+        VaccineInventoryCache inventory = VaccineInventoryCache.instanceIfCreated();
+        if (inventory != null) {
+            out.println(inventory);
+        }
+        OfflineQueue queue = OfflineQueue.instanceIfEnabled();
+        if (queue != null) {
+            out.println("Journal (latency in ms)");
+            printMetrics(out, Metrics.journalOperations());
+            out.println(String.format("Journal: %d pending in %d segment(s), replaying %.1f intents/s",
+                    queue.getJournal().pending(), queue.getJournal().getSegmentCount(),
+                    queue.getDrainer().getThroughput()));
         }
-        else if(currentPatient != null){
-            currentPatient = null;
-            System.out.println("Successfully logged out!");
+    }
+
+    private static void printMetrics(PrintStream out, List<OperationMetrics> metrics) {
+        out.println(String.format("%-28s %9s %7s %9s %9s %9s %9s %9s",
+                "name", "count", "errors", "rows", "p50", "p90", "p99", "max"));
+        for (OperationMetrics m : metrics) {
+            LatencyHistogram.Snapshot latency = m.getLatency().snapshot();
+            out.println(String.format("%-28s %9d %7d %9d %9.3f %9.3f %9.3f %9.3f",
+                    m.getName(), latency.getCount(), m.getErrors(), m.getRows(),
+                    latency.percentileNanos(0.5) / 1e6, latency.percentileNanos(0.9) / 1e6,
+                    latency.percentileNanos(0.99) / 1e6, latency.getMaxNanos() / 1e6));
         }
-        else {
-            System.out.println("Please try again!");
+    }
+
+    private static void revokeToken(Session session) {
+        if (session.getToken() != null) {
+            SessionTokenStore.getInstance().revoke(session.getToken());
+            session.setToken(null);
+        }
+    }
+
+    private static void changePassword(Session session, CommandRegistry.Arguments args) {
+        PrintStream out = session.getOut();
+        // change_password <old_password> <new_password>
+        PasswordHasher hasher = PasswordHasher.getInstance();
+        byte[] salt = hasher.generateSalt();
+        byte[] hash = hasher.hash(args.get(2), salt);
+        SessionTokenStore tokenStore = SessionTokenStore.getInstance();
+        SchedulerRepository repository = Repositories.get();
+        String token;
+        try {
+            if (session.getPatient() != null) {
+                String username = session.getPatient().getUsername();
+                // the old password has to check out against what is stored now, not the cached login
+                if (new Patient.PatientGetter(username, args.get(1)).get() == null
+                        || !repository.updatePatientHash(username, salt, hash, hasher.getParams())) {
+                    out.println("Failed to change password.");
+                    return;
+                }
+                // whoever holds an old token may have learned the old password
+                tokenStore.revokePatient(username);
+                Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
+                session.setPatient(patient);
+                token = tokenStore.issue(patient);
+            } else {
+                String username = session.getCaregiver().getUsername();
+                if (new Caregiver.CaregiverGetter(username, args.get(1)).get() == null
+                        || !repository.updateCaregiverHash(username, salt, hash, hasher.getParams())) {
+                    out.println("Failed to change password.");
+                    return;
+                }
+                tokenStore.revokeCaregiver(username);
+                Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build();
+                session.setCaregiver(caregiver);
+                token = tokenStore.issue(caregiver);
+            }
+        } catch (SQLException e) {
+            out.println("Failed to change password.");
+            session.error(e);
+            return;
         }
+        session.setToken(token);
+        out.println("Password changed.");
+        out.println("Session token: " + token);
     }
 }
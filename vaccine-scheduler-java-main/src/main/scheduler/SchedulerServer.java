@@ -0,0 +1,333 @@
+package scheduler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves many users from one process over a line-based TCP protocol.
+ *
+ * Each connection gets its own Session. A client sends one command per line, exactly as it
+ * would type it at the prompt, and receives one JSON object per command in the format batch
+ * mode uses: {"line":1,"command":"login_patient","status":"ok","output":"Logged in as: alice"}.
+ * "line" counts the commands sent on that connection. quit closes the connection.
+ *
+ * One selector thread does all the network I/O, so idle connections cost a buffer rather than a
+ * thread. Commands run on a fixed pool of ServerWorkers threads (default 10, keep it at or below
+ * PoolMaxSize) with a queue of ServerQueueCapacity commands (default 1024). A session runs its
+ * commands one at a time in the order they arrived; when the queue is full the command is
+ * answered with status "busy" instead of being run. A client with MAX_PENDING commands waiting
+ * or responses it has not read yet is not read from until they drain, so one that sends without
+ * reading is held back by TCP rather than filling memory.
+ */
+public class SchedulerServer {
+
+    // longest command line accepted before the connection is dropped
+    private static final int MAX_LINE = 8192;
+    // commands waiting, or responses unsent, per client before reading from it pauses
+    private static final int MAX_PENDING = 64;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ThreadPoolExecutor workers;
+    // clients with new output or room for more commands, handed from the workers to the selector thread
+    private final Queue<Client> pendingUpdates = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger sessions = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public SchedulerServer(int port, int workerCount, int queueCapacity) throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "scheduler-worker-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    public static SchedulerServer fromEnvironment(int port) throws IOException {
+        return new SchedulerServer(port, envInt("ServerWorkers", 10), envInt("ServerQueueCapacity", 1024));
+    }
+
+    private static int envInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getSessionCount() {
+        return sessions.get();
+    }
+
+    /**
+     * Accepts and serves clients until stop() is called.
+     */
+    public void serve() throws IOException {
+        try {
+            while (running) {
+                selector.select();
+                Client client;
+                while ((client = pendingUpdates.poll()) != null) {
+                    if (client.key.isValid()) {
+                        client.key.interestOps(client.interestOps());
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                ((Client) key.attachment()).read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                ((Client) key.attachment()).write();
+                            }
+                        }
+                    } catch (IOException e) {
+                        // the client went away, its session goes with it
+                        if (key.attachment() != null) {
+                            ((Client) key.attachment()).close();
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    ((Client) key.attachment()).close();
+                }
+            }
+            serverChannel.close();
+            selector.close();
+            workers.shutdown();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Client(channel, key));
+        sessions.incrementAndGet();
+    }
+
+    private final class Client {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Session session = new Session(System.out, System.err);
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+
+        // guarded by this
+        private final Queue<String> commands = new ArrayDeque<>();
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+        private boolean busy = false;
+        private boolean closing = false;
+        private int lineNumber = 0;
+
+        private Client(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        // selector thread
+        private void read() throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    String line = partialLine.toString(StandardCharsets.UTF_8);
+                    partialLine.reset();
+                    if (line.endsWith("\r")) {
+                        line = line.substring(0, line.length() - 1);
+                    }
+                    if (!line.isEmpty()) {
+                        submit(line);
+                    }
+                } else if (partialLine.size() == MAX_LINE) {
+                    close();
+                    return;
+                } else {
+                    partialLine.write(b);
+                }
+            }
+            // what was read may have filled the queue, a whole buffer's worth at most
+            key.interestOps(interestOps());
+        }
+
+        // read while there is room, write while there is output
+        private synchronized int interestOps() {
+            int ops = 0;
+            if (!closing && commands.size() < MAX_PENDING && output.size() < MAX_PENDING) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!output.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            return ops;
+        }
+
+        // called with the lock held, has the selector thread recompute what to wait for
+        private void update() {
+            pendingUpdates.add(this);
+            selector.wakeup();
+        }
+
+        private synchronized void submit(String line) {
+            if (closing) {
+                return;
+            }
+            commands.add(line);
+            if (!busy) {
+                runNext();
+            }
+        }
+
+        // called with the lock held, runs the oldest queued command on a worker
+        private void runNext() {
+            String line;
+            if (commands.size() >= MAX_PENDING) {
+                // reading paused on a full queue, this poll makes room
+                update();
+            }
+            // while the workers are saturated every queued command is answered busy, in order
+            while ((line = commands.poll()) != null) {
+                String command = line;
+                int number = ++lineNumber;
+                try {
+                    workers.execute(() -> run(number, command));
+                    busy = true;
+                    return;
+                } catch (RejectedExecutionException e) {
+                    String[] tokens = CommandRegistry.tokenize(command);
+                    respond(BatchRunner.result(number, tokens.length == 0 ? "" : tokens[0], "busy",
+                            "Server busy, please try again!"), false);
+                }
+            }
+            busy = false;
+        }
+
+        // worker thread
+        private void run(int number, String line) {
+            String[] tokens = CommandRegistry.tokenize(line);
+            ByteArrayOutputStream captured = new ByteArrayOutputStream();
+            ByteArrayOutputStream capturedErr = new ByteArrayOutputStream();
+            session.redirect(new PrintStream(captured, true, StandardCharsets.UTF_8),
+                    new PrintStream(capturedErr, true, StandardCharsets.UTF_8));
+            boolean keepGoing = true;
+            // stays true if an Error escapes the command, so the client still gets an answer
+            boolean failed = true;
+            try {
+                keepGoing = Scheduler.dispatch(session, tokens);
+                failed = capturedErr.size() > 0;
+            } catch (RuntimeException e) {
+                session.error(e);
+            } finally {
+                // traces are for the operator, not the client
+                System.err.print(capturedErr.toString(StandardCharsets.UTF_8));
+                String result = BatchRunner.result(number, tokens.length == 0 ? "" : tokens[0],
+                        failed ? "error" : "ok", captured.toString(StandardCharsets.UTF_8).trim());
+                synchronized (this) {
+                    respond(result, !keepGoing);
+                    if (keepGoing) {
+                        runNext();
+                    } else {
+                        commands.clear();
+                        busy = false;
+                    }
+                }
+            }
+        }
+
+        // called with the lock held
+        private void respond(String result, boolean thenClose) {
+            output.add(ByteBuffer.wrap((result + "\n").getBytes(StandardCharsets.UTF_8)));
+            closing |= thenClose;
+            update();
+        }
+
+        // selector thread
+        private synchronized void write() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = output.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                output.poll();
+            }
+            if (closing) {
+                close();
+            } else {
+                // reading resumes if it paused on unsent output
+                key.interestOps(interestOps());
+            }
+        }
+
+        private void close() {
+            synchronized (this) {
+                closing = true;
+                commands.clear();
+            }
+            if (key.isValid()) {
+                key.cancel();
+                sessions.decrementAndGet();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do for this client
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package scheduler;
+
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+
+import java.io.PrintStream;
+
+/**
+ * One user's conversation with the scheduler: who is logged in, and where command output and
+ * error traces go. The interactive prompt and batch mode have one session each, the server one
+ * per connected client.
+ *
+ * A session runs one command at a time, so it needs no locking of its own.
+ */
+public class Session {
+    // Note: it is always true that at most one of caregiver and patient is not null
+    //       since only one user can be logged-in per session at a time
+    private Caregiver caregiver = null;
+    private Patient patient = null;
+    // the SessionTokenStore token of whoever is logged in
+    private String token = null;
+
+    private PrintStream out;
+    private PrintStream err;
+    // set when the current command fails with an exception, see error()
+    private boolean failed = false;
+
+    public Session(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    // Getters
+    public Caregiver getCaregiver() {
+        return caregiver;
+    }
+
+    public Patient getPatient() {
+        return patient;
+    }
+
+    public PrintStream getOut() {
+        return out;
+    }
+
+    public PrintStream getErr() {
+        return err;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    // whoever is logged in, or null
+    public String getUsername() {
+        return caregiver != null ? caregiver.getUsername() : patient != null ? patient.getUsername() : null;
+    }
+
+    public boolean isLoggedIn() {
+        return caregiver != null || patient != null;
+    }
+
+    void setCaregiver(Caregiver caregiver) {
+        this.caregiver = caregiver;
+    }
+
+    void setPatient(Patient patient) {
+        this.patient = patient;
+    }
+
+    void setToken(String token) {
+        this.token = token;
+    }
+
+    // reports an exception that made the current command fail
+    void error(Exception e) {
+        e.printStackTrace(err);
+        failed = true;
+    }
+
+    // whether the command that just ran failed, and resets it for the next one
+    boolean takeFailed() {
+        boolean wasFailed = failed;
+        failed = false;
+        return wasFailed;
+    }
+
+    // points the session at new streams, e.g. to capture the output of the next command
+    void redirect(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+}
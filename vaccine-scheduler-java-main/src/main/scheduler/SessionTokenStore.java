@@ -0,0 +1,269 @@
+package scheduler;
+
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opaque session tokens handed out after a successful password login, so a kiosk can log the
+ * same user in again with login_patient --token / login_caregiver --token without another
+ * database round trip or password hash.
+ *
+ * Tokens live in memory only and are lost on restart. Each one expires SessionTokenTtlMinutes
+ * (default 480) after it was issued, and at most SessionTokenCapacity (default 10000) are kept:
+ * issuing one more evicts the least recently used. A token is revoked when its session logs out,
+ * and all of a user's tokens are revoked when their password changes.
+ */
+public class SessionTokenStore {
+
+    private static final int TOKEN_BYTES = 32;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+
+    private static SessionTokenStore instance = null;
+
+    private final int capacity;
+    private final long ttlNanos;
+
+    // guarded by this, in access order so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> tokens;
+    // guarded by this, every live token of a user, for revoking them all at once
+    private final Map<String, Set<String>> tokensByUser = new HashMap<>();
+
+    // guarded by this
+    private long issuedCount = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long expiredCount = 0;
+    private long evictedCount = 0;
+    private long revokedCount = 0;
+
+    public SessionTokenStore(int capacity, long ttl, TimeUnit unit) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.tokens = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public static synchronized SessionTokenStore getInstance() {
+        if (instance == null) {
+            String capacity = System.getenv("SessionTokenCapacity");
+            String ttl = System.getenv("SessionTokenTtlMinutes");
+            instance = new SessionTokenStore(
+                    capacity == null ? 10000 : Integer.parseInt(capacity.trim()),
+                    ttl == null ? 480 : Long.parseLong(ttl.trim()), TimeUnit.MINUTES);
+        }
+        return instance;
+    }
+
+    public String issue(Patient patient) {
+        return issue(new Entry(patient, null, userKey("patient", patient.getUsername()), System.nanoTime() + ttlNanos));
+    }
+
+    public String issue(Caregiver caregiver) {
+        return issue(new Entry(null, caregiver, userKey("caregiver", caregiver.getUsername()), System.nanoTime() + ttlNanos));
+    }
+
+    private synchronized String issue(Entry entry) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = encoder.encodeToString(bytes);
+        if (tokens.size() >= capacity) {
+            Iterator<Map.Entry<String, Entry>> eldest = tokens.entrySet().iterator();
+            Map.Entry<String, Entry> victim = eldest.next();
+            eldest.remove();
+            unindex(victim.getKey(), victim.getValue());
+            evictedCount++;
+        }
+        tokens.put(token, entry);
+        tokensByUser.computeIfAbsent(entry.userKey, k -> new HashSet<>()).add(token);
+        issuedCount++;
+        return token;
+    }
+
+    /**
+     * Returns the patient the token was issued to, or null if it is unknown, expired, revoked
+     * or belongs to a caregiver.
+     */
+    public Patient findPatient(String token) {
+        Entry entry = find(token);
+        return entry == null ? null : entry.patient;
+    }
+
+    /**
+     * Returns the caregiver the token was issued to, or null if it is unknown, expired, revoked
+     * or belongs to a patient.
+     */
+    public Caregiver findCaregiver(String token) {
+        Entry entry = find(token);
+        return entry == null ? null : entry.caregiver;
+    }
+
+    private synchronized Entry find(String token) {
+        Entry entry = tokens.get(token);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        if (entry.expiresAt - System.nanoTime() <= 0) {
+            tokens.remove(token);
+            unindex(token, entry);
+            expiredCount++;
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry;
+    }
+
+    public synchronized void revoke(String token) {
+        Entry entry = tokens.remove(token);
+        if (entry != null) {
+            unindex(token, entry);
+            revokedCount++;
+        }
+    }
+
+    // every token of the patient, e.g. after their password changed
+    public void revokePatient(String username) {
+        revokeUser(userKey("patient", username));
+    }
+
+    public void revokeCaregiver(String username) {
+        revokeUser(userKey("caregiver", username));
+    }
+
+    private synchronized void revokeUser(String userKey) {
+        Set<String> userTokens = tokensByUser.remove(userKey);
+        if (userTokens == null) {
+            return;
+        }
+        for (String token : userTokens) {
+            tokens.remove(token);
+            revokedCount++;
+        }
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(tokens.size(), capacity, issuedCount, hitCount, missCount, expiredCount,
+                evictedCount, revokedCount);
+    }
+
+    // called with the lock held
+    private void unindex(String token, Entry entry) {
+        Set<String> userTokens = tokensByUser.get(entry.userKey);
+        if (userTokens != null) {
+            userTokens.remove(token);
+            if (userTokens.isEmpty()) {
+                tokensByUser.remove(entry.userKey);
+            }
+        }
+    }
+
+    // usernames compare case-insensitively in the database
+    private static String userKey(String role, String username) {
+        return role + ":" + username.toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Entry {
+        // exactly one of these is set
+        private final Patient patient;
+        private final Caregiver caregiver;
+        private final String userKey;
+        private final long expiresAt;
+
+        private Entry(Patient patient, Caregiver caregiver, String userKey, long expiresAt) {
+            this.patient = patient;
+            this.caregiver = caregiver;
+            this.userKey = userKey;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A point-in-time snapshot of the store's counters. Expired tokens are only noticed, and
+     * counted, when someone presents them, so active may include some that have run out.
+     */
+    public static class Stats {
+        private final int active;
+        private final int capacity;
+        private final long issuedCount;
+        private final long hitCount;
+        private final long missCount;
+        private final long expiredCount;
+        private final long evictedCount;
+        private final long revokedCount;
+
+        Stats(int active, int capacity, long issuedCount, long hitCount, long missCount,
+              long expiredCount, long evictedCount, long revokedCount) {
+            this.active = active;
+            this.capacity = capacity;
+            this.issuedCount = issuedCount;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.expiredCount = expiredCount;
+            this.evictedCount = evictedCount;
+            this.revokedCount = revokedCount;
+        }
+
+        // Getters
+        public int getActive() {
+            return active;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public long getIssuedCount() {
+            return issuedCount;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getExpiredCount() {
+            return expiredCount;
+        }
+
+        public long getEvictedCount() {
+            return evictedCount;
+        }
+
+        public long getRevokedCount() {
+            return revokedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "SessionTokenStats{" +
+                    "active=" + active +
+                    ", capacity=" + capacity +
+                    ", issued=" + issuedCount +
+                    ", hits=" + hitCount +
+                    ", misses=" + missCount +
+                    ", expired=" + expiredCount +
+                    ", evicted=" + evictedCount +
+                    ", revoked=" + revokedCount +
+                    '}';
+        }
+    }
+}
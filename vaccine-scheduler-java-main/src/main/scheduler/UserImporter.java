@@ -0,0 +1,311 @@
+package scheduler;
+
+import scheduler.journal.QueuedException;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.util.PasswordHasher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Creates the users listed in a CSV file, for import_users. Each line is
+ * role,username,password with role patient or caregiver; blank lines and a header line starting
+ * with "role," are skipped, and the password is everything after the second comma.
+ *
+ * The file is streamed in chunks of ImportChunkSize lines (1000 by default). The passwords of a
+ * chunk are hashed in parallel on a fork-join pool of ImportThreads threads (the number of cores
+ * by default) while the chunk before it is written, each role's users of a chunk in one batched
+ * transaction. A chunk the database turns down because a username was taken in the meantime is
+ * written again one user at a time. Lines that cannot be imported, such as a taken username, are
+ * reported and skipped, the rest of the file is imported regardless.
+ */
+final class UserImporter {
+
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+    // the width of the username columns
+    private static final int MAX_USERNAME_LENGTH = 255;
+
+    private final int threads;
+    private final int chunkSize;
+    private final PasswordHasher hasher;
+
+    UserImporter(int threads, int chunkSize, PasswordHasher hasher) {
+        if (threads < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("Invalid import settings: threads=" + threads
+                    + ", chunkSize=" + chunkSize);
+        }
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.hasher = hasher;
+    }
+
+    static UserImporter fromEnvironment() {
+        return new UserImporter(envInt("ImportThreads", Runtime.getRuntime().availableProcessors()),
+                envInt("ImportChunkSize", DEFAULT_CHUNK_SIZE), PasswordHasher.getInstance());
+    }
+
+    private static int envInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static final class Row {
+        private final int line;
+        private final boolean caregiver;
+        private final String username;
+        private final String password;
+        private byte[] salt;
+        private byte[] hash;
+
+        private Row(int line, boolean caregiver, String username, String password) {
+            this.line = line;
+            this.caregiver = caregiver;
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    // the rows of one chunk, and the task hashing their passwords
+    private static final class Chunk {
+        private final List<Row> rows;
+        private ForkJoinTask<?> hashing;
+
+        private Chunk(List<Row> rows) {
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * The outcome of an import. Rows queued because the database could not be reached count as
+     * imported; queued says how many were.
+     */
+    static final class Result {
+        private int imported = 0;
+        private int queued = 0;
+        private int failed = 0;
+        private long nanos = 0;
+
+        // Getters
+        int getImported() {
+            return imported;
+        }
+
+        int getQueued() {
+            return queued;
+        }
+
+        int getFailed() {
+            return failed;
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Imports the file, printing a line to out for every row that fails. Throws IOException if the
+     * file cannot be read and SQLException if the database fails for another reason than a taken
+     * username; the chunks before the one that failed stay imported.
+     */
+    Result run(Path path, PrintStream out) throws IOException, SQLException {
+        Result result = new Result();
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        // lower-cased usernames already in the file, per role
+        Set<String> seen = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            int[] lineNumber = {0};
+            Chunk current = read(reader, lineNumber, seen, out, result, pool);
+            while (current != null) {
+                // the next chunk is hashed while this one is written
+                Chunk next = read(reader, lineNumber, seen, out, result, pool);
+                current.hashing.join();
+                save(current.rows, out, result);
+                current = next;
+            }
+        } finally {
+            pool.shutdown();
+            result.nanos = System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    // the next chunk with its hashing started, or null at the end of the file
+    private Chunk read(BufferedReader reader, int[] lineNumber, Set<String> seen, PrintStream out, Result result,
+                       ForkJoinPool pool) throws IOException {
+        List<Row> rows = new ArrayList<>();
+        String line;
+        while (rows.size() < chunkSize && (line = reader.readLine()) != null) {
+            lineNumber[0]++;
+            Row row = parse(lineNumber[0], line.trim(), out, result);
+            if (row == null) {
+                continue;
+            }
+            // the database compares usernames case-insensitively
+            if (!seen.add((row.caregiver ? "c:" : "p:") + row.username.toLowerCase(Locale.ROOT))) {
+                fail(out, result, row.line, "Username taken, try again!");
+                continue;
+            }
+            rows.add(row);
+        }
+        if (rows.isEmpty()) {
+            return null;
+        }
+        Chunk chunk = new Chunk(rows);
+        chunk.hashing = pool.submit(() -> rows.parallelStream().forEach(row -> {
+            row.salt = hasher.generateSalt();
+            row.hash = hasher.hash(row.password, row.salt);
+        }));
+        return chunk;
+    }
+
+    // null if the line is blank, the header or invalid, which is reported
+    private static Row parse(int lineNumber, String line, PrintStream out, Result result) {
+        if (line.isEmpty() || (lineNumber == 1 && line.toLowerCase(Locale.ROOT).startsWith("role,"))) {
+            return null;
+        }
+        String[] fields = line.split(",", 3);
+        if (fields.length < 3 || fields[1].trim().isEmpty() || fields[2].isEmpty()) {
+            fail(out, result, lineNumber, "Please use role,username,password!");
+            return null;
+        }
+        String role = fields[0].trim().toLowerCase(Locale.ROOT);
+        if (!role.equals("patient") && !role.equals("caregiver")) {
+            fail(out, result, lineNumber, "Role must be patient or caregiver!");
+            return null;
+        }
+        String username = fields[1].trim();
+        // commands split on whitespace, a user with it in their name or password could never log in
+        if (!isOneToken(username) || !isOneToken(fields[2])) {
+            fail(out, result, lineNumber, "Usernames and passwords cannot contain spaces!");
+            return null;
+        }
+        // the database would turn it down and stop the import
+        if (username.length() > MAX_USERNAME_LENGTH) {
+            fail(out, result, lineNumber, "Usernames can be at most " + MAX_USERNAME_LENGTH + " characters!");
+            return null;
+        }
+        return new Row(lineNumber, role.equals("caregiver"), username, fields[2]);
+    }
+
+    // whether a command line would read the text as one argument, as it is
+    private static boolean isOneToken(String text) {
+        String[] tokens = CommandRegistry.tokenize(text);
+        return tokens.length == 1 && tokens[0].equals(text);
+    }
+
+    private void save(List<Row> rows, PrintStream out, Result result) throws SQLException {
+        List<Row> patients = new ArrayList<>();
+        List<Row> caregivers = new ArrayList<>();
+        for (Row row : rows) {
+            (row.caregiver ? caregivers : patients).add(row);
+        }
+        saveRole(patients, false, out, result);
+        saveRole(caregivers, true, out, result);
+    }
+
+    private void saveRole(List<Row> rows, boolean caregivers, PrintStream out, Result result) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        List<String> usernames = new ArrayList<>();
+        for (Row row : rows) {
+            usernames.add(row.username);
+        }
+        // only the names the UsernameIndex cannot rule out are looked up
+        Set<String> taken = new HashSet<>();
+        Set<String> existing =
+                caregivers ? Caregiver.existingUsernames(usernames) : Patient.existingUsernames(usernames);
+        for (String username : existing) {
+            taken.add(username.toLowerCase(Locale.ROOT));
+        }
+        List<Row> fresh = new ArrayList<>();
+        for (Row row : rows) {
+            if (taken.contains(row.username.toLowerCase(Locale.ROOT))) {
+                fail(out, result, row.line, "Username taken, try again!");
+            } else {
+                fresh.add(row);
+            }
+        }
+        if (fresh.isEmpty()) {
+            return;
+        }
+        try {
+            insert(fresh, caregivers);
+            result.imported += fresh.size();
+        } catch (QueuedException e) {
+            out.println("Lines " + fresh.get(0).line + "-" + fresh.get(fresh.size() - 1).line + ": " + e.getMessage());
+            result.imported += fresh.size();
+            result.queued += fresh.size();
+        } catch (SQLException e) {
+            if (!isDuplicateKey(e)) {
+                throw e;
+            }
+            // someone took one of the names since they were checked, find out which
+            for (Row row : fresh) {
+                try {
+                    insert(Collections.singletonList(row), caregivers);
+                    result.imported++;
+                } catch (SQLException rowFailure) {
+                    if (!isDuplicateKey(rowFailure)) {
+                        throw rowFailure;
+                    }
+                    fail(out, result, row.line, "Username taken, try again!");
+                }
+            }
+        }
+    }
+
+    private void insert(List<Row> rows, boolean caregivers) throws SQLException {
+        if (caregivers) {
+            List<Caregiver> users = new ArrayList<>();
+            for (Row row : rows) {
+                users.add(new Caregiver.CaregiverBuilder(row.username, row.salt, row.hash, hasher.getParams()).build());
+            }
+            Caregiver.saveAllToDB(users);
+        } else {
+            List<Patient> users = new ArrayList<>();
+            for (Row row : rows) {
+                users.add(new Patient.PatientBuilder(row.username, row.salt, row.hash, hasher.getParams()).build());
+            }
+            Patient.saveAllToDB(users);
+        }
+    }
+
+    // class 23 is an integrity violation, here the primary key on the username
+    private static boolean isDuplicateKey(SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("23");
+    }
+
+    private static void fail(PrintStream out, Result result, int lineNumber, String message) {
+        out.println("Line " + lineNumber + ": " + message);
+        result.failed++;
+    }
+
+    // Getters
+    int getThreads() {
+        return threads;
+    }
+}
@@ -1,37 +1,198 @@
 package scheduler.db;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
+/**
+ * Hands out pooled connections to the primary database and, if DBReadUrl is set, to a read
+ * replica. Which one a connection comes from depends on the Route it is asked for, see
+ * ReadRouting. Without DBReadUrl every route leads to the primary.
+ */
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    private static final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
 
+    /**
+     * WRITE for changes, PRIMARY for reads that must see every committed change, such as the
+     * password hash at login or the rows a cache is loaded from, and READ for reads that may be
+     * served by the replica within ReadRouting's staleness bound.
+     */
+    public enum Route {
+        WRITE, PRIMARY, READ
+    }
+
+    // one pool for the whole process, created on first use and closed by shutdown()
+    private static ConnectionPool pool = null;
+    // the replica's pool, null until first used or if there is no replica
+    private static ConnectionPool readPool = null;
+    private static boolean readPoolChecked = false;
+
+    private final Route route;
     private Connection con = null;
 
     public ConnectionManager() {
-        try {
-            Class.forName(driverName);
-        } catch (ClassNotFoundException e) {
-            System.out.println(e.toString());
+        this(Route.WRITE);
+    }
+
+    public ConnectionManager(Route route) {
+        this.route = route;
+    }
+
+    public static synchronized ConnectionPool getPool() {
+        if (pool == null) {
+            String connectionUrl = System.getenv("DBUrl");
+            if (connectionUrl == null) {
+                connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
+                        ".database.windows.net:1433;database=" + System.getenv("DBName");
+            }
+            configure(connectionUrl, System.getenv("UserID"), System.getenv("Password"));
+        }
+        return pool;
+    }
+
+    // the replica's pool, or null if reads go to the primary
+    public static synchronized ConnectionPool getReadPool() {
+        if (!readPoolChecked) {
+            readPoolChecked = true;
+            String readUrl = System.getenv("DBReadUrl");
+            if (readUrl != null && !readUrl.trim().isEmpty()) {
+                String user = System.getenv("ReadUserID");
+                String password = System.getenv("ReadPassword");
+                configureReads(readUrl.trim(), user == null ? System.getenv("UserID") : user,
+                        user == null ? System.getenv("Password") : password);
+            }
+        }
+        return readPool;
+    }
+
+    /**
+     * Points the process at a different database, e.g. an embedded one for benchmarks. Replaces
+     * the current pool, so call it before any connection is borrowed.
+     */
+    public static synchronized void configure(String connectionUrl, String userName, String userPass) {
+        if (connectionUrl.startsWith("jdbc:sqlserver:")) {
+            try {
+                Class.forName(driverName);
+            } catch (ClassNotFoundException e) {
+                System.out.println(e.toString());
+            }
+        }
+        if (pool != null) {
+            pool.shutdown();
+        } else {
+            Runtime.getRuntime().addShutdownHook(new Thread(ConnectionManager::shutdown));
+        }
+        pool = newPool(connectionUrl, userName, userPass);
+    }
+
+    /**
+     * Sends READ routes to a replica, e.g. a second embedded database in a test. Like configure(),
+     * call it before any connection is borrowed.
+     */
+    public static synchronized void configureReads(String connectionUrl, String userName, String userPass) {
+        if (connectionUrl.startsWith("jdbc:sqlserver:")) {
+            try {
+                Class.forName(driverName);
+            } catch (ClassNotFoundException e) {
+                System.out.println(e.toString());
+            }
+        }
+        if (pool == null && readPool == null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(ConnectionManager::shutdown));
+        }
+        if (readPool != null) {
+            readPool.shutdown();
         }
+        readPoolChecked = true;
+        readPool = newPool(connectionUrl, userName, userPass);
     }
 
-    public Connection createConnection() {
+    // the replica gets the same sizes and timeouts as the primary
+    private static ConnectionPool newPool(String connectionUrl, String userName, String userPass) {
+        int maxSize = envInt("PoolMaxSize", 10, 1);
+        int minSize = envInt("PoolMinSize", 1, 0);
+        if (minSize > maxSize) {
+            System.out.println("Ignoring invalid PoolMinSize: " + minSize + " is above PoolMaxSize");
+            minSize = Math.min(1, maxSize);
+        }
+        return new ConnectionPool(connectionUrl, userName, userPass, minSize, maxSize,
+                envInt("PoolBorrowTimeoutMs", 30_000, 0),
+                envInt("PoolIdleTimeoutMs", 600_000, 0),
+                envInt("PoolLeakThresholdMs", 60_000, 0),
+                Boolean.parseBoolean(System.getenv("PoolLeakTraces")));
+    }
+
+    public static PoolStats stats() {
+        return getPool().stats();
+    }
+
+    // the pool's stats, or null if nothing has borrowed a connection yet, e.g. with the memory store
+    public static synchronized PoolStats statsIfOpen() {
+        return pool == null ? null : pool.stats();
+    }
+
+    // the same for the replica's pool
+    public static synchronized PoolStats readStatsIfOpen() {
+        return readPool == null ? null : readPool.stats();
+    }
+
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        if (readPool != null) {
+            readPool.shutdown();
+            readPool = null;
+        }
+        readPoolChecked = false;
+    }
+
+    // values below min fall back to the default like unparsable ones
+    private static int envInt(String name, int defaultValue, int min) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
+        }
         try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
-        } catch (SQLException e) {
-            e.printStackTrace();
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= min) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
         }
+        System.out.println("Ignoring invalid " + name + ": " + value);
+        return defaultValue;
+    }
+
+    /**
+     * Borrows a connection for the route from the shared pools; closeConnection() gives it back.
+     * Throws DatabaseUnreachableException if the database cannot be reached. A READ route falls
+     * back to the primary while the replica cannot be reached.
+     */
+    public Connection createConnection() throws SQLException {
+        if (route == Route.READ) {
+            ConnectionPool replica = getReadPool();
+            if (replica != null && ReadRouting.mayUseReplica()) {
+                try {
+                    con = replica.borrow();
+                    return con;
+                } catch (DatabaseUnreachableException e) {
+                    ReadRouting.fellBack();
+                }
+            }
+        } else if (route == Route.WRITE) {
+            ReadRouting.wrote();
+        }
+        con = getPool().borrow();
         return con;
     }
 
     public void closeConnection() {
+        if (this.con == null) {
+            return;
+        }
         try {
             this.con.close();
         } catch (SQLException e) {
@@ -0,0 +1,342 @@
+package scheduler.db;
+
+import scheduler.metrics.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of JDBC connections.
+ *
+ * Connections handed out by {@link #borrow()} are proxies: calling close() on them returns the
+ * physical connection to the pool instead of closing it. Idle connections are validated before
+ * they are handed out again, evicted after sitting idle for too long (while keeping at least
+ * minSize open), and borrowed connections held for longer than the leak threshold are reported,
+ * together with the stack trace of the code that borrowed them if borrow sites are recorded.
+ * Recording one costs a stack capture per borrow, so it is for hunting a leak, not for production.
+ */
+public class ConnectionPool {
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long leakThresholdMillis;
+    private final boolean recordBorrowSites;
+
+    // permits bound the number of physical connections (idle + active) to maxSize
+    private final Semaphore permits;
+    // most recently returned connections are reused first so the tail can age out
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> active = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+
+    private volatile boolean shutdown = false;
+    // set by the first failed warm-up of an outage so the rest of it stays quiet
+    private volatile boolean unreachable = false;
+
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+                          long borrowTimeoutMillis, long idleTimeoutMillis, long leakThresholdMillis,
+                          boolean recordBorrowSites) {
+        if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.recordBorrowSites = recordBorrowSites;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMillis, leakThresholdMillis) / 2);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens connections until minSize are idle. Failures are reported but not fatal, the pool
+     * will simply open connections lazily on borrow instead. The housekeeper calls this on every
+     * run, so an outage is reported once, with its trace, and again when it is over.
+     */
+    public void warmUp() {
+        while (!shutdown && idle.size() + active.size() < minSize && permits.tryAcquire()) {
+            try {
+                idle.offerFirst(new PooledConnection(openPhysical()));
+            } catch (SQLException e) {
+                if (!unreachable) {
+                    unreachable = true;
+                    System.out.println("Connection pool cannot reach the database, retrying quietly until it can");
+                    e.printStackTrace();
+                }
+                return;
+            } finally {
+                permits.release();
+            }
+            if (unreachable) {
+                unreachable = false;
+                System.out.println("Connection pool reached the database again");
+            }
+        }
+    }
+
+    /**
+     * Borrows a connection, waiting at most borrowTimeoutMillis for one to become available.
+     * The caller must close() the returned connection to give it back.
+     */
+    public Connection borrow() throws SQLException {
+        if (shutdown) {
+            throw new SQLException("Connection pool has been shut down");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                Metrics.connectionAcquire().error();
+                throw new SQLException("Timed out after " + borrowTimeoutMillis
+                        + "ms waiting for a database connection (" + maxSize + " in use)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        PooledConnection pooled;
+        try {
+            pooled = takeValidIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(openPhysical());
+            }
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        pooled.borrowedAt = System.currentTimeMillis();
+        pooled.borrowSite = recordBorrowSites ? new Throwable("Connection borrowed here") : null;
+        pooled.leakReported = false;
+        active.add(pooled);
+        borrowCount.incrementAndGet();
+        Metrics.connectionAcquire().record(System.nanoTime() - start);
+        return pooled.newHandle();
+    }
+
+    private PooledConnection takeValidIdle() {
+        PooledConnection candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            if (isUsable(candidate.physical)) {
+                return candidate;
+            }
+            evictedCount.incrementAndGet();
+            closeQuietly(candidate.physical);
+        }
+        return null;
+    }
+
+    private boolean isUsable(Connection con) {
+        try {
+            return !con.isClosed() && con.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Connection openPhysical() throws SQLException {
+        Connection con;
+        try {
+            con = DriverManager.getConnection(url, user, password);
+        } catch (SQLException e) {
+            // nothing has run on this connection yet, so the caller can tell it is safe to try later
+            throw new DatabaseUnreachableException(url, e);
+        }
+        createdCount.incrementAndGet();
+        return con;
+    }
+
+    private void recordWait(long nanos) {
+        waitNanos.addAndGet(nanos);
+        long prev;
+        while (nanos > (prev = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(prev, nanos)) {
+            // retry until we either win or someone records a longer wait
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        if (!active.remove(pooled)) {
+            return;
+        }
+        boolean reusable = !shutdown;
+        try {
+            Connection con = pooled.physical;
+            if (reusable && !con.isClosed()) {
+                // leave the connection the way the next borrower expects it
+                if (!con.getAutoCommit()) {
+                    con.rollback();
+                    con.setAutoCommit(true);
+                }
+            } else {
+                reusable = false;
+            }
+        } catch (SQLException e) {
+            reusable = false;
+        }
+        if (reusable) {
+            pooled.lastReturnedAt = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        } else {
+            closeQuietly(pooled.physical);
+        }
+        permits.release();
+    }
+
+    private void housekeep() {
+        long now = System.currentTimeMillis();
+
+        // evict from the least recently used end while above the minimum size
+        PooledConnection oldest;
+        while (idle.size() + active.size() > minSize
+                && (oldest = idle.peekLast()) != null
+                && now - oldest.lastReturnedAt > idleTimeoutMillis) {
+            if (idle.removeLastOccurrence(oldest)) {
+                evictedCount.incrementAndGet();
+                closeQuietly(oldest.physical);
+            }
+        }
+
+        if (leakThresholdMillis > 0) {
+            for (PooledConnection pooled : active) {
+                if (!pooled.leakReported && now - pooled.borrowedAt > leakThresholdMillis) {
+                    pooled.leakReported = true;
+                    leakCount.incrementAndGet();
+                    System.out.println("Possible connection leak: held for " + (now - pooled.borrowedAt) + "ms");
+                    if (pooled.borrowSite != null) {
+                        pooled.borrowSite.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        if (!shutdown) {
+            warmUp();
+        }
+    }
+
+    /**
+     * Closes every idle connection and stops handing out new ones. Connections that are still
+     * borrowed are closed when they are returned.
+     */
+    public void shutdown() {
+        shutdown = true;
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            closeQuietly(pooled.physical);
+        }
+    }
+
+    public PoolStats stats() {
+        return new PoolStats(active.size(), idle.size(), minSize, maxSize, borrowCount.get(),
+                permits.getQueueLength(), waitNanos.get(), maxWaitNanos.get(), timeoutCount.get(),
+                createdCount.get(), evictedCount.get(), leakCount.get());
+    }
+
+    private static void closeQuietly(Connection con) {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            // nothing useful to do with a connection we are throwing away
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool. Each borrow gets a fresh handle so a caller that
+     * closes twice, or keeps using a connection after closing it, cannot affect the next borrower.
+     */
+    private final class PooledConnection {
+        private final Connection physical;
+        private volatile long borrowedAt;
+        private volatile long lastReturnedAt = System.currentTimeMillis();
+        private volatile Throwable borrowSite;
+        private volatile boolean leakReported;
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        private Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new Handle(this));
+        }
+    }
+
+    private final class Handle implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean closed = false;
+
+        private Handle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + pooled.physical;
+                default:
+                    if (closed) {
+                        throw new SQLException("Connection has already been returned to the pool");
+                    }
+                    try {
+                        return method.invoke(pooled.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+
+/**
+ * The pool could not open a connection to the database, e.g. the network to Azure is down. It is
+ * thrown before any statement runs, so whatever the caller was about to do has not happened and
+ * can safely be tried again later, see scheduler.journal.OfflineQueue.
+ */
+public class DatabaseUnreachableException extends SQLException {
+
+    private static final long serialVersionUID = 1L;
+
+    // SQLState class 08 is a connection exception, 08001 "unable to establish connection"
+    private static final String UNABLE_TO_CONNECT = "08001";
+
+    public DatabaseUnreachableException(String url, SQLException cause) {
+        super("Could not connect to " + url + ": " + cause.getMessage(), UNABLE_TO_CONNECT, cause);
+    }
+}
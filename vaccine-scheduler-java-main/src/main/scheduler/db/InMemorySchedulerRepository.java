@@ -0,0 +1,770 @@
+package scheduler.db;
+
+import scheduler.model.Appointment;
+import scheduler.model.Caregiver;
+import scheduler.model.CaregiverSchedule;
+import scheduler.model.DoseHistory;
+import scheduler.model.DoseLedger;
+import scheduler.model.Patient;
+import scheduler.model.ReservationEngine.Reservation;
+import scheduler.model.ReservationEngine.Status;
+import scheduler.model.WaitlistEntry;
+import scheduler.util.PasswordHasher;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A SchedulerRepository that keeps everything in memory, for running offline, in benchmarks and
+ * on a single machine. Nothing survives a restart.
+ *
+ * One read-write lock guards all of it: lookups run concurrently, changes one at a time, which
+ * makes every method atomic the way a transaction would.
+ */
+public class InMemorySchedulerRepository implements SchedulerRepository {
+
+    // what SQL Server reports for a primary key or foreign key violation
+    private static final String INTEGRITY_VIOLATION = "23000";
+    private static final int DUPLICATE_KEY = 2627;
+    private static final int FOREIGN_KEY = 547;
+    // a vaccine's ledger is compacted once it has this many entries, even if no DoseLedger runs
+    private static final int MAX_LEDGER_TAIL = 10_000;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // keyed by lower-cased username, the values keep the spelling they were created with
+    private final Map<String, Patient> patients = new HashMap<>();
+    private final Map<String, Caregiver> caregivers = new HashMap<>();
+    // free slots of each caregiver per date, a caregiver is removed when they have none left
+    private final NavigableMap<Date, NavigableMap<String, Integer>> availabilities = new TreeMap<>();
+    private final NavigableMap<String, Integer> vaccines = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    // keyed by lower-cased vaccine name: the ledger entries since the last snapshot, and the snapshots
+    private final Map<String, List<DoseHistory.Change>> doseLedger = new HashMap<>();
+    private final Map<String, List<DoseHistory.Snapshot>> doseSnapshots = new HashMap<>();
+    private long nextDoseEntryId = 1;
+    private final NavigableMap<Integer, Appointment> appointments = new TreeMap<>();
+    private final Map<String, NavigableSet<Integer>> appointmentsByPatient = new HashMap<>();
+    private final Map<String, NavigableSet<Integer>> appointmentsByCaregiver = new HashMap<>();
+    private int nextAppointmentId = 1;
+    private final NavigableMap<Integer, WaitlistEntry> waitlist = new TreeMap<>();
+    // date, lower-cased vaccine and lower-cased patient of every entry, the table's unique key
+    private final Set<String> waitlistKeys = new HashSet<>();
+    private int nextWaitlistId = 1;
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    // Patients
+
+    @Override
+    public void savePatients(List<Patient> newPatients) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            Set<String> keys = new HashSet<>();
+            for (Patient patient : newPatients) {
+                if (patients.containsKey(key(patient.getUsername())) || !keys.add(key(patient.getUsername()))) {
+                    throw duplicateKey("Patients", patient.getUsername());
+                }
+            }
+            for (Patient patient : newPatients) {
+                patients.put(key(patient.getUsername()), patient);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Patient findPatient(String username) {
+        lock.readLock().lock();
+        try {
+            return patients.get(key(username));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean updatePatientHash(String username, byte[] salt, byte[] hash, PasswordHasher.Params params) {
+        lock.writeLock().lock();
+        try {
+            Patient patient = patients.get(key(username));
+            if (patient == null) {
+                return false;
+            }
+            patients.put(key(username), new Patient.PatientBuilder(patient.getUsername(), salt, hash, params).build());
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> existingPatients(Collection<String> usernames) {
+        lock.readLock().lock();
+        try {
+            Set<String> existing = new HashSet<>();
+            for (String username : usernames) {
+                Patient patient = patients.get(key(username));
+                if (patient != null) {
+                    existing.add(patient.getUsername());
+                }
+            }
+            return existing;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> findPatientUsernames() {
+        lock.readLock().lock();
+        try {
+            List<String> usernames = new ArrayList<>();
+            for (Patient patient : patients.values()) {
+                usernames.add(patient.getUsername());
+            }
+            return usernames;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Caregivers
+
+    @Override
+    public void saveCaregivers(List<Caregiver> newCaregivers) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            Set<String> keys = new HashSet<>();
+            for (Caregiver caregiver : newCaregivers) {
+                if (caregivers.containsKey(key(caregiver.getUsername())) || !keys.add(key(caregiver.getUsername()))) {
+                    throw duplicateKey("Caregivers", caregiver.getUsername());
+                }
+            }
+            for (Caregiver caregiver : newCaregivers) {
+                caregivers.put(key(caregiver.getUsername()), caregiver);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Caregiver findCaregiver(String username) {
+        lock.readLock().lock();
+        try {
+            return caregivers.get(key(username));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean updateCaregiverHash(String username, byte[] salt, byte[] hash, PasswordHasher.Params params) {
+        lock.writeLock().lock();
+        try {
+            Caregiver caregiver = caregivers.get(key(username));
+            if (caregiver == null) {
+                return false;
+            }
+            caregivers.put(key(username),
+                    new Caregiver.CaregiverBuilder(caregiver.getUsername(), salt, hash, params).build());
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> existingCaregivers(Collection<String> usernames) {
+        lock.readLock().lock();
+        try {
+            Set<String> existing = new HashSet<>();
+            for (String username : usernames) {
+                Caregiver caregiver = caregivers.get(key(username));
+                if (caregiver != null) {
+                    existing.add(caregiver.getUsername());
+                }
+            }
+            return existing;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> findCaregiverUsernames() {
+        lock.readLock().lock();
+        try {
+            List<String> usernames = new ArrayList<>();
+            for (Caregiver caregiver : caregivers.values()) {
+                usernames.add(caregiver.getUsername());
+            }
+            return usernames;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Availabilities
+
+    @Override
+    public void addAvailability(Date d, String caregiverUsername, int slots) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            String caregiver = storedCaregiver(caregiverUsername);
+            if (slotsOn(d).putIfAbsent(caregiver, slots) != null) {
+                throw duplicateKey("Availabilities", d + ", " + caregiver);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public BitSet addAvailabilities(String caregiverUsername, List<Date> dates, int slots, Waiting waiting)
+            throws SQLException {
+        lock.writeLock().lock();
+        try {
+            String caregiver = storedCaregiver(caregiverUsername);
+            BitSet rows = new BitSet(dates.size());
+            List<Date> added = new ArrayList<>();
+            for (int i = 0; i < dates.size(); i++) {
+                if (slotsOn(dates.get(i)).putIfAbsent(caregiver, slots) == null) {
+                    rows.set(i);
+                    added.add(dates.get(i));
+                }
+            }
+            promoteLocked(waiting, added, Collections.emptyList());
+            return rows;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private NavigableMap<String, Integer> slotsOn(Date d) {
+        return availabilities.computeIfAbsent(d, day -> new TreeMap<>(String.CASE_INSENSITIVE_ORDER));
+    }
+
+    // takes one of the caregiver's slots on the date, who must have one
+    private void takeSlotLocked(Date d, String caregiver) {
+        NavigableMap<String, Integer> slots = availabilities.get(d);
+        slots.computeIfPresent(caregiver, (name, free) -> free > 1 ? free - 1 : null);
+    }
+
+    @Override
+    public Map<String, Integer> findAvailableCaregivers(Date d) {
+        lock.readLock().lock();
+        try {
+            return new LinkedHashMap<>(availabilities.getOrDefault(d, Collections.emptyNavigableMap()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<CaregiverSchedule.Slot> findAvailabilities(Date from, Date to, int offset, int limit) {
+        lock.readLock().lock();
+        try {
+            List<CaregiverSchedule.Slot> slots = new ArrayList<>();
+            int skipped = 0;
+            for (Map.Entry<Date, NavigableMap<String, Integer>> day : availabilities.subMap(from, true, to, true).entrySet()) {
+                for (Map.Entry<String, Integer> caregiver : day.getValue().entrySet()) {
+                    if (skipped < offset) {
+                        skipped++;
+                        continue;
+                    }
+                    if (slots.size() == limit) {
+                        return slots;
+                    }
+                    slots.add(new CaregiverSchedule.Slot(day.getKey(), caregiver.getKey(), caregiver.getValue()));
+                }
+            }
+            return slots;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<Date, Integer> countFreeSlots(Date from, Date to) {
+        lock.readLock().lock();
+        try {
+            Map<Date, Integer> slots = new LinkedHashMap<>();
+            for (Map.Entry<Date, NavigableMap<String, Integer>> day : availabilities.subMap(from, true, to, true).entrySet()) {
+                int free = 0;
+                for (int caregiverSlots : day.getValue().values()) {
+                    free += caregiverSlots;
+                }
+                if (free > 0) {
+                    slots.put(day.getKey(), free);
+                }
+            }
+            return slots;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Vaccines
+
+    @Override
+    public Map<String, Integer> findVaccines() {
+        lock.readLock().lock();
+        try {
+            return new HashMap<>(vaccines);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Integer findDoses(String vaccineName) {
+        lock.readLock().lock();
+        try {
+            return vaccines.get(vaccineName);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addVaccine(String vaccineName, int doses) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            if (vaccines.putIfAbsent(vaccineName, doses) != null) {
+                throw duplicateKey("Vaccines", vaccineName);
+            }
+            appendDosesLocked(vaccineName, doses, DoseLedger.ADDED);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean increaseDoses(String vaccineName, int num) {
+        lock.writeLock().lock();
+        try {
+            if (vaccines.computeIfPresent(vaccineName, (name, doses) -> doses + num) == null) {
+                return false;
+            }
+            appendDosesLocked(vaccineName, num, DoseLedger.ADDED);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> addDoses(Map<String, Integer> deltas, Waiting waiting) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            Set<String> created = new HashSet<>();
+            List<String> added = new ArrayList<>();
+            for (Map.Entry<String, Integer> entry : deltas.entrySet()) {
+                if (vaccines.containsKey(entry.getKey())) {
+                    vaccines.merge(entry.getKey(), entry.getValue(), Integer::sum);
+                } else {
+                    vaccines.put(entry.getKey(), entry.getValue());
+                    created.add(entry.getKey());
+                }
+                appendDosesLocked(entry.getKey(), entry.getValue(), DoseLedger.ADDED);
+                if (entry.getValue() > 0) {
+                    added.add(entry.getKey());
+                }
+            }
+            promoteLocked(waiting, Collections.emptyList(), added);
+            return created;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean decreaseDoses(String vaccineName, int num) {
+        lock.writeLock().lock();
+        try {
+            Integer doses = vaccines.get(vaccineName);
+            if (doses == null || doses < num) {
+                return false;
+            }
+            vaccines.put(vaccineName, doses - num);
+            appendDosesLocked(vaccineName, -num, DoseLedger.REMOVED);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Dose ledger
+
+    @Override
+    public DoseHistory findDoseHistory(String vaccineName, int snapshots) {
+        lock.readLock().lock();
+        try {
+            List<DoseHistory.Snapshot> all = doseSnapshots.getOrDefault(key(vaccineName), Collections.emptyList());
+            List<DoseHistory.Change> changes = doseLedger.getOrDefault(key(vaccineName), Collections.emptyList());
+            if (all.isEmpty() && changes.isEmpty()) {
+                return null;
+            }
+            return new DoseHistory(vaccineName, new ArrayList<>(all.subList(Math.max(0, all.size() - snapshots),
+                    all.size())), new ArrayList<>(changes));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int compactDoseLedger() {
+        lock.writeLock().lock();
+        try {
+            int compacted = 0;
+            for (String vaccine : new ArrayList<>(doseLedger.keySet())) {
+                compacted += compactLocked(vaccine);
+            }
+            return compacted;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void appendDosesLocked(String vaccineName, int delta, String reason) {
+        List<DoseHistory.Change> changes = doseLedger.computeIfAbsent(key(vaccineName), vaccine -> new ArrayList<>());
+        changes.add(new DoseHistory.Change(nextDoseEntryId++, delta, reason, new Timestamp(System.currentTimeMillis())));
+        if (changes.size() >= MAX_LEDGER_TAIL) {
+            compactLocked(key(vaccineName));
+        }
+    }
+
+    // snapshots the vaccine's count and drops its entries, returns how many
+    private int compactLocked(String vaccine) {
+        List<DoseHistory.Change> changes = doseLedger.remove(vaccine);
+        if (changes == null || changes.isEmpty()) {
+            return 0;
+        }
+        long last = changes.get(changes.size() - 1).getEntryId();
+        doseSnapshots.computeIfAbsent(vaccine, name -> new ArrayList<>()).add(
+                new DoseHistory.Snapshot(last, vaccines.get(vaccine), new Timestamp(System.currentTimeMillis())));
+        return changes.size();
+    }
+
+    // Appointments
+
+    @Override
+    public Reservation reserve(Date d, String vaccineName, String patientUsername) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            NavigableMap<String, Integer> slots = availabilities.get(d);
+            if (slots == null || slots.isEmpty()) {
+                return new Reservation(Status.NO_CAREGIVER, 0, null);
+            }
+            Integer doses = vaccines.get(vaccineName);
+            if (doses == null || doses == 0) {
+                return new Reservation(Status.NO_DOSES, 0, null);
+            }
+            String patient = storedPatient(patientUsername);
+            String caregiver = slots.firstKey();
+            takeSlotLocked(d, caregiver);
+            vaccines.put(vaccineName, doses - 1);
+            appendDosesLocked(vaccineName, -1, DoseLedger.RESERVED);
+            int appointmentId = addAppointmentLocked(d, caregiver, patient, vaccines.ceilingKey(vaccineName));
+            return new Reservation(Status.RESERVED, appointmentId, caregiver);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Reservation reserve(Date d, String caregiverUsername, String vaccineName, String patientUsername)
+            throws SQLException {
+        lock.writeLock().lock();
+        try {
+            NavigableMap<String, Integer> slots = availabilities.get(d);
+            if (slots == null || !slots.containsKey(caregiverUsername)) {
+                return new Reservation(Status.NO_CAREGIVER, 0, null);
+            }
+            Integer doses = vaccines.get(vaccineName);
+            if (doses == null || doses == 0) {
+                return new Reservation(Status.NO_DOSES, 0, null);
+            }
+            String patient = storedPatient(patientUsername);
+            // the map ignores case, ceilingKey finds the spelling it was uploaded with
+            String caregiver = slots.ceilingKey(caregiverUsername);
+            takeSlotLocked(d, caregiver);
+            vaccines.put(vaccineName, doses - 1);
+            appendDosesLocked(vaccineName, -1, DoseLedger.RESERVED);
+            int appointmentId = addAppointmentLocked(d, caregiver, patient, vaccines.ceilingKey(vaccineName));
+            return new Reservation(Status.RESERVED, appointmentId, caregiver);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> countAppointmentsByCaregiver() {
+        lock.readLock().lock();
+        try {
+            Map<String, Integer> counts = new HashMap<>();
+            for (Map.Entry<String, NavigableSet<Integer>> entry : appointmentsByCaregiver.entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    counts.put(caregivers.get(entry.getKey()).getUsername(), entry.getValue().size());
+                }
+            }
+            return counts;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records an appointment without claiming a slot or taking a dose, for seeding test and
+     * benchmark data. Returns its ID.
+     */
+    public int addAppointment(Date d, String caregiverUsername, String patientUsername, String vaccineName)
+            throws SQLException {
+        lock.writeLock().lock();
+        try {
+            if (!vaccines.containsKey(vaccineName)) {
+                throw foreignKey("Vaccines", vaccineName);
+            }
+            return addAppointmentLocked(d, storedCaregiver(caregiverUsername), storedPatient(patientUsername),
+                    vaccines.ceilingKey(vaccineName));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int addAppointmentLocked(Date d, String caregiver, String patient, String vaccineName) {
+        int appointmentId = nextAppointmentId++;
+        appointments.put(appointmentId, new Appointment(appointmentId, d, caregiver, patient, vaccineName));
+        appointmentsByPatient.computeIfAbsent(key(patient), k -> new TreeSet<>()).add(appointmentId);
+        appointmentsByCaregiver.computeIfAbsent(key(caregiver), k -> new TreeSet<>()).add(appointmentId);
+        return appointmentId;
+    }
+
+    @Override
+    public Appointment findAppointment(int appointmentId) {
+        lock.readLock().lock();
+        try {
+            return appointments.get(appointmentId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Appointment> findAppointmentsByPatient(String patientUsername, Date from, Date to, int afterId,
+                                                       int limit) {
+        return findAppointments(appointmentsByPatient, patientUsername, from, to, afterId, limit);
+    }
+
+    @Override
+    public List<Appointment> findAppointmentsByCaregiver(String caregiverUsername, Date from, Date to, int afterId,
+                                                         int limit) {
+        return findAppointments(appointmentsByCaregiver, caregiverUsername, from, to, afterId, limit);
+    }
+
+    private List<Appointment> findAppointments(Map<String, NavigableSet<Integer>> index, String username,
+                                               Date from, Date to, int afterId, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Appointment> result = new ArrayList<>();
+            NavigableSet<Integer> ids = index.getOrDefault(key(username), Collections.emptyNavigableSet());
+            for (int appointmentId : ids.tailSet(afterId, false)) {
+                if (result.size() == limit) {
+                    break;
+                }
+                Appointment appointment = appointments.get(appointmentId);
+                if ((from == null || !appointment.getTime().before(from))
+                        && (to == null || !appointment.getTime().after(to))) {
+                    result.add(appointment);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Appointment> cancelAppointments(List<Integer> appointmentIds, String username, boolean caregiver,
+                                                Waiting waiting) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            List<Appointment> cancelled = new ArrayList<>();
+            Set<Date> dates = new LinkedHashSet<>();
+            Set<String> vaccineNames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            for (int appointmentId : appointmentIds) {
+                Appointment appointment = appointments.get(appointmentId);
+                if (appointment == null || !(caregiver ? appointment.getCaregiverUsername()
+                        : appointment.getPatientUsername()).equalsIgnoreCase(username)) {
+                    continue;
+                }
+                removeAppointmentLocked(appointment);
+                slotsOn(appointment.getTime()).merge(appointment.getCaregiverUsername(), 1, Integer::sum);
+                cancelled.add(appointment);
+                dates.add(appointment.getTime());
+                vaccineNames.add(appointment.getVaccineName());
+            }
+            promoteLocked(waiting, dates, vaccineNames);
+            return cancelled;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Appointment> cancelCaregiverDay(String caregiverUsername, Date d, Waiting waiting)
+            throws SQLException {
+        lock.writeLock().lock();
+        try {
+            List<Appointment> cancelled = new ArrayList<>();
+            Set<String> vaccineNames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            for (int appointmentId : new ArrayList<>(appointmentsByCaregiver.getOrDefault(key(caregiverUsername),
+                    Collections.emptyNavigableSet()))) {
+                Appointment appointment = appointments.get(appointmentId);
+                if (appointment.getTime().equals(d)) {
+                    removeAppointmentLocked(appointment);
+                    cancelled.add(appointment);
+                    vaccineNames.add(appointment.getVaccineName());
+                }
+            }
+            NavigableMap<String, Integer> slots = availabilities.get(d);
+            if (slots != null) {
+                slots.remove(caregiverUsername);
+            }
+            promoteLocked(waiting, Collections.emptyList(), vaccineNames);
+            return cancelled;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // deletes the appointment and gives its dose back
+    private void removeAppointmentLocked(Appointment appointment) {
+        appointments.remove(appointment.getAppointmentId());
+        appointmentsByPatient.get(key(appointment.getPatientUsername())).remove(appointment.getAppointmentId());
+        appointmentsByCaregiver.get(key(appointment.getCaregiverUsername())).remove(appointment.getAppointmentId());
+        vaccines.merge(appointment.getVaccineName(), 1, Integer::sum);
+        appendDosesLocked(appointment.getVaccineName(), 1, DoseLedger.CANCELLED);
+    }
+
+    // the username as it was created, like a foreign key lookup would find it
+    // Waitlist
+
+    @Override
+    public WaitlistEntry addToWaitlist(Date d, String vaccineName, String patientUsername) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            String patient = storedPatient(patientUsername);
+            if (!vaccines.containsKey(vaccineName)) {
+                throw foreignKey("Vaccines", vaccineName);
+            }
+            String vaccine = vaccines.ceilingKey(vaccineName);
+            if (!waitlistKeys.add(waitlistKey(d, vaccine, patient))) {
+                throw duplicateKey("Waitlist", d + ", " + vaccine + ", " + patient);
+            }
+            WaitlistEntry entry = new WaitlistEntry(nextWaitlistId++, d, vaccine, patient);
+            waitlist.put(entry.getWaitlistId(), entry);
+            return entry;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<WaitlistEntry> findWaitlist() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(waitlist.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Reservation promote(WaitlistEntry entry) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            if (!waitlist.containsKey(entry.getWaitlistId())) {
+                return new Reservation(Status.NOT_WAITING, 0, null);
+            }
+            Reservation reservation = reserve(entry.getTime(), entry.getVaccineName(), entry.getPatientUsername());
+            if (reservation.getStatus() == Status.RESERVED) {
+                WaitlistEntry removed = waitlist.remove(entry.getWaitlistId());
+                waitlistKeys.remove(waitlistKey(removed.getTime(), removed.getVaccineName(), removed.getPatientUsername()));
+            }
+            return reservation;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // promote checks everything before it changes anything, so an entry that fails leaves no trace
+    private void promoteLocked(Waiting waiting, Collection<Date> dates, Collection<String> vaccineNames)
+            throws SQLException {
+        if (dates.isEmpty() && vaccineNames.isEmpty()) {
+            return;
+        }
+        WaitlistPromoter.promote(waiting, dates, vaccineNames, entry -> {
+            try {
+                return promote(entry);
+            } catch (SQLException e) {
+                // e.g. the patient is gone; the entry stays on the waitlist
+                e.printStackTrace();
+                return null;
+            }
+        });
+    }
+
+    private static String waitlistKey(Date d, String vaccineName, String patientUsername) {
+        return d + "|" + key(vaccineName) + "|" + key(patientUsername);
+    }
+
+    private String storedCaregiver(String username) throws SQLException {
+        Caregiver caregiver = caregivers.get(key(username));
+        if (caregiver == null) {
+            throw foreignKey("Caregivers", username);
+        }
+        return caregiver.getUsername();
+    }
+
+    private String storedPatient(String username) throws SQLException {
+        Patient patient = patients.get(key(username));
+        if (patient == null) {
+            throw foreignKey("Patients", username);
+        }
+        return patient.getUsername();
+    }
+
+    private static SQLException duplicateKey(String table, String key) {
+        return new SQLException("Violation of PRIMARY KEY constraint. Cannot insert duplicate key in " + table
+                + ": (" + key + ")", INTEGRITY_VIOLATION, DUPLICATE_KEY);
+    }
+
+    private static SQLException foreignKey(String table, String key) {
+        return new SQLException("The statement conflicted with the FOREIGN KEY constraint on " + table
+                + ": (" + key + ")", INTEGRITY_VIOLATION, FOREIGN_KEY);
+    }
+}
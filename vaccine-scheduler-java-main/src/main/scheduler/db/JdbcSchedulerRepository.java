@@ -0,0 +1,1094 @@
+package scheduler.db;
+
+import scheduler.db.ConnectionManager.Route;
+import scheduler.model.Appointment;
+import scheduler.model.Caregiver;
+import scheduler.model.CaregiverSchedule;
+import scheduler.model.DoseHistory;
+import scheduler.model.DoseLedger;
+import scheduler.model.Patient;
+import scheduler.model.ReservationEngine.Reservation;
+import scheduler.model.ReservationEngine.Status;
+import scheduler.model.WaitlistEntry;
+import scheduler.util.PasswordHasher;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The SchedulerRepository backed by the tables in create.sql, on whatever database
+ * ConnectionManager points at. Multi-statement changes run through a RetryPolicy. The username
+ * checks, the schedule search and the appointment lists read over Route.READ and may be served by
+ * the read replica, other reads go to the primary. Every dose change appends to DoseLedger in
+ * the transaction that makes it, and every change that frees or adds capacity books the waitlist
+ * in that transaction too, each entry behind a savepoint.
+ */
+public class JdbcSchedulerRepository implements SchedulerRepository {
+
+    // rows sent to the server per executeBatch round trip
+    private static final int BATCH_SIZE = 500;
+    // SQL Server accepts at most 2100 parameters per statement
+    private static final int MAX_IN_LIST = 1000;
+    // rows per round trip when reading every username
+    private static final int USERNAME_FETCH_SIZE = 10_000;
+
+    // READPAST skips caregivers other reservers have already locked instead of queueing behind them,
+    // UPDLOCK keeps two transactions from reading the same row before either updates it
+    private static final String CLAIM_SLOT =
+            "WITH slot AS (SELECT TOP (1) Time, Username, Capacity FROM Availabilities WITH (ROWLOCK, UPDLOCK, READPAST) " +
+            "WHERE Time = ? ORDER BY Username) " +
+            "UPDATE slot SET Capacity = Capacity - 1 OUTPUT INSERTED.Username, INSERTED.Capacity";
+    // for engines without UPDATE ... OUTPUT, such as the embedded database the benchmarks use
+    private static final String FIND_SLOT =
+            "SELECT TOP (1) Username FROM Availabilities WITH (ROWLOCK, UPDLOCK, READPAST) WHERE Time = ? ORDER BY Username";
+    // both are seeks on the (Time, Username) primary key
+    private static final String TAKE_SLOT =
+            "UPDATE Availabilities SET Capacity = Capacity - 1 WHERE Time = ? AND Username = ? AND Capacity > 0";
+    private static final String DROP_FULL = "DELETE FROM Availabilities WHERE Time = ? AND Username = ? AND Capacity <= 0";
+    private static final String DELETE_AVAILABILITY = "DELETE FROM Availabilities WHERE Time = ? AND Username = ?";
+    private static final String TAKE_DOSE = "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Doses > 0";
+    // Entry_ID is an IDENTITY column and Time defaults to the database clock
+    private static final String APPEND_DOSES = "INSERT INTO DoseLedger (Name, Delta, Reason) VALUES (?, ?, ?)";
+    // Appointment_ID is an IDENTITY column, the database hands back the ID it assigned
+    private static final String REMOVE_WAITING = "DELETE FROM Waitlist WHERE Waitlist_ID = ?";
+    private static final String ADD_APPOINTMENT = "INSERT INTO Appointment (Time, Username, pUsername, Name) VALUES (?, ?, ?, ?)";
+
+    private final RetryPolicy retryPolicy;
+
+    public JdbcSchedulerRepository() {
+        this(RetryPolicy.DEFAULT);
+    }
+
+    public JdbcSchedulerRepository(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    // Patients
+
+    @Override
+    public void savePatients(List<Patient> patients) throws SQLException {
+        List<StoredUser> users = new ArrayList<>();
+        for (Patient patient : patients) {
+            users.add(new StoredUser(patient.getUsername(), patient.getSalt(), patient.getHash(), patient.getHashParams()));
+        }
+        saveUsers("Patients", "pUsername", users);
+    }
+
+    @Override
+    public Patient findPatient(String username) throws SQLException {
+        StoredUser user = findUser("Patients", "pUsername", username);
+        return user == null ? null
+                : new Patient.PatientBuilder(user.username, user.salt, user.hash, user.params).build();
+    }
+
+    @Override
+    public boolean updatePatientHash(String username, byte[] salt, byte[] hash, PasswordHasher.Params params)
+            throws SQLException {
+        return updateHash("Patients", "pUsername", username, salt, hash, params);
+    }
+
+    @Override
+    public Set<String> existingPatients(Collection<String> usernames) throws SQLException {
+        return existingUsers("Patients", "pUsername", usernames);
+    }
+
+    @Override
+    public List<String> findPatientUsernames() throws SQLException {
+        return findUsernames("Patients", "pUsername");
+    }
+
+    // Caregivers
+
+    @Override
+    public void saveCaregivers(List<Caregiver> caregivers) throws SQLException {
+        List<StoredUser> users = new ArrayList<>();
+        for (Caregiver caregiver : caregivers) {
+            users.add(new StoredUser(caregiver.getUsername(), caregiver.getSalt(), caregiver.getHash(),
+                    caregiver.getHashParams()));
+        }
+        saveUsers("Caregivers", "Username", users);
+    }
+
+    @Override
+    public Caregiver findCaregiver(String username) throws SQLException {
+        StoredUser user = findUser("Caregivers", "Username", username);
+        return user == null ? null
+                : new Caregiver.CaregiverBuilder(user.username, user.salt, user.hash, user.params).build();
+    }
+
+    @Override
+    public boolean updateCaregiverHash(String username, byte[] salt, byte[] hash, PasswordHasher.Params params)
+            throws SQLException {
+        return updateHash("Caregivers", "Username", username, salt, hash, params);
+    }
+
+    @Override
+    public Set<String> existingCaregivers(Collection<String> usernames) throws SQLException {
+        return existingUsers("Caregivers", "Username", usernames);
+    }
+
+    @Override
+    public List<String> findCaregiverUsernames() throws SQLException {
+        return findUsernames("Caregivers", "Username");
+    }
+
+    // table and column names below are constants from this class, never user input
+
+    private void saveUsers(String table, String column, List<StoredUser> users) throws SQLException {
+        String addUser = "INSERT INTO " + table + " (" + column + ", Salt, Hash, HashParams) VALUES (?, ?, ?, ?)";
+        if (users.size() == 1 && !ReplayMarker.isReplaying()) {
+            // no transaction needed for the common case of one new user
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = con.prepareStatement(addUser)) {
+                bindUser(statement, users.get(0));
+                statement.executeUpdate();
+            } finally {
+                cm.closeConnection();
+            }
+            return;
+        }
+        retryPolicy.inTransaction(con -> {
+            try (PreparedStatement statement = con.prepareStatement(addUser)) {
+                for (StoredUser user : users) {
+                    bindUser(statement, user);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    private static void bindUser(PreparedStatement statement, StoredUser user) throws SQLException {
+        statement.setString(1, user.username);
+        statement.setBytes(2, user.salt);
+        statement.setBytes(3, user.hash);
+        statement.setString(4, user.params.encode());
+    }
+
+    private StoredUser findUser(String table, String column, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager(Route.PRIMARY);
+        Connection con = cm.createConnection();
+
+        String getUser = "SELECT " + column + ", Salt, Hash, HashParams FROM " + table + " WHERE " + column + " = ?";
+        try (PreparedStatement statement = con.prepareStatement(getUser)) {
+            statement.setString(1, username);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return new StoredUser(resultSet.getString(column), resultSet.getBytes("Salt"),
+                        resultSet.getBytes("Hash"), PasswordHasher.Params.decode(resultSet.getString("HashParams")));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private boolean updateHash(String table, String column, String username, byte[] salt, byte[] hash,
+                               PasswordHasher.Params params) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String updateHash = "UPDATE " + table + " SET Salt = ?, Hash = ?, HashParams = ? WHERE " + column + " = ?";
+        try (PreparedStatement statement = con.prepareStatement(updateHash)) {
+            statement.setBytes(1, salt);
+            statement.setBytes(2, hash);
+            statement.setString(3, params.encode());
+            statement.setString(4, username);
+            return statement.executeUpdate() == 1;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private Set<String> existingUsers(String table, String column, Collection<String> usernames) throws SQLException {
+        Set<String> existing = new HashSet<>();
+        List<String> remaining = new ArrayList<>(usernames);
+        ConnectionManager cm = new ConnectionManager(Route.READ);
+        Connection con = cm.createConnection();
+        try {
+            for (int start = 0; start < remaining.size(); start += MAX_IN_LIST) {
+                List<String> chunk = remaining.subList(start, Math.min(start + MAX_IN_LIST, remaining.size()));
+                String select = "SELECT " + column + " FROM " + table + " WHERE " + column + " IN (" +
+                        String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+                try (PreparedStatement statement = con.prepareStatement(select)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        statement.setString(i + 1, chunk.get(i));
+                    }
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            existing.add(resultSet.getString(column));
+                        }
+                    }
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return existing;
+    }
+
+    private List<String> findUsernames(String table, String column) throws SQLException {
+        // on the primary, a replica would leave out the users it has not caught up with
+        ConnectionManager cm = new ConnectionManager(Route.PRIMARY);
+        Connection con = cm.createConnection();
+        List<String> usernames = new ArrayList<>();
+        // only the key column, read straight off the primary key index
+        try (PreparedStatement statement = con.prepareStatement("SELECT " + column + " FROM " + table)) {
+            statement.setFetchSize(USERNAME_FETCH_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    usernames.add(resultSet.getString(1));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return usernames;
+    }
+
+    private static class StoredUser {
+        private final String username;
+        private final byte[] salt;
+        private final byte[] hash;
+        private final PasswordHasher.Params params;
+
+        private StoredUser(String username, byte[] salt, byte[] hash, PasswordHasher.Params params) {
+            this.username = username;
+            this.salt = salt;
+            this.hash = hash;
+            this.params = params;
+        }
+    }
+
+    // Availabilities
+
+    @Override
+    public void addAvailability(Date d, String caregiverUsername, int slots) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String addAvailability = "INSERT INTO Availabilities (Time, Username, Capacity) VALUES (?, ?, ?)";
+        try (PreparedStatement statement = con.prepareStatement(addAvailability)) {
+            statement.setDate(1, d);
+            statement.setString(2, caregiverUsername);
+            statement.setInt(3, slots);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public BitSet addAvailabilities(String caregiverUsername, List<Date> dates, int slots, Waiting waiting)
+            throws SQLException {
+        String addAvailability = "INSERT INTO Availabilities (Time, Username, Capacity) SELECT ?, ?, ? " +
+                "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WITH (UPDLOCK, HOLDLOCK) WHERE Time = ? AND Username = ?)";
+        return retryPolicy.inTransaction(con -> {
+            BitSet rows = new BitSet(dates.size());
+            try (PreparedStatement statement = con.prepareStatement(addAvailability)) {
+                int pending = 0;
+                for (int i = 0; i < dates.size(); i++) {
+                    Date d = dates.get(i);
+                    statement.setDate(1, d);
+                    statement.setString(2, caregiverUsername);
+                    statement.setInt(3, slots);
+                    statement.setDate(4, d);
+                    statement.setString(5, caregiverUsername);
+                    statement.addBatch();
+                    if (++pending == BATCH_SIZE || i == dates.size() - 1) {
+                        int[] updateCounts = statement.executeBatch();
+                        for (int j = 0; j < updateCounts.length; j++) {
+                            if (updateCounts[j] > 0) {
+                                rows.set(i - pending + 1 + j);
+                            }
+                        }
+                        pending = 0;
+                    }
+                }
+            }
+            List<Date> added = new ArrayList<>();
+            for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+                added.add(dates.get(i));
+            }
+            promote(con, waiting, added, Collections.emptyList());
+            return rows;
+        });
+    }
+
+    @Override
+    public List<CaregiverSchedule.Slot> findAvailabilities(Date from, Date to, int offset, int limit)
+            throws SQLException {
+        ConnectionManager cm = new ConnectionManager(Route.READ);
+        Connection con = cm.createConnection();
+
+        // served by the (Time, Username) primary key, no sort needed
+        String getSlots = "SELECT Time, Username, Capacity FROM Availabilities WHERE Time BETWEEN ? AND ? " +
+                "ORDER BY Time, Username OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
+        List<CaregiverSchedule.Slot> slots = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(getSlots)) {
+            statement.setDate(1, from);
+            statement.setDate(2, to);
+            statement.setInt(3, offset);
+            statement.setInt(4, limit);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    slots.add(new CaregiverSchedule.Slot(resultSet.getDate("Time"), resultSet.getString("Username"),
+                            resultSet.getInt("Capacity")));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return slots;
+    }
+
+    @Override
+    public Map<Date, Integer> countFreeSlots(Date from, Date to) throws SQLException {
+        ConnectionManager cm = new ConnectionManager(Route.READ);
+        Connection con = cm.createConnection();
+
+        // one row per caregiver and day however many slots each has, read in key order
+        String countSlots = "SELECT Time, SUM(Capacity) AS Slots FROM Availabilities WHERE Time BETWEEN ? AND ? " +
+                "GROUP BY Time ORDER BY Time";
+        Map<Date, Integer> slots = new LinkedHashMap<>();
+        try (PreparedStatement statement = con.prepareStatement(countSlots)) {
+            statement.setDate(1, from);
+            statement.setDate(2, to);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    slots.put(resultSet.getDate("Time"), resultSet.getInt("Slots"));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return slots;
+    }
+
+    @Override
+    public Map<String, Integer> findAvailableCaregivers(Date d) throws SQLException {
+        ConnectionManager cm = new ConnectionManager(Route.PRIMARY);
+        Connection con = cm.createConnection();
+
+        String getCaregivers = "SELECT Username, Capacity FROM Availabilities WHERE Time = ? ORDER BY Username";
+        Map<String, Integer> caregivers = new LinkedHashMap<>();
+        try (PreparedStatement statement = con.prepareStatement(getCaregivers)) {
+            statement.setDate(1, d);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    caregivers.put(resultSet.getString("Username"), resultSet.getInt("Capacity"));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return caregivers;
+    }
+
+    // Vaccines
+
+    @Override
+    public Map<String, Integer> findVaccines() throws SQLException {
+        ConnectionManager cm = new ConnectionManager(Route.PRIMARY);
+        Connection con = cm.createConnection();
+
+        String getVaccines = "SELECT Name, Doses FROM Vaccines";
+        Map<String, Integer> vaccines = new HashMap<>();
+        try (PreparedStatement statement = con.prepareStatement(getVaccines);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                vaccines.put(resultSet.getString("Name"), resultSet.getInt("Doses"));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return vaccines;
+    }
+
+    @Override
+    public Integer findDoses(String vaccineName) throws SQLException {
+        ConnectionManager cm = new ConnectionManager(Route.PRIMARY);
+        Connection con = cm.createConnection();
+
+        String getVaccine = "SELECT Doses FROM Vaccines WHERE Name = ?";
+        try (PreparedStatement statement = con.prepareStatement(getVaccine)) {
+            statement.setString(1, vaccineName);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getInt("Doses") : null;
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void addVaccine(String vaccineName, int doses) throws SQLException {
+        String addVaccine = "INSERT INTO Vaccines (Name, Doses) VALUES (?, ?)";
+        retryPolicy.inTransaction(con -> {
+            try (PreparedStatement statement = con.prepareStatement(addVaccine)) {
+                statement.setString(1, vaccineName);
+                statement.setInt(2, doses);
+                statement.executeUpdate();
+            }
+            appendDoses(con, Collections.singletonMap(vaccineName, doses), DoseLedger.ADDED);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean increaseDoses(String vaccineName, int num) throws SQLException {
+        // relative to the current value, so concurrent writers cannot overwrite each other
+        String addDoses = "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ?";
+        return retryPolicy.inTransaction(con -> {
+            try (PreparedStatement statement = con.prepareStatement(addDoses)) {
+                statement.setInt(1, num);
+                statement.setString(2, vaccineName);
+                if (statement.executeUpdate() != 1) {
+                    return false;
+                }
+            }
+            appendDoses(con, Collections.singletonMap(vaccineName, num), DoseLedger.ADDED);
+            return true;
+        });
+    }
+
+    @Override
+    public Set<String> addDoses(Map<String, Integer> deltas, Waiting waiting) throws SQLException {
+        String addDoses = "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ?";
+        String addVaccine = "INSERT INTO Vaccines (Name, Doses) VALUES (?, ?)";
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(deltas.entrySet());
+        return retryPolicy.inTransaction(con -> {
+            Set<String> created = new HashSet<>();
+            try (PreparedStatement update = con.prepareStatement(addDoses);
+                 PreparedStatement insert = con.prepareStatement(addVaccine)) {
+                for (Map.Entry<String, Integer> entry : entries) {
+                    update.setInt(1, entry.getValue());
+                    update.setString(2, entry.getKey());
+                    update.addBatch();
+                }
+                int[] updateCounts = update.executeBatch();
+                // whatever the update did not find is new
+                for (int i = 0; i < updateCounts.length; i++) {
+                    if (updateCounts[i] == 0) {
+                        insert.setString(1, entries.get(i).getKey());
+                        insert.setInt(2, entries.get(i).getValue());
+                        insert.addBatch();
+                        created.add(entries.get(i).getKey());
+                    }
+                }
+                if (!created.isEmpty()) {
+                    insert.executeBatch();
+                }
+            }
+            appendDoses(con, deltas, DoseLedger.ADDED);
+            List<String> added = new ArrayList<>();
+            deltas.forEach((vaccineName, delta) -> {
+                if (delta > 0) {
+                    added.add(vaccineName);
+                }
+            });
+            promote(con, waiting, Collections.emptyList(), added);
+            return created;
+        });
+    }
+
+    @Override
+    public boolean decreaseDoses(String vaccineName, int num) throws SQLException {
+        String takeDoses = "UPDATE Vaccines SET Doses = Doses - ? WHERE Name = ? AND Doses >= ?";
+        return retryPolicy.inTransaction(con -> {
+            try (PreparedStatement statement = con.prepareStatement(takeDoses)) {
+                statement.setInt(1, num);
+                statement.setString(2, vaccineName);
+                statement.setInt(3, num);
+                if (statement.executeUpdate() != 1) {
+                    return false;
+                }
+            }
+            appendDoses(con, Collections.singletonMap(vaccineName, -num), DoseLedger.REMOVED);
+            return true;
+        });
+    }
+
+    // Dose ledger
+
+    @Override
+    public DoseHistory findDoseHistory(String vaccineName, int snapshots) throws SQLException {
+        ConnectionManager cm = new ConnectionManager(Route.PRIMARY);
+        Connection con = cm.createConnection();
+
+        // both are seeks on the vaccine's entries, however long its history
+        String getChanges = "SELECT Entry_ID, Delta, Reason, Time FROM DoseLedger WHERE Name = ? ORDER BY Entry_ID";
+        String getSnapshots = "SELECT Entry_ID, Doses, Time FROM DoseSnapshots WHERE Name = ? " +
+                "ORDER BY Entry_ID DESC OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY";
+        List<DoseHistory.Change> changes = new ArrayList<>();
+        List<DoseHistory.Snapshot> newestFirst = new ArrayList<>();
+        try {
+            // the entries are read first: if a compaction runs in between, its snapshot is read
+            // below and the entries it covers are dropped, rather than missing from both
+            try (PreparedStatement statement = con.prepareStatement(getChanges)) {
+                statement.setString(1, vaccineName);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        changes.add(new DoseHistory.Change(resultSet.getLong("Entry_ID"), resultSet.getInt("Delta"),
+                                resultSet.getString("Reason"), resultSet.getTimestamp("Time")));
+                    }
+                }
+            }
+            try (PreparedStatement statement = con.prepareStatement(getSnapshots)) {
+                statement.setString(1, vaccineName);
+                statement.setInt(2, snapshots);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        newestFirst.add(new DoseHistory.Snapshot(resultSet.getLong("Entry_ID"),
+                                resultSet.getInt("Doses"), resultSet.getTimestamp("Time")));
+                    }
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        if (changes.isEmpty() && newestFirst.isEmpty()) {
+            return null;
+        }
+        if (!newestFirst.isEmpty()) {
+            long covered = newestFirst.get(0).getEntryId();
+            changes.removeIf(change -> change.getEntryId() <= covered);
+        }
+        Collections.reverse(newestFirst);
+        return new DoseHistory(vaccineName, newestFirst, changes);
+    }
+
+    @Override
+    public int compactDoseLedger() throws SQLException {
+        ConnectionManager cm = new ConnectionManager(Route.PRIMARY);
+        Connection con = cm.createConnection();
+
+        String getNames = "SELECT DISTINCT Name FROM DoseLedger";
+        List<String> names = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(getNames);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                names.add(resultSet.getString("Name"));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        int compacted = 0;
+        // one short transaction per vaccine, so writers of the others are never held up
+        for (String name : names) {
+            compacted += compactDoses(name);
+        }
+        return compacted;
+    }
+
+    private int compactDoses(String vaccineName) throws SQLException {
+        // every ledger entry is written by a transaction that also updates the vaccine's row, so
+        // once this lock on the row is granted those in flight have committed and no new one can
+        // start: the last entry and the count agree until the commit
+        String lockVaccine = "UPDATE Vaccines SET Doses = Doses WHERE Name = ?";
+        String getLast = "SELECT MAX(Entry_ID) AS Last_ID FROM DoseLedger WHERE Name = ?";
+        String addSnapshot = "INSERT INTO DoseSnapshots (Name, Entry_ID, Doses) " +
+                "SELECT Name, ?, Doses FROM Vaccines WHERE Name = ?";
+        String deleteCovered = "DELETE FROM DoseLedger WHERE Name = ? AND Entry_ID <= ?";
+        return retryPolicy.inTransaction(con -> {
+            try (PreparedStatement statement = con.prepareStatement(lockVaccine)) {
+                statement.setString(1, vaccineName);
+                statement.executeUpdate();
+            }
+            long last;
+            try (PreparedStatement statement = con.prepareStatement(getLast)) {
+                statement.setString(1, vaccineName);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    last = resultSet.getLong("Last_ID");
+                    if (resultSet.wasNull()) {
+                        // another compaction got here first
+                        con.rollback();
+                        return 0;
+                    }
+                }
+            }
+            try (PreparedStatement statement = con.prepareStatement(addSnapshot)) {
+                statement.setLong(1, last);
+                statement.setString(2, vaccineName);
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = con.prepareStatement(deleteCovered)) {
+                statement.setString(1, vaccineName);
+                statement.setLong(2, last);
+                return statement.executeUpdate();
+            }
+        });
+    }
+
+    // one ledger entry per vaccine, sent as one batch in the caller's transaction
+    private static void appendDoses(Connection con, Map<String, Integer> deltas, String reason) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(APPEND_DOSES)) {
+            for (Map.Entry<String, Integer> entry : deltas.entrySet()) {
+                statement.setString(1, entry.getKey());
+                statement.setInt(2, entry.getValue());
+                statement.setString(3, reason);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    // Appointments
+
+    @Override
+    public Reservation reserve(Date d, String vaccineName, String patientUsername) throws SQLException {
+        return retryPolicy.inTransaction(con -> {
+            String caregiver = claimSlot(con, d);
+            if (caregiver == null) {
+                con.rollback();
+                return new Reservation(Status.NO_CAREGIVER, 0, null);
+            }
+            if (!takeDose(con, vaccineName)) {
+                con.rollback();
+                return new Reservation(Status.NO_DOSES, 0, null);
+            }
+            int appointmentId = addAppointment(con, d, caregiver, patientUsername, vaccineName);
+            return new Reservation(Status.RESERVED, appointmentId, caregiver);
+        });
+    }
+
+    @Override
+    public Reservation reserve(Date d, String caregiverUsername, String vaccineName, String patientUsername)
+            throws SQLException {
+        return retryPolicy.inTransaction(con -> {
+            // locks only this caregiver's row, so reservers sent to different caregivers never meet
+            if (!takeSlot(con, d, caregiverUsername)) {
+                con.rollback();
+                return new Reservation(Status.NO_CAREGIVER, 0, null);
+            }
+            if (!takeDose(con, vaccineName)) {
+                con.rollback();
+                return new Reservation(Status.NO_DOSES, 0, null);
+            }
+            int appointmentId = addAppointment(con, d, caregiverUsername, patientUsername, vaccineName);
+            return new Reservation(Status.RESERVED, appointmentId, caregiverUsername);
+        });
+    }
+
+    @Override
+    public Map<String, Integer> countAppointmentsByCaregiver() throws SQLException {
+        ConnectionManager cm = new ConnectionManager(Route.PRIMARY);
+        Connection con = cm.createConnection();
+
+        String countAppointments = "SELECT Username, COUNT(*) AS Appointments FROM Appointment GROUP BY Username";
+        Map<String, Integer> counts = new HashMap<>();
+        try (PreparedStatement statement = con.prepareStatement(countAppointments);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                counts.put(resultSet.getString("Username"), resultSet.getInt("Appointments"));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return counts;
+    }
+
+    private static String claimSlot(Connection con, Date d) throws SQLException {
+        if (con.getMetaData().getDatabaseProductName().startsWith("Microsoft SQL Server")) {
+            String caregiver;
+            try (PreparedStatement statement = con.prepareStatement(CLAIM_SLOT)) {
+                statement.setDate(1, d);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next()) {
+                        return null;
+                    }
+                    caregiver = resultSet.getString("Username");
+                    if (resultSet.getInt("Capacity") > 0) {
+                        return caregiver;
+                    }
+                }
+            }
+            dropFull(con, d, caregiver);
+            return caregiver;
+        }
+        // pick a caregiver, then take a slot by key; if another reserver took the last one first, pick again
+        try (PreparedStatement find = con.prepareStatement(FIND_SLOT)) {
+            while (true) {
+                String caregiver;
+                find.setDate(1, d);
+                try (ResultSet resultSet = find.executeQuery()) {
+                    if (!resultSet.next()) {
+                        return null;
+                    }
+                    caregiver = resultSet.getString("Username");
+                }
+                if (takeSlot(con, d, caregiver)) {
+                    return caregiver;
+                }
+            }
+        }
+    }
+
+    // false if the caregiver has no slot left on the date
+    private static boolean takeSlot(Connection con, Date d, String caregiver) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(TAKE_SLOT)) {
+            statement.setDate(1, d);
+            statement.setString(2, caregiver);
+            if (statement.executeUpdate() != 1) {
+                return false;
+            }
+        }
+        dropFull(con, d, caregiver);
+        return true;
+    }
+
+    // a row without capacity would only be skipped by every later reservation
+    private static void dropFull(Connection con, Date d, String caregiver) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(DROP_FULL)) {
+            statement.setDate(1, d);
+            statement.setString(2, caregiver);
+            statement.executeUpdate();
+        }
+    }
+
+    private static boolean takeDose(Connection con, String vaccineName) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(TAKE_DOSE)) {
+            statement.setString(1, vaccineName);
+            if (statement.executeUpdate() != 1) {
+                return false;
+            }
+        }
+        appendDoses(con, Collections.singletonMap(vaccineName, -1), DoseLedger.RESERVED);
+        return true;
+    }
+
+    private static int addAppointment(Connection con, Date d, String caregiver, String patientUsername,
+                                      String vaccineName) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(ADD_APPOINTMENT, Statement.RETURN_GENERATED_KEYS)) {
+            statement.setDate(1, d);
+            statement.setString(2, caregiver);
+            statement.setString(3, patientUsername);
+            statement.setString(4, vaccineName);
+            statement.executeUpdate();
+            try (ResultSet resultSet = statement.getGeneratedKeys()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        }
+    }
+
+    @Override
+    public Appointment findAppointment(int appointmentId) throws SQLException {
+        List<Appointment> appointments =
+                findAppointments(Route.PRIMARY, "Appointment_ID", appointmentId, null, null, 0, 1);
+        return appointments.isEmpty() ? null : appointments.get(0);
+    }
+
+    @Override
+    public List<Appointment> findAppointmentsByPatient(String patientUsername, Date from, Date to, int afterId,
+                                                       int limit) throws SQLException {
+        return findAppointments(Route.READ, "pUsername", patientUsername, from, to, afterId, limit);
+    }
+
+    @Override
+    public List<Appointment> findAppointmentsByCaregiver(String caregiverUsername, Date from, Date to, int afterId,
+                                                         int limit) throws SQLException {
+        return findAppointments(Route.READ, "Username", caregiverUsername, from, to, afterId, limit);
+    }
+
+    private List<Appointment> findAppointments(Route route, String column, Object value, Date from, Date to,
+                                               int afterId, int limit) throws SQLException {
+        ConnectionManager cm = new ConnectionManager(route);
+        Connection con = cm.createConnection();
+
+        // keyset paging: the index on the user column also holds Appointment_ID, so the page is
+        // a seek to the cursor and a short scan, however long the user's history
+        String getAppointments = "SELECT Appointment_ID, Time, Username, pUsername, Name FROM Appointment " +
+                "WHERE " + column + " = ? AND Appointment_ID > ?" +
+                (from == null ? "" : " AND Time >= ?") +
+                (to == null ? "" : " AND Time <= ?") +
+                " ORDER BY Appointment_ID OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY";
+        List<Appointment> appointments = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(getAppointments)) {
+            int parameter = 1;
+            statement.setObject(parameter++, value);
+            statement.setInt(parameter++, afterId);
+            if (from != null) {
+                statement.setDate(parameter++, from);
+            }
+            if (to != null) {
+                statement.setDate(parameter++, to);
+            }
+            statement.setInt(parameter, limit);
+            // the whole page in one round trip
+            statement.setFetchSize(limit);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    appointments.add(new Appointment(resultSet.getInt("Appointment_ID"), resultSet.getDate("Time"),
+                            resultSet.getString("Username"), resultSet.getString("pUsername"),
+                            resultSet.getString("Name")));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return appointments;
+    }
+
+    // Waitlist
+
+    @Override
+    public WaitlistEntry addToWaitlist(Date d, String vaccineName, String patientUsername) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String addWaiting = "INSERT INTO Waitlist (Time, Name, pUsername) VALUES (?, ?, ?)";
+        try (PreparedStatement statement = con.prepareStatement(addWaiting, Statement.RETURN_GENERATED_KEYS)) {
+            statement.setDate(1, d);
+            statement.setString(2, vaccineName);
+            statement.setString(3, patientUsername);
+            statement.executeUpdate();
+            try (ResultSet resultSet = statement.getGeneratedKeys()) {
+                resultSet.next();
+                return new WaitlistEntry(resultSet.getInt(1), d, vaccineName, patientUsername);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public List<WaitlistEntry> findWaitlist() throws SQLException {
+        ConnectionManager cm = new ConnectionManager(Route.PRIMARY);
+        Connection con = cm.createConnection();
+
+        String getWaitlist = "SELECT Waitlist_ID, Time, Name, pUsername FROM Waitlist ORDER BY Waitlist_ID";
+        List<WaitlistEntry> entries = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(getWaitlist);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                entries.add(new WaitlistEntry(resultSet.getInt("Waitlist_ID"), resultSet.getDate("Time"),
+                        resultSet.getString("Name"), resultSet.getString("pUsername")));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return entries;
+    }
+
+    @Override
+    public Reservation promote(WaitlistEntry entry) throws SQLException {
+        return retryPolicy.inTransaction(con -> {
+            Reservation reservation = book(con, entry);
+            if (reservation.getStatus() != Status.RESERVED) {
+                con.rollback();
+            }
+            return reservation;
+        });
+    }
+
+    // the caller rolls back unless it returns RESERVED
+    private static Reservation book(Connection con, WaitlistEntry entry) throws SQLException {
+        // deleting the entry first locks it, so two promoters cannot both book it
+        try (PreparedStatement statement = con.prepareStatement(REMOVE_WAITING)) {
+            statement.setInt(1, entry.getWaitlistId());
+            if (statement.executeUpdate() != 1) {
+                return new Reservation(Status.NOT_WAITING, 0, null);
+            }
+        }
+        String caregiver = claimSlot(con, entry.getTime());
+        if (caregiver == null) {
+            return new Reservation(Status.NO_CAREGIVER, 0, null);
+        }
+        if (!takeDose(con, entry.getVaccineName())) {
+            return new Reservation(Status.NO_DOSES, 0, null);
+        }
+        int appointmentId = addAppointment(con, entry.getTime(), caregiver, entry.getPatientUsername(),
+                entry.getVaccineName());
+        return new Reservation(Status.RESERVED, appointmentId, caregiver);
+    }
+
+    // books the waiting entries in the change's transaction, each behind a savepoint the change does not depend on
+    private static void promote(Connection con, Waiting waiting, Collection<Date> dates,
+                                Collection<String> vaccineNames) throws SQLException {
+        if (dates.isEmpty() && vaccineNames.isEmpty()) {
+            return;
+        }
+        WaitlistPromoter.promote(waiting, dates, vaccineNames, entry -> {
+            Savepoint savepoint = con.setSavepoint();
+            try {
+                Reservation reservation = book(con, entry);
+                if (reservation.getStatus() != Status.RESERVED) {
+                    con.rollback(savepoint);
+                }
+                return reservation;
+            } catch (SQLException e) {
+                try {
+                    con.rollback(savepoint);
+                } catch (SQLException lost) {
+                    // the whole transaction is gone, e.g. to a deadlock: retry it as the error says
+                    throw e;
+                }
+                // the entry stays on the waitlist for the next capacity that frees up
+                e.printStackTrace();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public List<Appointment> cancelAppointments(List<Integer> appointmentIds, String username, boolean caregiver,
+                                                Waiting waiting) throws SQLException {
+        String userColumn = caregiver ? "Username" : "pUsername";
+        return retryPolicy.inTransaction(con -> {
+            List<Appointment> cancelled = new ArrayList<>();
+            for (int start = 0; start < appointmentIds.size(); start += MAX_IN_LIST) {
+                List<Integer> chunk = appointmentIds.subList(start, Math.min(start + MAX_IN_LIST, appointmentIds.size()));
+                String where = "Appointment_ID IN (" + String.join(", ", Collections.nCopies(chunk.size(), "?")) +
+                        ") AND " + userColumn + " = ?";
+                List<Object> parameters = new ArrayList<>(chunk);
+                parameters.add(username);
+                cancelled.addAll(cancelWhere(con, where, parameters, true));
+            }
+            returnDoses(con, cancelled);
+            Set<Date> dates = new LinkedHashSet<>();
+            Set<String> vaccineNames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            for (Appointment appointment : cancelled) {
+                dates.add(appointment.getTime());
+                vaccineNames.add(appointment.getVaccineName());
+            }
+            promote(con, waiting, dates, vaccineNames);
+            return cancelled;
+        });
+    }
+
+    @Override
+    public List<Appointment> cancelCaregiverDay(String caregiverUsername, Date d, Waiting waiting)
+            throws SQLException {
+        return retryPolicy.inTransaction(con -> {
+            List<Appointment> cancelled = cancelWhere(con, "Username = ? AND Time = ?",
+                    Arrays.asList(caregiverUsername, d), false);
+            try (PreparedStatement statement = con.prepareStatement(DELETE_AVAILABILITY)) {
+                statement.setDate(1, d);
+                statement.setString(2, caregiverUsername);
+                statement.executeUpdate();
+            }
+            returnDoses(con, cancelled);
+            // the slots went with the availability, only the doses are freed
+            Set<String> vaccineNames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            for (Appointment appointment : cancelled) {
+                vaccineNames.add(appointment.getVaccineName());
+            }
+            promote(con, waiting, Collections.emptyList(), vaccineNames);
+            return cancelled;
+        });
+    }
+
+    // a fixed number of statements however many appointments the condition matches
+    private static List<Appointment> cancelWhere(Connection con, String where, List<Object> parameters,
+                                                 boolean freeSlots) throws SQLException {
+        List<Appointment> cancelled = new ArrayList<>();
+        // UPDLOCK holds the rows until the delete, so a concurrent cancel cannot return the same doses
+        String lockAppointments = "SELECT Appointment_ID, Time, Username, pUsername, Name FROM Appointment " +
+                "WITH (UPDLOCK, ROWLOCK) WHERE " + where;
+        try (PreparedStatement statement = con.prepareStatement(lockAppointments)) {
+            bind(statement, parameters);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    cancelled.add(new Appointment(resultSet.getInt("Appointment_ID"), resultSet.getDate("Time"),
+                            resultSet.getString("Username"), resultSet.getString("pUsername"),
+                            resultSet.getString("Name")));
+                }
+            }
+        }
+        if (cancelled.isEmpty()) {
+            return cancelled;
+        }
+        if (freeSlots) {
+            returnSlots(con, cancelled);
+        }
+        try (PreparedStatement statement = con.prepareStatement("DELETE FROM Appointment WHERE " + where)) {
+            bind(statement, parameters);
+            statement.executeUpdate();
+        }
+        return cancelled;
+    }
+
+    // one slot back per appointment, a statement or two per caregiver and day
+    private static void returnSlots(Connection con, List<Appointment> cancelled) throws SQLException {
+        Map<Date, Map<String, Integer>> slots = new TreeMap<>();
+        for (Appointment appointment : cancelled) {
+            slots.computeIfAbsent(appointment.getTime(), day -> new TreeMap<>(String.CASE_INSENSITIVE_ORDER))
+                    .merge(appointment.getCaregiverUsername(), 1, Integer::sum);
+        }
+        String addSlots = "UPDATE Availabilities SET Capacity = Capacity + ? WHERE Time = ? AND Username = ?";
+        String addAvailability = "INSERT INTO Availabilities (Time, Username, Capacity) SELECT ?, ?, ? " +
+                "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WITH (UPDLOCK, HOLDLOCK) WHERE Time = ? AND Username = ?)";
+        try (PreparedStatement update = con.prepareStatement(addSlots);
+             PreparedStatement insert = con.prepareStatement(addAvailability)) {
+            for (Map.Entry<Date, Map<String, Integer>> day : slots.entrySet()) {
+                for (Map.Entry<String, Integer> caregiver : day.getValue().entrySet()) {
+                    update.setInt(1, caregiver.getValue());
+                    update.setDate(2, day.getKey());
+                    update.setString(3, caregiver.getKey());
+                    if (update.executeUpdate() == 1) {
+                        continue;
+                    }
+                    insert.setDate(1, day.getKey());
+                    insert.setString(2, caregiver.getKey());
+                    insert.setInt(3, caregiver.getValue());
+                    insert.setDate(4, day.getKey());
+                    insert.setString(5, caregiver.getKey());
+                    // someone else gave a slot back in between and created the row, add to it
+                    if (insert.executeUpdate() == 0) {
+                        update.executeUpdate();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void bind(PreparedStatement statement, List<Object> parameters) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            statement.setObject(i + 1, parameters.get(i));
+        }
+    }
+
+    // one relative update per vaccine, sent as one batch
+    private static void returnDoses(Connection con, List<Appointment> cancelled) throws SQLException {
+        if (cancelled.isEmpty()) {
+            return;
+        }
+        Map<String, Integer> doses = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Appointment appointment : cancelled) {
+            doses.merge(appointment.getVaccineName(), 1, Integer::sum);
+        }
+        try (PreparedStatement statement = con.prepareStatement("UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ?")) {
+            for (Map.Entry<String, Integer> entry : doses.entrySet()) {
+                statement.setInt(1, entry.getValue());
+                statement.setString(2, entry.getKey());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        appendDoses(con, doses, DoseLedger.CANCELLED);
+    }
+}
@@ -0,0 +1,64 @@
+package scheduler.db;
+
+import scheduler.metrics.Metrics;
+import scheduler.metrics.OperationMetrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wraps a SchedulerRepository so every call is counted in Metrics under the method's name: how
+ * long it took, whether it threw, and for the find and count methods how many rows came back.
+ */
+final class MeteredRepository implements InvocationHandler {
+
+    private final SchedulerRepository target;
+    // looked up once per method rather than by name on every call
+    private final Map<Method, OperationMetrics> metrics = new ConcurrentHashMap<>();
+
+    private MeteredRepository(SchedulerRepository target) {
+        this.target = target;
+    }
+
+    static SchedulerRepository wrap(SchedulerRepository repository) {
+        if (repository == null || Proxy.isProxyClass(repository.getClass())) {
+            return repository;
+        }
+        return (SchedulerRepository) Proxy.newProxyInstance(SchedulerRepository.class.getClassLoader(),
+                new Class<?>[]{SchedulerRepository.class}, new MeteredRepository(repository));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(target, args);
+        }
+        OperationMetrics operation = metrics.computeIfAbsent(method, m -> Metrics.repository(m.getName()));
+        long start = System.nanoTime();
+        try {
+            Object result = method.invoke(target, args);
+            operation.rows(rows(method, result));
+            return result;
+        } catch (InvocationTargetException e) {
+            operation.error();
+            throw e.getCause();
+        } finally {
+            operation.record(System.nanoTime() - start);
+        }
+    }
+
+    private static long rows(Method method, Object result) {
+        if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+        if (result instanceof Map) {
+            return ((Map<?, ?>) result).size();
+        }
+        return result != null && method.getName().startsWith("find") ? 1 : 0;
+    }
+}
@@ -0,0 +1,107 @@
+package scheduler.db;
+
+/**
+ * A point-in-time snapshot of {@link ConnectionPool} counters.
+ */
+public class PoolStats {
+    private final int active;
+    private final int idle;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowCount;
+    private final int waiting;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+    private final long timeoutCount;
+    private final long createdCount;
+    private final long evictedCount;
+    private final long leakCount;
+
+    PoolStats(int active, int idle, int minSize, int maxSize, long borrowCount, int waiting,
+              long totalWaitNanos, long maxWaitNanos, long timeoutCount, long createdCount,
+              long evictedCount, long leakCount) {
+        this.active = active;
+        this.idle = idle;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowCount = borrowCount;
+        this.waiting = waiting;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.timeoutCount = timeoutCount;
+        this.createdCount = createdCount;
+        this.evictedCount = evictedCount;
+        this.leakCount = leakCount;
+    }
+
+    // Getters
+    public int getActive() {
+        return active;
+    }
+
+    public int getIdle() {
+        return idle;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getBorrowCount() {
+        return borrowCount;
+    }
+
+    public int getWaiting() {
+        return waiting;
+    }
+
+    public long getTotalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    public double getAverageWaitMillis() {
+        return borrowCount == 0 ? 0 : totalWaitNanos / 1e6 / borrowCount;
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public long getCreatedCount() {
+        return createdCount;
+    }
+
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    public long getLeakCount() {
+        return leakCount;
+    }
+
+    @Override
+    public String toString() {
+        return "PoolStats{" +
+                "active=" + active +
+                ", idle=" + idle +
+                ", min=" + minSize +
+                ", max=" + maxSize +
+                ", borrows=" + borrowCount +
+                ", waiting=" + waiting +
+                ", avgWaitMs=" + String.format("%.3f", getAverageWaitMillis()) +
+                ", maxWaitMs=" + String.format("%.3f", maxWaitNanos / 1e6) +
+                ", timeouts=" + timeoutCount +
+                ", created=" + createdCount +
+                ", evicted=" + evictedCount +
+                ", leaks=" + leakCount +
+                '}';
+    }
+}
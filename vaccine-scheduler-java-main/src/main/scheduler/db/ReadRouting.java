@@ -0,0 +1,130 @@
+package scheduler.db;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a read that may be served by the read replica (ConnectionManager.Route.READ)
+ * actually can be, without showing a user a replica that has not caught up with their own
+ * changes. Each command runs between begin() and end() with the username of whoever is logged
+ * in. Borrowing a connection to write notes that user, and for ReadStalenessMs after that (5000
+ * by default) their reads go to the primary, as do any reads later in the same command. So
+ * show_appointments right after reserve lists the new appointment; other users may see it up to
+ * the replica's lag later. ReadStalenessMs should be at least that lag.
+ *
+ * Threads outside a command, such as the cache loaders, read from the primary anyway.
+ */
+public final class ReadRouting {
+
+    private static final long DEFAULT_STALENESS_MILLIS = 5_000;
+    // recent writers are forgotten once there are more than this and their bound has passed
+    private static final int PRUNE_THRESHOLD = 10_000;
+
+    private static final long stalenessNanos = envMillis("ReadStalenessMs", DEFAULT_STALENESS_MILLIS) * 1_000_000;
+
+    // lower-cased username -> System.nanoTime() of their latest write
+    private static final Map<String, Long> lastWrites = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Command> current = new ThreadLocal<>();
+
+    private static final AtomicLong replicaReads = new AtomicLong();
+    private static final AtomicLong primaryReads = new AtomicLong();
+    private static final AtomicLong fallbacks = new AtomicLong();
+
+    private ReadRouting() {
+    }
+
+    private static final class Command {
+        private final String username;
+        private boolean wrote = false;
+
+        private Command(String username) {
+            this.username = username;
+        }
+    }
+
+    // until end(), reads of this thread are routed for the user, who may be null if nobody is logged in
+    public static void begin(String username) {
+        current.set(new Command(username == null ? null : username.toLowerCase(Locale.ROOT)));
+    }
+
+    public static void end() {
+        current.remove();
+    }
+
+    // called by ConnectionManager when a connection to write with is borrowed
+    static void wrote() {
+        Command command = current.get();
+        if (command == null) {
+            return;
+        }
+        command.wrote = true;
+        if (command.username != null) {
+            long now = System.nanoTime();
+            lastWrites.put(command.username, now);
+            if (lastWrites.size() > PRUNE_THRESHOLD) {
+                lastWrites.values().removeIf(at -> now - at >= stalenessNanos);
+            }
+        }
+    }
+
+    // whether the read about to be made may go to the replica, counted either way
+    static boolean mayUseReplica() {
+        boolean replica = isFresh();
+        (replica ? replicaReads : primaryReads).incrementAndGet();
+        return replica;
+    }
+
+    // the replica could not be reached, so a read mayUseReplica() allowed went to the primary
+    static void fellBack() {
+        replicaReads.decrementAndGet();
+        primaryReads.incrementAndGet();
+        fallbacks.incrementAndGet();
+    }
+
+    private static boolean isFresh() {
+        Command command = current.get();
+        if (command == null || command.wrote) {
+            return false;
+        }
+        if (command.username == null) {
+            return true;
+        }
+        Long at = lastWrites.get(command.username);
+        if (at == null) {
+            return true;
+        }
+        if (System.nanoTime() - at < stalenessNanos) {
+            return false;
+        }
+        lastWrites.remove(command.username, at);
+        return true;
+    }
+
+    private static long envMillis(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    // Getters
+    public static long getReplicaReads() {
+        return replicaReads.get();
+    }
+
+    public static long getPrimaryReads() {
+        return primaryReads.get();
+    }
+
+    public static long getFallbacks() {
+        return fallbacks.get();
+    }
+}
@@ -0,0 +1,64 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Tags the transactions a thread runs with the ID of the journaled intent it is replaying, see
+ * scheduler.journal.JournalDrainer. RetryPolicy inserts the ID into Journal_Replays in the same
+ * transaction as the intent's writes, so an intent replayed a second time, e.g. after a crash
+ * between the commit and the journal's checkpoint, fails with AlreadyReplayedException instead
+ * of being applied twice.
+ *
+ * Transactions that roll back, such as a reservation that found no caregiver, take the mark with
+ * them. The in-memory store keeps no marks, it does not outlive the process anyway.
+ */
+public final class ReplayMarker {
+
+    private static final String MARK = "INSERT INTO Journal_Replays (Intent_ID) VALUES (?)";
+
+    private static final ThreadLocal<String> current = new ThreadLocal<>();
+
+    private ReplayMarker() {
+    }
+
+    // until end(), every transaction of this thread is marked with the intent
+    public static void begin(String intentId) {
+        current.set(intentId);
+    }
+
+    public static void end() {
+        current.remove();
+    }
+
+    public static boolean isReplaying() {
+        return current.get() != null;
+    }
+
+    // called by RetryPolicy at the start of each transaction
+    static void mark(Connection con) throws SQLException {
+        String intentId = current.get();
+        if (intentId == null) {
+            return;
+        }
+        try (PreparedStatement statement = con.prepareStatement(MARK)) {
+            statement.setString(1, intentId);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            // class 23 is an integrity violation, here the primary key
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                throw new AlreadyReplayedException(intentId, e);
+            }
+            throw e;
+        }
+    }
+
+    public static class AlreadyReplayedException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        public AlreadyReplayedException(String intentId, SQLException cause) {
+            super("Intent " + intentId + " was already replayed", cause.getSQLState(), cause);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package scheduler.db;
+
+import java.util.Locale;
+
+/**
+ * Holds the process-wide SchedulerRepository. The SchedulerStore environment variable picks the
+ * implementation on first use: "jdbc" (the default) for the database ConnectionManager points at,
+ * or "memory" for an in-process store that starts empty and is lost on exit.
+ *
+ * Whichever it is, every call to it is recorded in Metrics.
+ */
+public final class Repositories {
+
+    private static SchedulerRepository instance = null;
+
+    private Repositories() {
+    }
+
+    public static synchronized SchedulerRepository get() {
+        if (instance == null) {
+            String store = System.getenv("SchedulerStore");
+            instance = MeteredRepository.wrap(create(store == null ? "jdbc" : store.trim()));
+        }
+        return instance;
+    }
+
+    // replaces the repository, e.g. for benchmarks; call it before any command runs
+    public static synchronized void configure(SchedulerRepository repository) {
+        instance = MeteredRepository.wrap(repository);
+    }
+
+    public static SchedulerRepository create(String store) {
+        switch (store.toLowerCase(Locale.ROOT)) {
+            case "jdbc":
+                return new JdbcSchedulerRepository();
+            case "memory":
+                return new InMemorySchedulerRepository();
+            default:
+                throw new IllegalArgumentException("Unknown SchedulerStore: " + store);
+        }
+    }
+}
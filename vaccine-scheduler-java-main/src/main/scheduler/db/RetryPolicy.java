@@ -0,0 +1,108 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a unit of work in a single transaction on a pooled connection, retrying a bounded number
+ * of times when SQL Server picks the transaction as a deadlock victim or a lock wait times out.
+ * While a journaled intent is being replayed each transaction is also marked, see ReplayMarker.
+ */
+public class RetryPolicy {
+
+    // SQL Server error numbers that mean "nothing was wrong with the statement, try again"
+    private static final int DEADLOCK_VICTIM = 1205;
+    private static final int LOCK_TIMEOUT = 1222;
+    private static final String SERIALIZATION_FAILURE = "40001";
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 10);
+
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong exhaustedCount = new AtomicLong();
+
+    public RetryPolicy(int maxAttempts, long baseBackoffMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+    }
+
+    /**
+     * A unit of work that runs inside a transaction. Returning normally commits; work that wants
+     * to abort without an error should call rollback() on the connection before returning.
+     */
+    public interface Work<T> {
+        T execute(Connection con) throws SQLException;
+    }
+
+    public <T> T inTransaction(Work<T> work) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try {
+                con.setAutoCommit(false);
+                ReplayMarker.mark(con);
+                T result = work.execute(con);
+                con.commit();
+                return result;
+            } catch (SQLException e) {
+                rollbackQuietly(con);
+                if (!isRetryable(e)) {
+                    throw e;
+                }
+                if (attempt >= maxAttempts) {
+                    exhaustedCount.incrementAndGet();
+                    throw e;
+                }
+                retryCount.incrementAndGet();
+            } finally {
+                // the pool restores auto-commit before handing the connection out again
+                cm.closeConnection();
+            }
+            backoff(attempt);
+        }
+    }
+
+    public static boolean isRetryable(SQLException e) {
+        for (SQLException cur = e; cur != null; cur = cur.getNextException()) {
+            if (cur.getErrorCode() == DEADLOCK_VICTIM || cur.getErrorCode() == LOCK_TIMEOUT
+                    || SERIALIZATION_FAILURE.equals(cur.getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void backoff(int attempt) throws SQLException {
+        // exponential backoff with full jitter so the losers of a deadlock do not collide again
+        long cap = baseBackoffMillis << Math.min(attempt - 1, 6);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while retrying transaction", e);
+        }
+    }
+
+    private static void rollbackQuietly(Connection con) {
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            // the connection is probably broken, the pool will discard it
+        }
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    public long getExhaustedCount() {
+        return exhaustedCount.get();
+    }
+}
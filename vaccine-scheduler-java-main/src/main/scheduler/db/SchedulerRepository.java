@@ -0,0 +1,216 @@
+package scheduler.db;
+
+import scheduler.model.Appointment;
+import scheduler.model.Caregiver;
+import scheduler.model.CaregiverSchedule;
+import scheduler.model.DoseHistory;
+import scheduler.model.Patient;
+import scheduler.model.ReservationEngine;
+import scheduler.model.WaitlistEntry;
+import scheduler.util.PasswordHasher;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything the scheduler stores: patients, caregivers, availabilities, vaccines and
+ * appointments. Usernames and vaccine names compare case-insensitively, as they do in the
+ * SQL Server tables.
+ *
+ * Every change to a vaccine's doses also appends an entry to its dose ledger, in the same
+ * transaction, see DoseLedger.
+ *
+ * Each method is atomic. Inserting a key that already exists or a row that references a missing
+ * user fails with an SQLException whose SQLState is "23000".
+ *
+ * See {@link Repositories} for how the implementation is chosen.
+ */
+public interface SchedulerRepository {
+
+    // Patients
+
+    // inserts all of them or none
+    void savePatients(List<Patient> patients) throws SQLException;
+
+    // the stored patient, with the salt, hash and hash parameters it was saved with, or null
+    Patient findPatient(String username) throws SQLException;
+
+    boolean updatePatientHash(String username, byte[] salt, byte[] hash, PasswordHasher.Params params)
+            throws SQLException;
+
+    // which of the given usernames are taken, spelled as stored
+    Set<String> existingPatients(Collection<String> usernames) throws SQLException;
+
+    // every patient's username, e.g. to warm the UsernameIndex
+    List<String> findPatientUsernames() throws SQLException;
+
+    // Caregivers
+
+    void saveCaregivers(List<Caregiver> caregivers) throws SQLException;
+
+    Caregiver findCaregiver(String username) throws SQLException;
+
+    boolean updateCaregiverHash(String username, byte[] salt, byte[] hash, PasswordHasher.Params params)
+            throws SQLException;
+
+    Set<String> existingCaregivers(Collection<String> usernames) throws SQLException;
+
+    List<String> findCaregiverUsernames() throws SQLException;
+
+    // Availabilities
+
+    // An availability is a caregiver's free slots on a date; each appointment takes one slot.
+
+    // fails if the caregiver is already available on that date
+    void addAvailability(Date d, String caregiverUsername, int slots) throws SQLException;
+
+    /**
+     * Adds many availabilities at once, each with the given number of slots, skipping dates the
+     * caregiver is already available on, and offers the new slots to the waitlist in the same
+     * transaction. Returns the positions in dates that were added.
+     */
+    BitSet addAvailabilities(String caregiverUsername, List<Date> dates, int slots, Waiting waiting)
+            throws SQLException;
+
+    // free slots of each caregiver with any left on that date, ordered by username
+    Map<String, Integer> findAvailableCaregivers(Date d) throws SQLException;
+
+    // ordered by date, then caregiver
+    List<CaregiverSchedule.Slot> findAvailabilities(Date from, Date to, int offset, int limit) throws SQLException;
+
+    // free slots per date, over all caregivers, for the dates that have any
+    Map<Date, Integer> countFreeSlots(Date from, Date to) throws SQLException;
+
+    // Vaccines
+
+    Map<String, Integer> findVaccines() throws SQLException;
+
+    // null if there is no such vaccine
+    Integer findDoses(String vaccineName) throws SQLException;
+
+    void addVaccine(String vaccineName, int doses) throws SQLException;
+
+    // false if there is no such vaccine
+    boolean increaseDoses(String vaccineName, int num) throws SQLException;
+
+    /**
+     * Adds doses to many vaccines at once, creating the ones that do not exist, and offers the
+     * doses to the waitlist in the same transaction. Returns the names that were created.
+     */
+    Set<String> addDoses(Map<String, Integer> deltas, Waiting waiting) throws SQLException;
+
+    // false if there are fewer than num doses or no such vaccine
+    boolean decreaseDoses(String vaccineName, int num) throws SQLException;
+
+    // Dose ledger
+
+    /**
+     * The last snapshots of the vaccine's doses, at most the given number and oldest first, and the
+     * ledger entries after the last of them, in order. Null if the vaccine has no snapshot or entry.
+     */
+    DoseHistory findDoseHistory(String vaccineName, int snapshots) throws SQLException;
+
+    /**
+     * Snapshots the doses of every vaccine with ledger entries and deletes the entries the
+     * snapshot covers. Returns the number of entries deleted.
+     */
+    int compactDoseLedger() throws SQLException;
+
+    // Appointments
+
+    /**
+     * Claims a slot of the first caregiver with one free on the date, takes one dose and records the
+     * appointment, or does none of it. Returns RESERVED, NO_CAREGIVER or NO_DOSES; a missing
+     * vaccine reports NO_DOSES.
+     */
+    ReservationEngine.Reservation reserve(Date d, String vaccineName, String patientUsername) throws SQLException;
+
+    /**
+     * Like reserve, but only with the given caregiver: NO_CAREGIVER if they have no slot (or no
+     * longer have one) on that date.
+     */
+    ReservationEngine.Reservation reserve(Date d, String caregiverUsername, String vaccineName, String patientUsername)
+            throws SQLException;
+
+    // number of appointments per caregiver, caregivers without any are left out
+    Map<String, Integer> countAppointmentsByCaregiver() throws SQLException;
+
+    // null if there is no such appointment
+    Appointment findAppointment(int appointmentId) throws SQLException;
+
+    /**
+     * One page of the patient's appointments, ordered by appointment ID: at most limit of those
+     * with an ID above afterId and a date between from and to. Either date may be null for no
+     * bound, afterId 0 starts from the beginning.
+     */
+    List<Appointment> findAppointmentsByPatient(String patientUsername, Date from, Date to, int afterId, int limit)
+            throws SQLException;
+
+    List<Appointment> findAppointmentsByCaregiver(String caregiverUsername, Date from, Date to, int afterId, int limit)
+            throws SQLException;
+
+    /**
+     * Cancels those of the appointments the user is the patient (or, if caregiver is true, the
+     * caregiver) of, all in one transaction: deletes them, gives each caregiver the slot back,
+     * gives their doses back and offers both to the waitlist. Returns the appointments that were
+     * cancelled; the other IDs do not exist or belong to someone else.
+     */
+    List<Appointment> cancelAppointments(List<Integer> appointmentIds, String username, boolean caregiver,
+                                         Waiting waiting) throws SQLException;
+
+    /**
+     * Cancels all of the caregiver's appointments on the date and removes their availability
+     * that day, in one transaction, giving the doses back and offering them to the waitlist.
+     * Returns the cancelled appointments.
+     */
+    List<Appointment> cancelCaregiverDay(String caregiverUsername, Date d, Waiting waiting) throws SQLException;
+
+    // Waitlist
+
+    // fails if the patient is already waiting for that date and vaccine
+    WaitlistEntry addToWaitlist(Date d, String vaccineName, String patientUsername) throws SQLException;
+
+    // everyone waiting, ordered by waitlist ID
+    List<WaitlistEntry> findWaitlist() throws SQLException;
+
+    /**
+     * Books the entry's patient like reserve and takes them off the waitlist, or does none of it.
+     * Returns RESERVED, NO_CAREGIVER, NO_DOSES, or NOT_WAITING if the entry is already gone.
+     */
+    ReservationEngine.Reservation promote(WaitlistEntry entry) throws SQLException;
+
+    /**
+     * Who a change that frees or adds capacity offers it to, see Waitlist.Offer. Once the change is
+     * made, the repository asks find() for the entries the freed dates and vaccines can serve and
+     * books them in order, like promote, each on its own: one that cannot be booked is undone
+     * without undoing the change or the entries booked before it. settled() is then told what
+     * became of the entries. A transaction that is retried asks and tells again, so only what the
+     * last call reported was committed.
+     */
+    interface Waiting {
+
+        // for changes nobody is waiting on, e.g. filling a benchmark database
+        Waiting NONE = new Waiting() {
+            @Override
+            public List<WaitlistEntry> find(Collection<Date> dates, Collection<String> vaccineNames) {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void settled(Map<WaitlistEntry, ReservationEngine.Reservation> outcomes) {
+            }
+        };
+
+        // entries waiting for one of the dates or one of the vaccines, longest waiting first
+        List<WaitlistEntry> find(Collection<Date> dates, Collection<String> vaccineNames);
+
+        // the entries that were booked (RESERVED) or found already gone (NOT_WAITING), in order
+        void settled(Map<WaitlistEntry, ReservationEngine.Reservation> outcomes);
+    }
+}
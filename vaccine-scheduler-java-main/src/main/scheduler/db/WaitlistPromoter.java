@@ -0,0 +1,63 @@
+package scheduler.db;
+
+import scheduler.db.SchedulerRepository.Waiting;
+import scheduler.model.ReservationEngine.Reservation;
+import scheduler.model.WaitlistEntry;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The promotion loop both repositories run at the end of a change that freed or added capacity,
+ * see SchedulerRepository.Waiting. They differ only in how one entry is booked.
+ */
+final class WaitlistPromoter {
+
+    interface Booker {
+        /**
+         * Books the entry like SchedulerRepository.promote, leaving no trace unless it returns
+         * RESERVED. Returns null if it failed with an error that was undone, so the loop goes on.
+         */
+        Reservation book(WaitlistEntry entry) throws SQLException;
+    }
+
+    private WaitlistPromoter() {
+    }
+
+    static void promote(Waiting waiting, Collection<Date> dates, Collection<String> vaccineNames, Booker booker)
+            throws SQLException {
+        Map<WaitlistEntry, Reservation> outcomes = new LinkedHashMap<>();
+        List<WaitlistEntry> candidates = waiting.find(dates, vaccineNames);
+        // capacity only shrinks while the loop books, so a date or vaccine that ran out stays out
+        Set<Date> noCaregiver = new HashSet<>();
+        Set<String> noDoses = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (WaitlistEntry entry : candidates) {
+            if (noCaregiver.contains(entry.getTime()) || noDoses.contains(entry.getVaccineName())) {
+                continue;
+            }
+            Reservation reservation = booker.book(entry);
+            if (reservation == null) {
+                continue;
+            }
+            switch (reservation.getStatus()) {
+                case RESERVED:
+                case NOT_WAITING:
+                    outcomes.put(entry, reservation);
+                    break;
+                case NO_CAREGIVER:
+                    noCaregiver.add(entry.getTime());
+                    break;
+                default:
+                    noDoses.add(entry.getVaccineName());
+            }
+        }
+        waiting.settled(outcomes);
+    }
+}
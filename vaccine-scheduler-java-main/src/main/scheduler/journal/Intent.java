@@ -0,0 +1,403 @@
+package scheduler.journal;
+
+import scheduler.model.Appointment;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.ReservationEngine;
+import scheduler.model.VaccineInventoryCache;
+import scheduler.model.Waitlist;
+import scheduler.util.PasswordHasher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A change a user asked for that the OfflineQueue could not make right away: what to do, and
+ * everything needed to do it later. Intents are stored in the Journal in the form encode() makes,
+ * and apply() makes the change through the same model methods the commands use.
+ */
+public abstract class Intent {
+
+    // bumped whenever the encoding changes, records of another version are not replayed
+    private static final byte VERSION = 1;
+
+    private static final byte CREATE_PATIENTS = 1;
+    private static final byte CREATE_CAREGIVERS = 2;
+    private static final byte ADD_DOSES = 3;
+    private static final byte UPLOAD_AVAILABILITY = 4;
+    private static final byte RESERVE = 5;
+    private static final byte CANCEL = 6;
+
+    private final byte type;
+    // who apply() booked from the waitlist with the capacity it freed or added
+    List<Waitlist.Promotion> promoted = Collections.emptyList();
+
+    private Intent(byte type) {
+        this.type = type;
+    }
+
+    public static Intent createPatients(List<Patient> patients) {
+        List<User> users = new ArrayList<>();
+        for (Patient patient : patients) {
+            users.add(new User(patient.getUsername(), patient.getSalt(), patient.getHash(), patient.getHashParams()));
+        }
+        return new CreateUsers(true, users);
+    }
+
+    public static Intent createCaregivers(List<Caregiver> caregivers) {
+        List<User> users = new ArrayList<>();
+        for (Caregiver caregiver : caregivers) {
+            users.add(new User(caregiver.getUsername(), caregiver.getSalt(), caregiver.getHash(),
+                    caregiver.getHashParams()));
+        }
+        return new CreateUsers(false, users);
+    }
+
+    public static Intent addDoses(Map<String, Integer> deltas) {
+        return new AddDoses(deltas);
+    }
+
+    public static Intent uploadAvailability(String caregiverUsername, List<Date> dates, int slots) {
+        return new UploadAvailability(caregiverUsername, dates, slots);
+    }
+
+    public static Intent reserve(Date d, String vaccineName, String patientUsername) {
+        return new Reserve(d, vaccineName, patientUsername);
+    }
+
+    public static Intent cancel(List<Integer> appointmentIds, String username, boolean caregiver) {
+        return new Cancel(appointmentIds, username, caregiver);
+    }
+
+    // makes the change, returning what came of it for the log
+    public abstract String apply() throws SQLException;
+
+    /**
+     * The waitlisted patients apply() booked in its transaction with the capacity it freed or
+     * added, as the command does when it runs interactively.
+     */
+    public List<Waitlist.Promotion> getPromoted() {
+        return promoted;
+    }
+
+    // the command it came from, for messages
+    public abstract String describe();
+
+    abstract void write(DataOutputStream out) throws IOException;
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeByte(type);
+            write(out);
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Intent decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown intent version " + version);
+        }
+        byte type = in.readByte();
+        switch (type) {
+            case CREATE_PATIENTS:
+            case CREATE_CAREGIVERS:
+                return CreateUsers.read(type == CREATE_PATIENTS, in);
+            case ADD_DOSES:
+                return AddDoses.read(in);
+            case UPLOAD_AVAILABILITY:
+                return UploadAvailability.read(in);
+            case RESERVE:
+                return Reserve.read(in);
+            case CANCEL:
+                return Cancel.read(in);
+            default:
+                throw new IOException("Unknown intent type " + type);
+        }
+    }
+
+    private static final class User {
+        private final String username;
+        private final byte[] salt;
+        private final byte[] hash;
+        private final PasswordHasher.Params params;
+
+        private User(String username, byte[] salt, byte[] hash, PasswordHasher.Params params) {
+            this.username = username;
+            this.salt = salt;
+            this.hash = hash;
+            this.params = params;
+        }
+    }
+
+    private static final class CreateUsers extends Intent {
+        private final boolean patients;
+        private final List<User> users;
+
+        private CreateUsers(boolean patients, List<User> users) {
+            super(patients ? CREATE_PATIENTS : CREATE_CAREGIVERS);
+            this.patients = patients;
+            this.users = users;
+        }
+
+        @Override
+        public String apply() throws SQLException {
+            if (patients) {
+                List<Patient> created = new ArrayList<>();
+                for (User user : users) {
+                    created.add(new Patient.PatientBuilder(user.username, user.salt, user.hash, user.params).build());
+                }
+                Patient.saveAllToDB(created);
+            } else {
+                List<Caregiver> created = new ArrayList<>();
+                for (User user : users) {
+                    created.add(new Caregiver.CaregiverBuilder(user.username, user.salt, user.hash, user.params).build());
+                }
+                Caregiver.saveAllToDB(created);
+            }
+            return "Created " + users.size() + " user(s)";
+        }
+
+        @Override
+        public String describe() {
+            String command = patients ? "create_patient" : "create_caregiver";
+            return users.size() == 1 ? command + " " + users.get(0).username : command + " x" + users.size();
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(users.size());
+            for (User user : users) {
+                out.writeUTF(user.username);
+                writeBytes(out, user.salt);
+                writeBytes(out, user.hash);
+                out.writeUTF(user.params.encode());
+            }
+        }
+
+        private static CreateUsers read(boolean patients, DataInputStream in) throws IOException {
+            int count = in.readInt();
+            List<User> users = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                users.add(new User(in.readUTF(), readBytes(in), readBytes(in), PasswordHasher.Params.decode(in.readUTF())));
+            }
+            return new CreateUsers(patients, users);
+        }
+    }
+
+    private static final class AddDoses extends Intent {
+        private final Map<String, Integer> deltas;
+
+        private AddDoses(Map<String, Integer> deltas) {
+            super(ADD_DOSES);
+            this.deltas = deltas;
+        }
+
+        @Override
+        public String apply() throws SQLException {
+            Waitlist.Offer offer = Waitlist.getInstance().offer();
+            VaccineInventoryCache.getInstance().addDoses(deltas, offer);
+            promoted = offer.committed();
+            return "Doses updated!";
+        }
+
+        @Override
+        public String describe() {
+            StringBuilder sb = new StringBuilder("add_doses");
+            deltas.forEach((vaccineName, delta) -> sb.append(' ').append(vaccineName).append(' ').append(delta));
+            return sb.toString();
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(deltas.size());
+            for (Map.Entry<String, Integer> entry : deltas.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        }
+
+        private static AddDoses read(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            Map<String, Integer> deltas = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                deltas.put(in.readUTF(), in.readInt());
+            }
+            return new AddDoses(deltas);
+        }
+    }
+
+    private static final class UploadAvailability extends Intent {
+        private final String caregiverUsername;
+        private final List<Date> dates;
+        private final int slots;
+
+        private UploadAvailability(String caregiverUsername, List<Date> dates, int slots) {
+            super(UPLOAD_AVAILABILITY);
+            this.caregiverUsername = caregiverUsername;
+            this.dates = dates;
+            this.slots = slots;
+        }
+
+        @Override
+        public String apply() throws SQLException {
+            Waitlist.Offer offer = Waitlist.getInstance().offer();
+            // dates that were uploaded in the meantime are skipped, not an error
+            Caregiver.UploadReport report = Caregiver.uploadAvailability(caregiverUsername, dates, slots, offer);
+            promoted = offer.committed();
+            return "Availability uploaded! " + report;
+        }
+
+        @Override
+        public String describe() {
+            String range = dates.size() == 1 ? dates.get(0).toString()
+                    : dates.get(0) + " .. " + dates.get(dates.size() - 1) + " (" + dates.size() + " days)";
+            return "upload_availability " + range + " --slots " + slots + " for " + caregiverUsername;
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(caregiverUsername);
+            out.writeInt(slots);
+            out.writeInt(dates.size());
+            for (Date d : dates) {
+                out.writeLong(d.toLocalDate().toEpochDay());
+            }
+        }
+
+        private static UploadAvailability read(DataInputStream in) throws IOException {
+            String caregiverUsername = in.readUTF();
+            int slots = in.readInt();
+            int count = in.readInt();
+            List<Date> dates = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                dates.add(readDate(in.readLong()));
+            }
+            return new UploadAvailability(caregiverUsername, dates, slots);
+        }
+    }
+
+    private static final class Reserve extends Intent {
+        private final Date d;
+        private final String vaccineName;
+        private final String patientUsername;
+
+        private Reserve(Date d, String vaccineName, String patientUsername) {
+            super(RESERVE);
+            this.d = d;
+            this.vaccineName = vaccineName;
+            this.patientUsername = patientUsername;
+        }
+
+        @Override
+        public String apply() throws SQLException {
+            ReservationEngine.Reservation reservation =
+                    new ReservationEngine().reserve(d, vaccineName, patientUsername);
+            if (reservation.getStatus() != ReservationEngine.Status.RESERVED) {
+                return "Not reserved: " + reservation.getStatus();
+            }
+            return "Appointment_ID: " + reservation.getAppointmentId()
+                    + " Caregiver username: " + reservation.getCaregiverUsername();
+        }
+
+        @Override
+        public String describe() {
+            return "reserve " + d + " " + vaccineName + " for " + patientUsername;
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(d.toLocalDate().toEpochDay());
+            out.writeUTF(vaccineName);
+            out.writeUTF(patientUsername);
+        }
+
+        private static Reserve read(DataInputStream in) throws IOException {
+            return new Reserve(readDate(in.readLong()), in.readUTF(), in.readUTF());
+        }
+    }
+
+    private static final class Cancel extends Intent {
+        private final List<Integer> appointmentIds;
+        private final String username;
+        private final boolean caregiver;
+
+        private Cancel(List<Integer> appointmentIds, String username, boolean caregiver) {
+            super(CANCEL);
+            this.appointmentIds = appointmentIds;
+            this.username = username;
+            this.caregiver = caregiver;
+        }
+
+        @Override
+        public String apply() throws SQLException {
+            Waitlist.Offer offer = Waitlist.getInstance().offer();
+            // appointments cancelled in the meantime are simply not found again
+            List<Appointment> cancelled = Appointment.cancel(appointmentIds, username, caregiver, offer);
+            promoted = offer.committed();
+            return "Cancelled " + cancelled.size() + " of " + appointmentIds.size() + " appointment(s)";
+        }
+
+        @Override
+        public String describe() {
+            StringBuilder sb = new StringBuilder("cancel");
+            for (int appointmentId : appointmentIds) {
+                sb.append(' ').append(appointmentId);
+            }
+            return sb.append(" for ").append(username).toString();
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(username);
+            out.writeBoolean(caregiver);
+            out.writeInt(appointmentIds.size());
+            for (int appointmentId : appointmentIds) {
+                out.writeInt(appointmentId);
+            }
+        }
+
+        private static Cancel read(DataInputStream in) throws IOException {
+            String username = in.readUTF();
+            boolean caregiver = in.readBoolean();
+            int count = in.readInt();
+            List<Integer> appointmentIds = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                appointmentIds.add(in.readInt());
+            }
+            return new Cancel(appointmentIds, username, caregiver);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static Date readDate(long epochDay) {
+        return Date.valueOf(LocalDate.ofEpochDay(epochDay));
+    }
+}
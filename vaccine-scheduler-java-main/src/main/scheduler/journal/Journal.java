@@ -0,0 +1,367 @@
+package scheduler.journal;
+
+import scheduler.metrics.Metrics;
+import scheduler.metrics.OperationMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only log of records on local disk, split into segment files of about segmentBytes
+ * each. Records are numbered from 1 in the order they were appended, and each is framed as
+ * {@code length, CRC32C, sequence number, payload} with the checksum covering the last two.
+ *
+ * append() returns once the record is on disk. Appends that arrive while another thread is
+ * forcing the file to disk are covered by the next force, so under load there are far fewer
+ * fsyncs than records.
+ *
+ * The checkpoint file holds the sequence number of the last record the reader is done with, and
+ * segments with nothing after it are deleted. On open, a record cut short at the end of the last
+ * segment (the process died while writing it) is truncated away; a bad record anywhere else means
+ * the journal is damaged and open fails rather than skip what is behind it.
+ */
+public final class Journal implements Closeable {
+
+    // length, checksum and sequence number
+    private static final int HEADER_BYTES = 16;
+    // a length above this is garbage, not a record
+    private static final int MAX_PAYLOAD_BYTES = 16 << 20;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+
+    private final Path dir;
+    private final long segmentBytes;
+    // tells this journal's records apart from those of other processes, see ReplayMarker
+    private final String id;
+    // segment files by the sequence number of their first record, the last one is appended to
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private final OperationMetrics appends = Metrics.journal("append");
+    private final OperationMetrics fsyncs = Metrics.journal("fsync");
+
+    // guarded by this
+    private FileChannel channel;
+    private long channelSize;
+    private long lastSequence;
+    private long syncedSequence;
+    private volatile long checkpoint;
+    // where the last read() stopped, so the next one does not scan the segment from the start
+    private Long cursorSegment = null;
+    private long cursorSequence;
+    private long cursorPosition;
+
+    private Journal(Path dir, long segmentBytes, String id, long checkpoint) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.id = id;
+        this.checkpoint = checkpoint;
+    }
+
+    public static Journal open(Path dir, long segmentBytes) throws IOException {
+        Files.createDirectories(dir);
+        Path checkpointFile = dir.resolve(CHECKPOINT);
+        Journal journal;
+        if (Files.exists(checkpointFile)) {
+            String[] parts = new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim().split(" ");
+            if (parts.length != 2) {
+                throw new IOException("Damaged journal checkpoint: " + checkpointFile);
+            }
+            journal = new Journal(dir, segmentBytes, parts[0], Long.parseLong(parts[1]));
+        } else {
+            journal = new Journal(dir, segmentBytes, UUID.randomUUID().toString(), 0);
+            journal.writeCheckpoint(0);
+        }
+        journal.recover();
+        return journal;
+    }
+
+    // Getters
+    public String getId() {
+        return id;
+    }
+
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    // records appended but not yet checkpointed
+    public synchronized long pending() {
+        return lastSequence - checkpoint;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Appends the record and forces it to disk. Returns its sequence number.
+     */
+    public long append(byte[] payload) throws IOException {
+        long start = System.nanoTime();
+        long sequence;
+        synchronized (this) {
+            if (channelSize > 0 && channelSize + HEADER_BYTES + payload.length > segmentBytes) {
+                rotate();
+            }
+            sequence = lastSequence + 1;
+            ByteBuffer record = frame(sequence, payload);
+            try {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            } catch (IOException e) {
+                // a half-written record would hide every record appended after it
+                channel.truncate(channelSize);
+                appends.error();
+                throw e;
+            }
+            channelSize = channel.position();
+            lastSequence = sequence;
+        }
+        sync(sequence);
+        appends.rows(1);
+        appends.record(System.nanoTime() - start);
+        return sequence;
+    }
+
+    private synchronized void sync(long sequence) throws IOException {
+        if (syncedSequence >= sequence) {
+            // another thread's force covered this record
+            return;
+        }
+        long start = System.nanoTime();
+        channel.force(false);
+        fsyncs.rows(lastSequence - syncedSequence);
+        fsyncs.record(System.nanoTime() - start);
+        syncedSequence = lastSequence;
+    }
+
+    /**
+     * Returns at most max records after the given sequence number, in order. Only records that are
+     * already on disk are returned.
+     */
+    public synchronized List<Record> read(long afterSequence, int max) throws IOException {
+        List<Record> records = new ArrayList<>();
+        long next = afterSequence + 1;
+        Map.Entry<Long, Path> segment = segments.floorEntry(next);
+        if (segment == null) {
+            segment = segments.firstEntry();
+        }
+        while (segment != null && records.size() < max && next <= syncedSequence) {
+            boolean resume = segment.getKey().equals(cursorSegment) && cursorSequence == next;
+            long position = resume ? cursorPosition : 0;
+            long sequence = resume ? next : segment.getKey();
+            try (FileChannel in = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                while (records.size() < max && sequence <= syncedSequence && position < in.size()) {
+                    header.clear();
+                    readFully(in, header, position);
+                    int length = header.getInt(0);
+                    byte[] payload = new byte[length];
+                    readFully(in, ByteBuffer.wrap(payload), position + HEADER_BYTES);
+                    position += HEADER_BYTES + length;
+                    if (sequence >= next) {
+                        records.add(new Record(sequence, payload));
+                    }
+                    sequence++;
+                }
+            }
+            next = sequence;
+            cursorSegment = segment.getKey();
+            cursorSequence = sequence;
+            cursorPosition = position;
+            segment = segments.higherEntry(segment.getKey());
+        }
+        return records;
+    }
+
+    /**
+     * Records that everything up to the sequence number has been dealt with, and deletes the
+     * segments that hold nothing after it.
+     */
+    public synchronized void checkpoint(long sequence) throws IOException {
+        if (sequence <= checkpoint) {
+            return;
+        }
+        writeCheckpoint(sequence);
+        checkpoint = sequence;
+        deleteCheckpointed();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void writeCheckpoint(long sequence) throws IOException {
+        Path tmp = dir.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer text = ByteBuffer.wrap((id + " " + sequence + "\n").getBytes(StandardCharsets.UTF_8));
+            while (text.hasRemaining()) {
+                out.write(text);
+            }
+            out.force(false);
+        }
+        Files.move(tmp, dir.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void deleteCheckpointed() throws IOException {
+        while (segments.size() > 1) {
+            Map.Entry<Long, Path> oldest = segments.firstEntry();
+            // the next segment starts right after the oldest one's last record
+            if (segments.higherKey(oldest.getKey()) - 1 > checkpoint) {
+                return;
+            }
+            Files.deleteIfExists(oldest.getValue());
+            segments.remove(oldest.getKey());
+        }
+    }
+
+    private void rotate() throws IOException {
+        channel.force(false);
+        syncedSequence = lastSequence;
+        channel.close();
+        openSegment(lastSequence + 1);
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        Path file = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channelSize = channel.size();
+        channel.position(channelSize);
+        segments.put(firstSequence, file);
+    }
+
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())),
+                        file);
+            }
+        }
+        lastSequence = checkpoint;
+        Long last = segments.isEmpty() ? null : segments.lastKey();
+        for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+            if (!segment.getKey().equals(segments.firstKey()) && segment.getKey() != lastSequence + 1) {
+                throw new IOException("Journal segment " + segment.getValue() + " does not follow record " + lastSequence);
+            }
+            lastSequence = scan(segment.getValue(), segment.getKey(), segment.getKey().equals(last));
+        }
+        syncedSequence = lastSequence;
+        if (last == null) {
+            openSegment(lastSequence + 1);
+        } else {
+            segments.remove(last);
+            openSegment(last);
+        }
+        deleteCheckpointed();
+    }
+
+    // checks every record of the segment and returns the sequence number of its last one
+    private long scan(Path file, long firstSequence, boolean active) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            long sequence = firstSequence;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            CRC32C crc = new CRC32C();
+            while (position < size) {
+                boolean valid = false;
+                if (size - position >= HEADER_BYTES) {
+                    header.clear();
+                    readFully(in, header, position);
+                    int length = header.getInt(0);
+                    if (length >= 0 && length <= MAX_PAYLOAD_BYTES && size - position - HEADER_BYTES >= length
+                            && header.getLong(8) == sequence) {
+                        ByteBuffer payload = ByteBuffer.allocate(length);
+                        readFully(in, payload, position + HEADER_BYTES);
+                        crc.reset();
+                        crc.update(header.array(), 8, 8);
+                        crc.update(payload.array(), 0, length);
+                        valid = (int) crc.getValue() == header.getInt(4);
+                        if (valid) {
+                            position += HEADER_BYTES + length;
+                            sequence++;
+                        }
+                    }
+                }
+                if (!valid) {
+                    if (!active) {
+                        throw new IOException("Journal segment " + file + " is damaged at byte " + position);
+                    }
+                    // the process died while appending; the record was never acknowledged
+                    System.err.println("Journal: dropping " + (size - position) + " bytes of an incomplete record in " + file);
+                    in.truncate(position);
+                    in.force(false);
+                    break;
+                }
+            }
+            return sequence - 1;
+        }
+    }
+
+    private static ByteBuffer frame(long sequence, byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        record.putInt(payload.length);
+        record.putInt(0);
+        record.putLong(sequence);
+        record.put(payload);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 8, 8 + payload.length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of journal segment");
+            }
+        }
+    }
+
+    public static class Record {
+        private final long sequence;
+        private final byte[] payload;
+
+        public Record(long sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+
+        // Getters
+        public long getSequence() {
+            return sequence;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+}
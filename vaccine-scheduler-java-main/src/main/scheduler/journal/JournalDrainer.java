@@ -0,0 +1,176 @@
+package scheduler.journal;
+
+import scheduler.db.ReplayMarker;
+import scheduler.metrics.LatencyHistogram;
+import scheduler.metrics.Metrics;
+import scheduler.metrics.OperationMetrics;
+import scheduler.model.Waitlist;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Replays the journal in the background, in order, a batch at a time, checkpointing after each
+ * batch. While the database is still out of reach it backs off, from half a second up to 30.
+ *
+ * Every intent is replayed under a ReplayMarker, so one that was applied before a crash cut the
+ * checkpoint short is recognized and skipped. An intent the database turns down, such as a
+ * username someone else took in the meantime, is logged and dropped: nobody is waiting for it.
+ * Outcomes go to stderr, one line per intent. A replayed change that freed or added capacity
+ * promotes the waitlist in its transaction, as the command would have, and each booking gets a
+ * line of its own.
+ */
+public final class JournalDrainer implements Runnable {
+
+    private static final long MIN_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final Journal journal;
+    private final int batchSize;
+    private final OperationMetrics replays = Metrics.journal("replay");
+    private final OperationMetrics batches = Metrics.journal("replay_batch");
+
+    private final Object signal = new Object();
+    private boolean woken = false;
+    // the last intent dealt with, at or ahead of the journal's checkpoint
+    private long position;
+
+    JournalDrainer(Journal journal, int batchSize) {
+        this.journal = journal;
+        this.batchSize = batchSize;
+        this.position = journal.getCheckpoint();
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "journal-drainer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // something was appended
+    void wake() {
+        synchronized (signal) {
+            woken = true;
+            signal.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (true) {
+            try {
+                if (drainBatch()) {
+                    backoff = MIN_BACKOFF_MILLIS;
+                    continue;
+                }
+                await(0);
+            } catch (SQLException e) {
+                // still unreachable; the intent stays first in line
+                await(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Journal: could not replay: " + e);
+                await(MAX_BACKOFF_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // waits until something is appended, or at most millis if that is not 0
+    private void await(long millis) {
+        synchronized (signal) {
+            long deadline = System.currentTimeMillis() + millis;
+            while (!woken) {
+                long left = millis == 0 ? 0 : deadline - System.currentTimeMillis();
+                if (millis != 0 && left <= 0) {
+                    break;
+                }
+                try {
+                    signal.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            woken = false;
+        }
+    }
+
+    /**
+     * Replays the next batch. Returns false if there was nothing to replay, and throws the
+     * SQLException of an intent that could not reach the database.
+     */
+    private boolean drainBatch() throws SQLException, IOException, InterruptedException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+        List<Journal.Record> records = journal.read(position, batchSize);
+        if (records.isEmpty()) {
+            return false;
+        }
+        long start = System.nanoTime();
+        int replayed = 0;
+        try {
+            for (Journal.Record record : records) {
+                replay(record);
+                position = record.getSequence();
+                replayed++;
+            }
+        } finally {
+            journal.checkpoint(position);
+            if (replayed > 0) {
+                batches.rows(replayed);
+                batches.record(System.nanoTime() - start);
+            }
+        }
+        return true;
+    }
+
+    private void replay(Journal.Record record) throws SQLException {
+        Intent intent;
+        try {
+            intent = Intent.decode(record.getPayload());
+        } catch (IOException e) {
+            System.err.println("Journal: skipping #" + record.getSequence() + ", it cannot be read: " + e.getMessage());
+            replays.error();
+            return;
+        }
+        long start = System.nanoTime();
+        ReplayMarker.begin(journal.getId() + "-" + record.getSequence());
+        try {
+            String outcome = intent.apply();
+            replays.rows(1);
+            System.err.println("Journal: replayed #" + record.getSequence() + " " + intent.describe() + ": " + outcome);
+            for (Waitlist.Promotion promotion : intent.getPromoted()) {
+                System.err.println("Journal: #" + record.getSequence() + " " + promotion);
+            }
+        } catch (ReplayMarker.AlreadyReplayedException e) {
+            System.err.println("Journal: #" + record.getSequence() + " " + intent.describe() + " was already applied");
+        } catch (SQLException e) {
+            // class 08 is a connection exception: the database went away again, try this one later
+            if (e.getSQLState() != null && e.getSQLState().startsWith("08")) {
+                throw e;
+            }
+            replays.error();
+            System.err.println("Journal: rejected #" + record.getSequence() + " " + intent.describe() + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            // retrying would fail the same way and hold up everything behind it
+            replays.error();
+            System.err.println("Journal: rejected #" + record.getSequence() + " " + intent.describe() + ": " + e);
+        } finally {
+            ReplayMarker.end();
+            replays.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Intents replayed per second of replaying, over the life of the process; 0 before the first.
+     */
+    public double getThroughput() {
+        LatencyHistogram.Snapshot latency = replays.getLatency().snapshot();
+        return latency.getSumNanos() == 0 ? 0 : latency.getCount() / (latency.getSumNanos() / 1e9);
+    }
+}
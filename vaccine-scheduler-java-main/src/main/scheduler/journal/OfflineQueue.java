@@ -0,0 +1,151 @@
+package scheduler.journal;
+
+import scheduler.db.DatabaseUnreachableException;
+import scheduler.db.ReplayMarker;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+
+/**
+ * Keeps the commands that change data working while the database cannot be reached. The model
+ * methods behind create_patient, create_caregiver, add_doses, upload_availability, reserve and
+ * cancel run through run(): if the pool cannot open a connection, the change is appended to a
+ * Journal on local disk and the caller gets a QueuedException instead of an error. A
+ * JournalDrainer replays the journal in order once the database answers again.
+ *
+ * While anything is still queued new changes are queued behind it, so they are applied in the
+ * order they were made. Reads are not queued and fail as before.
+ *
+ * Nothing is journaled unless the JournalDir environment variable names a directory for it.
+ * JournalSegmentBytes (4 MiB by default) sets when a new segment file is started and
+ * JournalBatchSize (100) how many intents are replayed between checkpoints.
+ */
+public final class OfflineQueue {
+
+    private static final long DEFAULT_SEGMENT_BYTES = 4 << 20;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    // read on every change, so only creating it takes the lock
+    private static volatile OfflineQueue instance = null;
+
+    // both null when journaling is off
+    private final Journal journal;
+    private final JournalDrainer drainer;
+
+    public OfflineQueue(Journal journal, int batchSize) {
+        this.journal = journal;
+        this.drainer = journal == null ? null : new JournalDrainer(journal, batchSize);
+    }
+
+    /**
+     * Opens the journal named by JournalDir and starts replaying whatever an earlier run left in it.
+     */
+    public static OfflineQueue getInstance() {
+        OfflineQueue queue = instance;
+        if (queue != null) {
+            return queue;
+        }
+        synchronized (OfflineQueue.class) {
+            if (instance == null) {
+                queue = fromEnvironment();
+                if (queue.drainer != null) {
+                    queue.drainer.start();
+                }
+                instance = queue;
+            }
+            return instance;
+        }
+    }
+
+    // null if getInstance() has not been called or journaling is off, e.g. for stats
+    public static OfflineQueue instanceIfEnabled() {
+        OfflineQueue queue = instance;
+        return queue == null || queue.journal == null ? null : queue;
+    }
+
+    private static OfflineQueue fromEnvironment() {
+        String dir = System.getenv("JournalDir");
+        if (dir == null || dir.trim().isEmpty()) {
+            return new OfflineQueue(null, DEFAULT_BATCH_SIZE);
+        }
+        long segmentBytes = envLong("JournalSegmentBytes", DEFAULT_SEGMENT_BYTES);
+        int batchSize = (int) envLong("JournalBatchSize", DEFAULT_BATCH_SIZE);
+        try {
+            return new OfflineQueue(Journal.open(Paths.get(dir.trim()), segmentBytes), batchSize);
+        } catch (IOException | RuntimeException e) {
+            // without the journal, changes fail while the database is down as they did before
+            System.err.println("Could not open the journal in " + dir + ", changes will not be queued: " + e);
+            return new OfflineQueue(null, batchSize);
+        }
+    }
+
+    private static long envLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(1, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public interface Action<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Runs the action, or journals the intent and throws QueuedException if the database cannot be
+     * reached or earlier intents are still queued.
+     */
+    public <T> T run(Intent intent, Action<T> action) throws SQLException {
+        // the drainer's own replays must fail rather than be queued again
+        if (journal == null || ReplayMarker.isReplaying()) {
+            return action.run();
+        }
+        if (journal.pending() > 0) {
+            throw queue(intent, null);
+        }
+        try {
+            return action.run();
+        } catch (DatabaseUnreachableException e) {
+            throw queue(intent, e);
+        }
+    }
+
+    /**
+     * Whether the exception means the database is down and changes are being queued, e.g. so
+     * create_patient goes ahead when it cannot check whether the username is taken. The replay
+     * checks that instead.
+     */
+    public boolean queues(SQLException e) {
+        return journal != null && e instanceof DatabaseUnreachableException;
+    }
+
+    private QueuedException queue(Intent intent, SQLException cause) throws SQLException {
+        long sequence;
+        try {
+            sequence = journal.append(intent.encode());
+        } catch (IOException e) {
+            SQLException failure = new SQLException("Could not journal " + intent.describe() + ": " + e.getMessage(), e);
+            if (cause != null) {
+                failure.addSuppressed(cause);
+            }
+            throw failure;
+        }
+        drainer.wake();
+        return new QueuedException(sequence, intent, cause);
+    }
+
+    // Getters
+    public Journal getJournal() {
+        return journal;
+    }
+
+    public JournalDrainer getDrainer() {
+        return drainer;
+    }
+}
@@ -0,0 +1,25 @@
+package scheduler.journal;
+
+import java.sql.SQLException;
+
+/**
+ * The database could not be reached, so the change was written to the journal instead and will be
+ * made when the connection is back. Commands report it to the user rather than as a failure.
+ */
+public class QueuedException extends SQLException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long sequence;
+
+    public QueuedException(long sequence, Intent intent, SQLException cause) {
+        super("Database unreachable, queued as #" + sequence + ": " + intent.describe()
+                + ". It will be applied once the connection is back.", cause);
+        this.sequence = sequence;
+    }
+
+    // Getters
+    public long getSequence() {
+        return sequence;
+    }
+}
@@ -0,0 +1,60 @@
+package scheduler.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide counters for every command, every repository call, every connection borrowed
+ * from the pool and the offline journal. The metrics for a name are created the first time it is recorded and live for
+ * the rest of the process, so callers may hold on to what command() and repository() return.
+ */
+public final class Metrics {
+
+    private static final ConcurrentHashMap<String, OperationMetrics> commands = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, OperationMetrics> repository = new ConcurrentHashMap<>();
+    private static final OperationMetrics connectionAcquire = new OperationMetrics("connection_acquire");
+    private static final ConcurrentHashMap<String, OperationMetrics> journal = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static OperationMetrics command(String name) {
+        return commands.computeIfAbsent(name, OperationMetrics::new);
+    }
+
+    // one per SchedulerRepository method
+    public static OperationMetrics repository(String operation) {
+        return repository.computeIfAbsent(operation, OperationMetrics::new);
+    }
+
+    // time from asking the pool for a connection to getting one, including opening it
+    public static OperationMetrics connectionAcquire() {
+        return connectionAcquire;
+    }
+
+    // appends, fsyncs and replays of scheduler.journal.Journal
+    public static OperationMetrics journal(String operation) {
+        return journal.computeIfAbsent(operation, OperationMetrics::new);
+    }
+
+    // ordered by name
+    public static List<OperationMetrics> commands() {
+        return sorted(commands);
+    }
+
+    public static List<OperationMetrics> repositoryOperations() {
+        return sorted(repository);
+    }
+
+    public static List<OperationMetrics> journalOperations() {
+        return sorted(journal);
+    }
+
+    private static List<OperationMetrics> sorted(ConcurrentHashMap<String, OperationMetrics> metrics) {
+        List<OperationMetrics> list = new ArrayList<>(metrics.values());
+        list.sort(Comparator.comparing(OperationMetrics::getName));
+        return list;
+    }
+}
@@ -0,0 +1,47 @@
+package scheduler.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one kind of operation, such as a command or a repository method: how often it
+ * ran, how often it failed, how many rows it returned and how long it took.
+ */
+public class OperationMetrics {
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+
+    OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    public void record(long nanos) {
+        latency.record(nanos);
+    }
+
+    public void error() {
+        errors.increment();
+    }
+
+    public void rows(long n) {
+        rows.add(n);
+    }
+
+    // Getters
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getRows() {
+        return rows.sum();
+    }
+}
@@ -0,0 +1,192 @@
+package scheduler.metrics;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.PoolStats;
+import scheduler.db.ReadRouting;
+import scheduler.journal.OfflineQueue;
+import scheduler.model.VaccineInventoryCache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes Metrics in the Prometheus text format to the file named by the MetricsFile environment
+ * variable, every MetricsFlushSeconds seconds (15 by default), for node_exporter's textfile
+ * collector or anything else that tails it. The file is written next to the target and moved
+ * over it, so a reader never sees half of it. Nothing is written if MetricsFile is not set.
+ */
+public class PrometheusExporter {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static ScheduledExecutorService flusher = null;
+
+    private final Path file;
+
+    public PrometheusExporter(Path file) {
+        this.file = file;
+    }
+
+    // starts flushing in the background if MetricsFile is set, at most once per process
+    public static synchronized void startFromEnvironment() {
+        String path = System.getenv("MetricsFile");
+        if (flusher != null || path == null || path.trim().isEmpty()) {
+            return;
+        }
+        long seconds = 15;
+        String value = System.getenv("MetricsFlushSeconds");
+        if (value != null) {
+            try {
+                seconds = Math.max(1, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid MetricsFlushSeconds: " + value);
+            }
+        }
+        PrometheusExporter exporter = new PrometheusExporter(Paths.get(path.trim()));
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleAtFixedRate(exporter::flushQuietly, seconds, seconds, TimeUnit.SECONDS);
+        // one last time on the way out, so short batch runs are captured too
+        Runtime.getRuntime().addShutdownHook(new Thread(exporter::flushQuietly));
+    }
+
+    public void flush() throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, render().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            // a scheduled task that throws is never run again
+            System.err.println("Could not write metrics to " + file + ": " + e);
+        }
+    }
+
+    public static String render() {
+        StringBuilder sb = new StringBuilder();
+        // rows are only counted for repository calls
+        write(sb, "scheduler_command", "command", Metrics.commands(), false);
+        write(sb, "scheduler_repository", "operation", Metrics.repositoryOperations(), true);
+        // rows are records appended, covered by an fsync or replayed
+        write(sb, "scheduler_journal", "operation", Metrics.journalOperations(), true);
+        LatencyHistogram.Snapshot acquire = Metrics.connectionAcquire().getLatency().snapshot();
+        sb.append("# TYPE scheduler_connection_acquire_seconds summary\n");
+        writeSummary(sb, "scheduler_connection_acquire_seconds", "", acquire);
+        PoolStats pool = ConnectionManager.statsIfOpen();
+        if (pool != null) {
+            gauge(sb, "scheduler_pool_active_connections", pool.getActive());
+            gauge(sb, "scheduler_pool_idle_connections", pool.getIdle());
+            gauge(sb, "scheduler_pool_waiting_threads", pool.getWaiting());
+            counter(sb, "scheduler_pool_timeouts_total", pool.getTimeoutCount());
+            counter(sb, "scheduler_pool_leaks_total", pool.getLeakCount());
+        }
+        PoolStats readPool = ConnectionManager.readStatsIfOpen();
+        if (readPool != null) {
+            gauge(sb, "scheduler_read_pool_active_connections", readPool.getActive());
+            gauge(sb, "scheduler_read_pool_idle_connections", readPool.getIdle());
+            gauge(sb, "scheduler_read_pool_waiting_threads", readPool.getWaiting());
+            counter(sb, "scheduler_read_pool_timeouts_total", readPool.getTimeoutCount());
+            sb.append("# TYPE scheduler_reads_total counter\n");
+            sb.append("scheduler_reads_total{route=\"replica\"} ").append(ReadRouting.getReplicaReads()).append('\n');
+            sb.append("scheduler_reads_total{route=\"primary\"} ").append(ReadRouting.getPrimaryReads()).append('\n');
+            counter(sb, "scheduler_read_fallbacks_total", ReadRouting.getFallbacks());
+        }
+        VaccineInventoryCache inventory = VaccineInventoryCache.instanceIfCreated();
+        if (inventory != null) {
+            counter(sb, "scheduler_vaccine_cache_hits_total", inventory.getHits());
+            counter(sb, "scheduler_vaccine_cache_misses_total", inventory.getMisses());
+            counter(sb, "scheduler_vaccine_cache_conflicts_total", inventory.getConflicts());
+            counter(sb, "scheduler_vaccine_cache_reconciliations_total", inventory.getReconciliations());
+            // entries a reconciliation found out of date, and by how many doses in all
+            counter(sb, "scheduler_vaccine_cache_drifted_entries_total", inventory.getDriftedEntries());
+            counter(sb, "scheduler_vaccine_cache_drift_doses_total", inventory.getTotalDrift());
+        }
+        OfflineQueue queue = OfflineQueue.instanceIfEnabled();
+        if (queue != null) {
+            gauge(sb, "scheduler_journal_pending_intents", queue.getJournal().pending());
+            gauge(sb, "scheduler_journal_segments", queue.getJournal().getSegmentCount());
+        }
+        return sb.toString();
+    }
+
+    private static void write(StringBuilder sb, String prefix, String label, List<OperationMetrics> metrics,
+                              boolean rows) {
+        if (metrics.isEmpty()) {
+            return;
+        }
+        sb.append("# TYPE ").append(prefix).append("_total counter\n");
+        for (OperationMetrics m : metrics) {
+            sb.append(prefix).append("_total").append(label(label, m.getName()))
+                    .append(' ').append(m.getLatency().snapshot().getCount()).append('\n');
+        }
+        sb.append("# TYPE ").append(prefix).append("_errors_total counter\n");
+        for (OperationMetrics m : metrics) {
+            sb.append(prefix).append("_errors_total").append(label(label, m.getName()))
+                    .append(' ').append(m.getErrors()).append('\n');
+        }
+        if (rows) {
+            sb.append("# TYPE ").append(prefix).append("_rows_total counter\n");
+            for (OperationMetrics m : metrics) {
+                sb.append(prefix).append("_rows_total").append(label(label, m.getName()))
+                        .append(' ').append(m.getRows()).append('\n');
+            }
+        }
+        sb.append("# TYPE ").append(prefix).append("_latency_seconds summary\n");
+        for (OperationMetrics m : metrics) {
+            writeSummary(sb, prefix + "_latency_seconds", label + "=\"" + escape(m.getName()) + "\"",
+                    m.getLatency().snapshot());
+        }
+    }
+
+    // labels is either empty or one name="value" pair
+    private static void writeSummary(StringBuilder sb, String name, String labels, LatencyHistogram.Snapshot snapshot) {
+        String separator = labels.isEmpty() ? "" : labels + ",";
+        for (double q : QUANTILES) {
+            sb.append(name).append("{").append(separator).append("quantile=\"").append(q).append("\"} ")
+                    .append(seconds(snapshot.percentileNanos(q))).append('\n');
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        sb.append(name).append("_sum").append(braces).append(' ').append(seconds(snapshot.getSumNanos())).append('\n');
+        sb.append(name).append("_count").append(braces).append(' ').append(snapshot.getCount()).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String label(String name, String value) {
+        return "{" + name + "=\"" + escape(value) + "\"}";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
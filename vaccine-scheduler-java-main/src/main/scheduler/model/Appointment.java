@@ -0,0 +1,67 @@
+package scheduler.model;
+
+import scheduler.db.Repositories;
+import scheduler.journal.Intent;
+import scheduler.journal.OfflineQueue;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.List;
+
+public class Appointment {
+    private final int appointmentId;
+    private final Date time;
+    private final String caregiverUsername;
+    private final String patientUsername;
+    private final String vaccineName;
+
+    public Appointment(int appointmentId, Date time, String caregiverUsername, String patientUsername,
+                       String vaccineName) {
+        this.appointmentId = appointmentId;
+        this.time = time;
+        this.caregiverUsername = caregiverUsername;
+        this.patientUsername = patientUsername;
+        this.vaccineName = vaccineName;
+    }
+
+    // Getters
+    public int getAppointmentId() {
+        return appointmentId;
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    public String getCaregiverUsername() {
+        return caregiverUsername;
+    }
+
+    public String getPatientUsername() {
+        return patientUsername;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    /**
+     * Cancels those of the appointments the user is the patient (or, if caregiver is true, the
+     * caregiver) of in one transaction, offering the freed slots and doses to the waitlist, and
+     * gives them back to the caches. Returns the cancelled ones; offer.committed() returns who was
+     * booked. If the database cannot be reached the cancellation is queued instead, see
+     * OfflineQueue.
+     */
+    public static List<Appointment> cancel(List<Integer> appointmentIds, String username, boolean caregiver,
+                                           Waitlist.Offer offer) throws SQLException {
+        List<Appointment> cancelled = OfflineQueue.getInstance().run(Intent.cancel(appointmentIds, username, caregiver),
+                () -> Repositories.get().cancelAppointments(appointmentIds, username, caregiver, offer));
+        CaregiverAvailabilityIndex index = CaregiverAvailabilityIndex.getInstance();
+        VaccineInventoryCache inventory = VaccineInventoryCache.getInstance();
+        for (Appointment appointment : cancelled) {
+            index.released(appointment.getTime(), appointment.getCaregiverUsername());
+            inventory.applyCommitted(appointment.getVaccineName(), 1);
+        }
+        return cancelled;
+    }
+}
@@ -0,0 +1,104 @@
+package scheduler.model;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which of the caregivers free on a date a reservation tries first. ReservationEngine
+ * claims them in the returned order and moves on to the next when another reserver got there
+ * first, so concurrent reservers spread over different Availabilities rows instead of all
+ * waiting on the alphabetically first one.
+ *
+ * The CaregiverAssignment environment variable picks one: first, round_robin (the default),
+ * least_loaded or random.
+ */
+public interface AssignmentStrategy {
+
+    /**
+     * Returns the caregivers to try, best first. free is ordered by username. An empty result
+     * leaves the choice to the database, which takes the first available caregiver by username.
+     */
+    List<String> order(Date d, List<String> free, CaregiverAvailabilityIndex index) throws SQLException;
+
+    static AssignmentStrategy fromEnvironment() {
+        String name = System.getenv("CaregiverAssignment");
+        return named(name == null ? "round_robin" : name);
+    }
+
+    static AssignmentStrategy named(String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "first":
+                return new First();
+            case "round_robin":
+                return new RoundRobin();
+            case "least_loaded":
+                return new LeastLoaded();
+            case "random":
+                return new RandomOrder();
+            default:
+                throw new IllegalArgumentException("Unknown caregiver assignment: " + name);
+        }
+    }
+
+    // the alphabetically first caregiver, as reserve has always done
+    class First implements AssignmentStrategy {
+        @Override
+        public List<String> order(Date d, List<String> free, CaregiverAvailabilityIndex index) {
+            return Collections.emptyList();
+        }
+    }
+
+    // each reservation starts one caregiver further along than the last
+    class RoundRobin implements AssignmentStrategy {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public List<String> order(Date d, List<String> free, CaregiverAvailabilityIndex index) {
+            if (free.isEmpty()) {
+                return free;
+            }
+            List<String> rotated = new ArrayList<>(free);
+            Collections.rotate(rotated, -Math.floorMod(next.getAndIncrement(), free.size()));
+            return rotated;
+        }
+    }
+
+    // fewest appointments first, ties broken at random so concurrent reservers do not all pick the same one
+    class LeastLoaded implements AssignmentStrategy {
+        @Override
+        public List<String> order(Date d, List<String> free, CaregiverAvailabilityIndex index) throws SQLException {
+            List<String> shuffled = new ArrayList<>(free);
+            Collections.shuffle(shuffled, ThreadLocalRandom.current());
+            List<Integer> loads = new ArrayList<>(shuffled.size());
+            for (String caregiver : shuffled) {
+                loads.add(index.getLoad(caregiver));
+            }
+            List<Integer> positions = new ArrayList<>(shuffled.size());
+            for (int i = 0; i < shuffled.size(); i++) {
+                positions.add(i);
+            }
+            positions.sort(Comparator.comparing(loads::get));
+            List<String> ordered = new ArrayList<>(shuffled.size());
+            for (int i : positions) {
+                ordered.add(shuffled.get(i));
+            }
+            return ordered;
+        }
+    }
+
+    class RandomOrder implements AssignmentStrategy {
+        @Override
+        public List<String> order(Date d, List<String> free, CaregiverAvailabilityIndex index) {
+            List<String> shuffled = new ArrayList<>(free);
+            Collections.shuffle(shuffled, ThreadLocalRandom.current());
+            return shuffled;
+        }
+    }
+}
@@ -1,26 +1,45 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
-import scheduler.util.Util;
-
-import java.sql.*;
+import scheduler.db.Repositories;
+import scheduler.db.SchedulerRepository;
+import scheduler.journal.Intent;
+import scheduler.journal.OfflineQueue;
+import scheduler.util.PasswordHasher;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class Caregiver {
+    // slots per day when an upload does not say, i.e. one appointment a day
+    public static final int DEFAULT_SLOTS = 1;
+    // a full day of 15 minute slots
+    public static final int MAX_SLOTS = 96;
+
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
+    private final PasswordHasher.Params hashParams;
 
     private Caregiver(CaregiverBuilder builder) {
         this.username = builder.username;
         this.salt = builder.salt;
         this.hash = builder.hash;
+        this.hashParams = builder.hashParams;
     }
 
     private Caregiver(CaregiverGetter getter) {
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
+        this.hashParams = getter.hashParams;
     }
 
     // Getters
@@ -36,38 +55,106 @@ public class Caregiver {
         return hash;
     }
 
+    public PasswordHasher.Params getHashParams() {
+        return hashParams;
+    }
+
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        saveAllToDB(Collections.singletonList(this));
+    }
+
+    /**
+     * Inserts many caregivers in one transaction with batched statements. If the database cannot
+     * be reached they are queued instead, see OfflineQueue.
+     */
+    public static void saveAllToDB(List<Caregiver> caregivers) throws SQLException {
+        OfflineQueue.getInstance().run(Intent.createCaregivers(caregivers), () -> {
+            Repositories.get().saveCaregivers(caregivers);
+            return null;
+        });
+        List<String> usernames = new ArrayList<>();
+        for (Caregiver saved : caregivers) {
+            usernames.add(saved.getUsername());
+        }
+        UsernameIndex.caregivers().added(usernames);
+    }
+
+    /**
+     * Returns which of the given usernames are already taken, as stored in the table. Usernames
+     * compare case-insensitively in the database, so callers should too. Only the names the
+     * UsernameIndex cannot rule out are looked up, if none are there is no query at all.
+     */
+    public static Set<String> existingUsernames(Collection<String> usernames) throws SQLException {
+        List<String> candidates = UsernameIndex.caregivers().mightBeTaken(usernames);
+        return candidates.isEmpty() ? new HashSet<>() : Repositories.get().existingCaregivers(candidates);
+    }
+
+    /**
+     * Makes slots appointments bookable on the date and offers them to the waitlist, in one
+     * transaction. Fails like the primary key would if the caregiver is already available then.
+     */
+    public void uploadAvailability(Date d, int slots, Waitlist.Offer offer) throws SQLException {
+        if (!uploadAvailability(this.username, Collections.singletonList(d), slots, offer).wasInserted(0)) {
+            throw new SQLException("Already available on " + d, "23000");
         }
     }
 
-    public void uploadAvailability(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, this.username);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+    /**
+     * Uploads many availabilities in one transaction, each with the given number of slots, and
+     * offers the new slots to the waitlist. Dates this caregiver is already available on are
+     * skipped rather than failing the whole upload.
+     */
+    public UploadReport uploadAvailability(List<Date> dates, int slots, Waitlist.Offer offer) throws SQLException {
+        return uploadAvailability(this.username, dates, slots, offer);
+    }
+
+    // if the database cannot be reached the upload is queued instead, see OfflineQueue
+    public static UploadReport uploadAvailability(String caregiverUsername, List<Date> dates, int slots,
+                                                  Waitlist.Offer offer) throws SQLException {
+        long start = System.nanoTime();
+        BitSet inserted = OfflineQueue.getInstance().run(Intent.uploadAvailability(caregiverUsername, dates, slots),
+                () -> Repositories.get().addAvailabilities(caregiverUsername, dates, slots, offer));
+        CaregiverAvailabilityIndex index = CaregiverAvailabilityIndex.getInstance();
+        for (int i = inserted.nextSetBit(0); i >= 0; i = inserted.nextSetBit(i + 1)) {
+            index.added(dates.get(i), caregiverUsername, slots);
+        }
+        return new UploadReport(inserted, dates.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    public static class UploadReport {
+        private final BitSet insertedRows;
+        private final int inserted;
+        private final int skipped;
+        private final long elapsedMillis;
+
+        private UploadReport(BitSet insertedRows, int total, long elapsedMillis) {
+            this.insertedRows = insertedRows;
+            this.inserted = insertedRows.cardinality();
+            this.skipped = total - inserted;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        // Getters
+        public int getInserted() {
+            return inserted;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        // whether the date at this position of the uploaded list was new
+        public boolean wasInserted(int index) {
+            return insertedRows.get(index);
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return inserted + " inserted, " + skipped + " skipped in " + elapsedMillis + " ms";
         }
     }
 
@@ -75,11 +162,18 @@ public class Caregiver {
         private final String username;
         private final byte[] salt;
         private final byte[] hash;
+        private final PasswordHasher.Params hashParams;
 
+        // for a hash made with the configured parameters, e.g. by Util.generateHash
         public CaregiverBuilder(String username, byte[] salt, byte[] hash) {
+            this(username, salt, hash, PasswordHasher.getInstance().getParams());
+        }
+
+        public CaregiverBuilder(String username, byte[] salt, byte[] hash, PasswordHasher.Params hashParams) {
             this.username = username;
             this.salt = salt;
             this.hash = hash;
+            this.hashParams = hashParams;
         }
 
         public Caregiver build() {
@@ -92,6 +186,7 @@ public class Caregiver {
         private final String password;
         private byte[] salt;
         private byte[] hash;
+        private PasswordHasher.Params hashParams;
 
         public CaregiverGetter(String username, String password) {
             this.username = username;
@@ -99,34 +194,44 @@ public class Caregiver {
         }
 
         public Caregiver get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            SchedulerRepository repository = Repositories.get();
+            Caregiver stored = repository.findCaregiver(this.username);
+            if (stored == null) {
+                return null;
+            }
+            byte[] salt = stored.getSalt();
+            byte[] hash = stored.getHash();
+            PasswordHasher.Params params = stored.getHashParams();
+            // check if the password matches, verify() ignores the padding of older fixed-width hashes
+            if (!PasswordHasher.verify(password, salt, hash, params)) {
+                return null;
+            }
+            PasswordHasher hasher = PasswordHasher.getInstance();
+            if (hasher.needsRehash(params)) {
+                // the configured strength changed since this hash was made, and this is
+                // the only time we know the password to upgrade it
+                byte[] newSalt = hasher.generateSalt();
+                byte[] newHash = hasher.hash(password, newSalt);
+                if (rehash(repository, newSalt, newHash, hasher.getParams())) {
+                    salt = newSalt;
+                    hash = newHash;
+                    params = hasher.getParams();
+                }
+            }
+            this.salt = salt;
+            this.hash = Arrays.copyOf(hash, params.getKeyLength() / 8);
+            this.hashParams = params;
+            return new Caregiver(this);
+        }
 
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
+        private boolean rehash(SchedulerRepository repository, byte[] newSalt, byte[] newHash,
+                               PasswordHasher.Params params) {
             try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
-                statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Caregiver(this);
-                    }
-                }
-                return null;
+                return repository.updateCaregiverHash(this.username, newSalt, newHash, params);
             } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
+                // the old hash still works, try again on the next login
+                e.printStackTrace();
+                return false;
             }
         }
     }
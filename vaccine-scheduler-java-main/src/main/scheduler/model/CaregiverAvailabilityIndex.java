@@ -0,0 +1,140 @@
+package scheduler.model;
+
+import scheduler.db.Repositories;
+import scheduler.db.SchedulerRepository;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process view of which caregivers are free on each date, with how many slots each has left, and
+ * how many appointments each one has, for the AssignmentStrategy to choose from without a query per reservation.
+ *
+ * A date is read from the database the first time it is asked for and then kept in step by
+ * uploads, reservations and cancellations. Dates before today are dropped whenever a date not in
+ * the index is read, so it holds roughly the dates from today on rather than every date ever asked
+ * for. Commands still accept past dates, but such a date is read from the database again each
+ * time it is used after another date was loaded. Appointment counts are read once, on first use.
+ * Both are only hints: the reservation itself still claims the slot in the database, and a
+ * caregiver this index wrongly thinks is free (another process took them) is dropped when the
+ * claim fails.
+ */
+public class CaregiverAvailabilityIndex {
+
+    private static CaregiverAvailabilityIndex instance = null;
+
+    private final SchedulerRepository repository;
+    // free slots left per caregiver, caregivers with none are removed
+    private final ConcurrentHashMap<Date, ConcurrentNavigableMap<String, Integer>> free = new ConcurrentHashMap<>();
+    // keyed by lower-cased username
+    private final ConcurrentHashMap<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+    private volatile boolean loadsRead = false;
+
+    public CaregiverAvailabilityIndex(SchedulerRepository repository) {
+        this.repository = repository;
+    }
+
+    public static synchronized CaregiverAvailabilityIndex getInstance() {
+        SchedulerRepository repository = Repositories.get();
+        // start over when the store is swapped, e.g. between benchmark runs
+        if (instance == null || instance.repository != repository) {
+            instance = new CaregiverAvailabilityIndex(repository);
+        }
+        return instance;
+    }
+
+    // the caregivers free on the date, ordered by username
+    public List<String> freeOn(Date d) throws SQLException {
+        ConcurrentNavigableMap<String, Integer> caregivers = free.get(d);
+        if (caregivers == null) {
+            evictPast();
+            ConcurrentNavigableMap<String, Integer> loaded = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+            loaded.putAll(repository.findAvailableCaregivers(d));
+            caregivers = free.putIfAbsent(d, loaded);
+            if (caregivers == null) {
+                caregivers = loaded;
+            }
+        }
+        return new ArrayList<>(caregivers.keySet());
+    }
+
+    // past dates are rarely used, one that is comes back with its next read
+    private void evictPast() {
+        Date today = Date.valueOf(LocalDate.now());
+        free.keySet().removeIf(d -> d.before(today));
+    }
+
+    // number of appointments the caregiver has
+    public int getLoad(String caregiverUsername) throws SQLException {
+        if (!loadsRead) {
+            readLoads();
+        }
+        AtomicInteger load = loads.get(key(caregiverUsername));
+        return load == null ? 0 : load.get();
+    }
+
+    private synchronized void readLoads() throws SQLException {
+        if (loadsRead) {
+            return;
+        }
+        // reservations made while the query runs may be counted twice or not at all, which is
+        // close enough for balancing
+        for (Map.Entry<String, Integer> entry : repository.countAppointmentsByCaregiver().entrySet()) {
+            loads.put(key(entry.getKey()), new AtomicInteger(entry.getValue()));
+        }
+        loadsRead = true;
+    }
+
+    // the caregiver has this many more free slots on the date
+    public void added(Date d, String caregiverUsername, int slots) {
+        ConcurrentNavigableMap<String, Integer> caregivers = free.get(d);
+        if (caregivers != null) {
+            caregivers.merge(caregiverUsername, slots, Integer::sum);
+        }
+    }
+
+    // the caregiver was booked on the date, taking one of their slots
+    public void claimed(Date d, String caregiverUsername) {
+        ConcurrentNavigableMap<String, Integer> caregivers = free.get(d);
+        if (caregivers != null) {
+            caregivers.computeIfPresent(caregiverUsername, (c, slots) -> slots > 1 ? slots - 1 : null);
+        }
+        if (loadsRead) {
+            loads.computeIfAbsent(key(caregiverUsername), k -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    // an appointment on the date was cancelled and its slot is free again
+    public void released(Date d, String caregiverUsername) {
+        added(d, caregiverUsername, 1);
+        unbooked(caregiverUsername);
+    }
+
+    // one of the caregiver's appointments was cancelled
+    public void unbooked(String caregiverUsername) {
+        if (loadsRead) {
+            loads.computeIfAbsent(key(caregiverUsername), k -> new AtomicInteger()).decrementAndGet();
+        }
+    }
+
+    // the caregiver turned out not to be free on the date after all
+    public void lost(Date d, String caregiverUsername) {
+        ConcurrentNavigableMap<String, Integer> caregivers = free.get(d);
+        if (caregivers != null) {
+            caregivers.remove(caregiverUsername);
+        }
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
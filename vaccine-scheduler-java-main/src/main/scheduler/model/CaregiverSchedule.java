@@ -0,0 +1,121 @@
+package scheduler.model;
+
+import scheduler.db.Repositories;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of caregiver availabilities over a date range, the free slots of each day in the range
+ * over all caregivers, and the current vaccine inventory. The inventory does not depend on the
+ * date, so it is taken from the {@link VaccineInventoryCache} rather than joined to every
+ * availability.
+ */
+public class CaregiverSchedule {
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    private final List<Slot> slots;
+    private final Map<Date, Integer> freeSlotsByDay;
+    private final List<Vaccine> vaccines;
+    private final int page;
+    private final boolean hasMore;
+
+    private CaregiverSchedule(List<Slot> slots, Map<Date, Integer> freeSlotsByDay, List<Vaccine> vaccines,
+                              int page, boolean hasMore) {
+        this.slots = Collections.unmodifiableList(slots);
+        this.freeSlotsByDay = Collections.unmodifiableMap(freeSlotsByDay);
+        this.vaccines = Collections.unmodifiableList(vaccines);
+        this.page = page;
+        this.hasMore = hasMore;
+    }
+
+    // Getters
+    public List<Slot> getSlots() {
+        return slots;
+    }
+
+    // only the days with free slots, in date order
+    public Map<Date, Integer> getFreeSlotsByDay() {
+        return freeSlotsByDay;
+    }
+
+    public List<Vaccine> getVaccines() {
+        return vaccines;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    public static class Slot {
+        private final Date date;
+        private final String caregiverUsername;
+        private final int freeSlots;
+
+        public Slot(Date date, String caregiverUsername, int freeSlots) {
+            this.date = date;
+            this.caregiverUsername = caregiverUsername;
+            this.freeSlots = freeSlots;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public String getCaregiverUsername() {
+            return caregiverUsername;
+        }
+
+        public int getFreeSlots() {
+            return freeSlots;
+        }
+    }
+
+    public static class ScheduleGetter {
+        private final Date from;
+        private final Date to;
+        private final int page;
+        private final int pageSize;
+
+        // page numbers start at 1
+        public ScheduleGetter(Date from, Date to, int page, int pageSize) {
+            if (to.before(from)) {
+                throw new IllegalArgumentException("End date is before start date!");
+            }
+            if (page < 1 || pageSize < 1) {
+                throw new IllegalArgumentException("Page and page size must be positive!");
+            }
+            this.from = from;
+            this.to = to;
+            this.page = page;
+            this.pageSize = pageSize;
+        }
+
+        public CaregiverSchedule get() throws SQLException {
+            // one extra row tells us whether there is a next page
+            List<Slot> slots = new ArrayList<>(
+                    Repositories.get().findAvailabilities(from, to, (page - 1) * pageSize, pageSize + 1));
+            boolean hasMore = slots.size() > pageSize;
+            if (hasMore) {
+                slots.remove(pageSize);
+            }
+
+            // one row per day, however many caregivers and slots it has
+            Map<Date, Integer> freeSlotsByDay = Repositories.get().countFreeSlots(from, to);
+
+            List<Vaccine> vaccines = new ArrayList<>();
+            for (Map.Entry<String, Integer> entry : VaccineInventoryCache.getInstance().snapshot().entrySet()) {
+                vaccines.add(new Vaccine.VaccineBuilder(entry.getKey(), entry.getValue()).build());
+            }
+            return new CaregiverSchedule(slots, freeSlotsByDay, vaccines, page, hasMore);
+        }
+    }
+}
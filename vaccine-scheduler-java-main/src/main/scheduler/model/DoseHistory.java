@@ -0,0 +1,105 @@
+package scheduler.model;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * How a vaccine's doses changed, as inventory_history shows it: the newest snapshots of the count,
+ * oldest first, and every ledger entry since the last of them. See DoseLedger.
+ */
+public class DoseHistory {
+    private final String vaccineName;
+    private final List<Snapshot> snapshots;
+    private final List<Change> changes;
+
+    public DoseHistory(String vaccineName, List<Snapshot> snapshots, List<Change> changes) {
+        this.vaccineName = vaccineName;
+        this.snapshots = snapshots;
+        this.changes = changes;
+    }
+
+    // Getters
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public List<Snapshot> getSnapshots() {
+        return snapshots;
+    }
+
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    // the count the changes start from, 0 if the vaccine was never compacted
+    public int getStartDoses() {
+        return snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1).getDoses();
+    }
+
+    // the count after the last change
+    public int getDoses() {
+        int doses = getStartDoses();
+        for (Change change : changes) {
+            doses += change.getDelta();
+        }
+        return doses;
+    }
+
+    // the count after every ledger entry up to entryId
+    public static class Snapshot {
+        private final long entryId;
+        private final int doses;
+        private final Timestamp time;
+
+        public Snapshot(long entryId, int doses, Timestamp time) {
+            this.entryId = entryId;
+            this.doses = doses;
+            this.time = time;
+        }
+
+        // Getters
+        public long getEntryId() {
+            return entryId;
+        }
+
+        public int getDoses() {
+            return doses;
+        }
+
+        public Timestamp getTime() {
+            return time;
+        }
+    }
+
+    // one ledger entry: doses added (positive delta) or taken, and why
+    public static class Change {
+        private final long entryId;
+        private final int delta;
+        private final String reason;
+        private final Timestamp time;
+
+        public Change(long entryId, int delta, String reason, Timestamp time) {
+            this.entryId = entryId;
+            this.delta = delta;
+            this.reason = reason;
+            this.time = time;
+        }
+
+        // Getters
+        public long getEntryId() {
+            return entryId;
+        }
+
+        public int getDelta() {
+            return delta;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public Timestamp getTime() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package scheduler.model;
+
+import scheduler.db.Repositories;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The append-only record of every change to the vaccines' doses. The repository appends an entry
+ * (the delta and why) in the same transaction as each relative update of Vaccines, so the Doses
+ * column is the materialized sum of the ledger and VaccineInventoryCache applies the same deltas.
+ *
+ * To keep the ledger short, it is compacted on a fixed interval (DoseSnapshotSeconds, default
+ * 3600, 0 turns it off): each vaccine with new entries gets a snapshot of its count and the
+ * entries the snapshot covers are deleted. A history is then the snapshots plus the few entries
+ * after the last one, not a scan of every change ever made.
+ */
+public class DoseLedger {
+
+    // the reasons recorded with an entry
+    public static final String ADDED = "add";
+    public static final String REMOVED = "remove";
+    public static final String RESERVED = "reserve";
+    public static final String CANCELLED = "cancel";
+
+    private static final long DEFAULT_SNAPSHOT_SECONDS = 3600;
+
+    private static DoseLedger instance = null;
+
+    private final ScheduledExecutorService compactor;
+
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong compactedEntries = new AtomicLong();
+
+    private DoseLedger(long snapshotSeconds) {
+        if (snapshotSeconds > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "dose-ledger-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (SQLException e) {
+                    // the entries stay in the ledger, the next run will try again
+                    e.printStackTrace();
+                }
+            }, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+        } else {
+            compactor = null;
+        }
+    }
+
+    public static synchronized DoseLedger getInstance() {
+        if (instance == null) {
+            instance = new DoseLedger(snapshotSeconds());
+        }
+        return instance;
+    }
+
+    // 0 or less turns compaction off
+    private static long snapshotSeconds() {
+        String value = System.getenv("DoseSnapshotSeconds");
+        if (value == null) {
+            return DEFAULT_SNAPSHOT_SECONDS;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid DoseSnapshotSeconds: " + value);
+            return DEFAULT_SNAPSHOT_SECONDS;
+        }
+    }
+
+    /**
+     * Returns the vaccine's last snapshots, at most the given number, and the entries since, or
+     * null if the ledger has nothing on it.
+     */
+    public DoseHistory history(String vaccineName, int snapshots) throws SQLException {
+        return Repositories.get().findDoseHistory(vaccineName, snapshots);
+    }
+
+    /**
+     * Snapshots every vaccine with new entries and deletes the entries covered. Returns how many
+     * were deleted.
+     */
+    public int compact() throws SQLException {
+        int compacted = Repositories.get().compactDoseLedger();
+        compactions.incrementAndGet();
+        compactedEntries.addAndGet(compacted);
+        return compacted;
+    }
+
+    public void shutdown() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+    }
+
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    public long getCompactedEntries() {
+        return compactedEntries.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DoseLedger{" +
+                "compactions=" + compactions.get() +
+                ", compactedEntries=" + compactedEntries.get() +
+                '}';
+    }
+}
@@ -1,26 +1,38 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
-import scheduler.util.Util;
-
-import java.sql.*;
+import scheduler.db.Repositories;
+import scheduler.db.SchedulerRepository;
+import scheduler.journal.Intent;
+import scheduler.journal.OfflineQueue;
+import scheduler.util.PasswordHasher;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class Patient {
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
+    private final PasswordHasher.Params hashParams;
 
     private Patient(Patient.PatientBuilder builder) {
         this.username = builder.username;
         this.salt = builder.salt;
         this.hash = builder.hash;
+        this.hashParams = builder.hashParams;
     }
 
     private Patient(Patient.PatientGetter getter) {
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
+        this.hashParams = getter.hashParams;
     }
 
 
@@ -37,33 +49,56 @@ public class Patient {
         return hash;
     }
 
+    public PasswordHasher.Params getHashParams() {
+        return hashParams;
+    }
+
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addPatient = "INSERT INTO Patients VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addPatient);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        saveAllToDB(Collections.singletonList(this));
+    }
+
+    /**
+     * Inserts many patients in one transaction with batched statements. If the database cannot be
+     * reached they are queued instead, see OfflineQueue.
+     */
+    public static void saveAllToDB(List<Patient> patients) throws SQLException {
+        OfflineQueue.getInstance().run(Intent.createPatients(patients), () -> {
+            Repositories.get().savePatients(patients);
+            return null;
+        });
+        List<String> usernames = new ArrayList<>();
+        for (Patient saved : patients) {
+            usernames.add(saved.getUsername());
         }
+        UsernameIndex.patients().added(usernames);
+    }
+
+    /**
+     * Returns which of the given usernames are already taken, as stored in the table. Usernames
+     * compare case-insensitively in the database, so callers should too. Only the names the
+     * UsernameIndex cannot rule out are looked up, if none are there is no query at all.
+     */
+    public static Set<String> existingUsernames(Collection<String> usernames) throws SQLException {
+        List<String> candidates = UsernameIndex.patients().mightBeTaken(usernames);
+        return candidates.isEmpty() ? new HashSet<>() : Repositories.get().existingPatients(candidates);
     }
 
     public static class PatientBuilder {
         private final String username;
         private final byte[] salt;
         private final byte[] hash;
+        private final PasswordHasher.Params hashParams;
 
+        // for a hash made with the configured parameters, e.g. by Util.generateHash
         public PatientBuilder(String username, byte[] salt, byte[] hash) {
+            this(username, salt, hash, PasswordHasher.getInstance().getParams());
+        }
+
+        public PatientBuilder(String username, byte[] salt, byte[] hash, PasswordHasher.Params hashParams) {
             this.username = username;
             this.salt = salt;
             this.hash = hash;
+            this.hashParams = hashParams;
         }
 
         public Patient build() {
@@ -76,6 +111,7 @@ public class Patient {
         private final String password;
         private byte[] salt;
         private byte[] hash;
+        private PasswordHasher.Params hashParams;
 
         public PatientGetter(String username, String password) {
             this.username = username;
@@ -83,34 +119,44 @@ public class Patient {
         }
 
         public Patient get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            SchedulerRepository repository = Repositories.get();
+            Patient stored = repository.findPatient(this.username);
+            if (stored == null) {
+                return null;
+            }
+            byte[] salt = stored.getSalt();
+            byte[] hash = stored.getHash();
+            PasswordHasher.Params params = stored.getHashParams();
+            // check if the password matches, verify() ignores the padding of older fixed-width hashes
+            if (!PasswordHasher.verify(password, salt, hash, params)) {
+                return null;
+            }
+            PasswordHasher hasher = PasswordHasher.getInstance();
+            if (hasher.needsRehash(params)) {
+                // the configured strength changed since this hash was made, and this is
+                // the only time we know the password to upgrade it
+                byte[] newSalt = hasher.generateSalt();
+                byte[] newHash = hasher.hash(password, newSalt);
+                if (rehash(repository, newSalt, newHash, hasher.getParams())) {
+                    salt = newSalt;
+                    hash = newHash;
+                    params = hasher.getParams();
+                }
+            }
+            this.salt = salt;
+            this.hash = Arrays.copyOf(hash, params.getKeyLength() / 8);
+            this.hashParams = params;
+            return new Patient(this);
+        }
 
-            String getPatient = "SELECT Salt, Hash FROM Patients WHERE pUsername = ?";
+        private boolean rehash(SchedulerRepository repository, byte[] newSalt, byte[] newHash,
+                               PasswordHasher.Params params) {
             try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
-                statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Patient(this);
-                    }
-                }
-                return null;
+                return repository.updatePatientHash(this.username, newSalt, newHash, params);
             } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
+                // the old hash still works, try again on the next login
+                e.printStackTrace();
+                return false;
             }
         }
     }
@@ -0,0 +1,127 @@
+package scheduler.model;
+
+import scheduler.db.Repositories;
+import scheduler.db.SchedulerRepository;
+import scheduler.journal.Intent;
+import scheduler.journal.OfflineQueue;
+
+import java.sql.Date;
+import java.sql.SQLException;
+
+/**
+ * Books an appointment in one transaction: claims a caregiver's availability, takes one dose
+ * and records the appointment, so concurrent patients can neither double-book a caregiver nor
+ * lose a dose decrement. The transaction itself is SchedulerRepository.reserve; this class
+ * answers what it can from the VaccineInventoryCache first and keeps the cache in step.
+ *
+ * The AssignmentStrategy picks which free caregiver to claim. If its first few picks have all
+ * been taken in the meantime, the database picks instead.
+ */
+public class ReservationEngine {
+
+    public enum Status {
+        RESERVED,
+        NO_CAREGIVER,
+        NO_SUCH_VACCINE,
+        NO_DOSES,
+        // only from promoting a waitlist entry: it was promoted or removed by someone else
+        NOT_WAITING
+    }
+
+    // picks tried before leaving the choice to the database
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final SchedulerRepository repository;
+    private final AssignmentStrategy strategy;
+
+    public ReservationEngine() {
+        this(Repositories.get());
+    }
+
+    public ReservationEngine(SchedulerRepository repository) {
+        this(repository, AssignmentStrategy.fromEnvironment());
+    }
+
+    public ReservationEngine(SchedulerRepository repository, AssignmentStrategy strategy) {
+        this.repository = repository;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Books the patient with whichever caregiver the strategy picks. If the database cannot be
+     * reached the reservation is queued instead, see OfflineQueue.
+     */
+    public Reservation reserve(Date d, String vaccineName, String patientUsername) throws SQLException {
+        return OfflineQueue.getInstance().run(Intent.reserve(d, vaccineName, patientUsername),
+                () -> book(d, vaccineName, patientUsername));
+    }
+
+    private Reservation book(Date d, String vaccineName, String patientUsername) throws SQLException {
+        VaccineInventoryCache inventory = VaccineInventoryCache.getInstance();
+        // answer the common failures from memory before opening a transaction
+        Integer doses = inventory.getDoses(vaccineName);
+        if (doses == null) {
+            return new Reservation(Status.NO_SUCH_VACCINE, 0, null);
+        }
+        if (doses == 0 && (doses = inventory.reconcile(vaccineName)) == null) {
+            return new Reservation(Status.NO_SUCH_VACCINE, 0, null);
+        }
+        if (doses == 0) {
+            return new Reservation(Status.NO_DOSES, 0, null);
+        }
+
+        CaregiverAvailabilityIndex index = CaregiverAvailabilityIndex.getInstance();
+        Reservation reservation = null;
+        int attempts = 0;
+        for (String caregiver : strategy.order(d, index.freeOn(d), index)) {
+            if (attempts++ == MAX_ATTEMPTS) {
+                break;
+            }
+            reservation = repository.reserve(d, caregiver, vaccineName, patientUsername);
+            if (reservation.getStatus() != Status.NO_CAREGIVER) {
+                break;
+            }
+            // someone else booked them first, possibly from another process
+            index.lost(d, caregiver);
+        }
+        if (reservation == null || reservation.getStatus() == Status.NO_CAREGIVER) {
+            reservation = repository.reserve(d, vaccineName, patientUsername);
+        }
+        if (reservation.getStatus() == Status.RESERVED) {
+            index.claimed(d, reservation.getCaregiverUsername());
+            inventory.applyCommitted(vaccineName, -1);
+        } else if (reservation.getStatus() == Status.NO_DOSES) {
+            // the cache promised a dose the table did not have
+            inventory.conflict(vaccineName);
+            if (inventory.getDoses(vaccineName) == null) {
+                return new Reservation(Status.NO_SUCH_VACCINE, 0, null);
+            }
+        }
+        return reservation;
+    }
+
+    public static class Reservation {
+        private final Status status;
+        private final int appointmentId;
+        private final String caregiverUsername;
+
+        public Reservation(Status status, int appointmentId, String caregiverUsername) {
+            this.status = status;
+            this.appointmentId = appointmentId;
+            this.caregiverUsername = caregiverUsername;
+        }
+
+        // Getters
+        public Status getStatus() {
+            return status;
+        }
+
+        public int getAppointmentId() {
+            return appointmentId;
+        }
+
+        public String getCaregiverUsername() {
+            return caregiverUsername;
+        }
+    }
+}
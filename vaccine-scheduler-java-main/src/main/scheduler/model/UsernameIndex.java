@@ -0,0 +1,155 @@
+package scheduler.model;
+
+import scheduler.db.Repositories;
+import scheduler.db.SchedulerRepository;
+import scheduler.util.BloomFilter;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process Bloom filter of the patients' or the caregivers' usernames, so that creating a user
+ * whose name is definitely new, which is almost every name at a mass registration, needs no query
+ * to check it. Names the filter cannot rule out are still looked up, and the primary key on the
+ * insert catches the rest, such as names another process took since the filter was warmed.
+ *
+ * Each filter is warmed from its table on a background thread by warmUp(), started at launch.
+ * Until then, or if warming failed, every name is looked up as before. It is sized for
+ * UsernameIndexCapacity names (1000000 by default) at a 1% false positive rate; beyond that it
+ * only rules out fewer names.
+ */
+public class UsernameIndex {
+
+    private static final long DEFAULT_CAPACITY = 1_000_000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    // a failed warm-up is tried again on use after this long
+    private static final long RETRY_MILLIS = 30_000;
+
+    private static UsernameIndex patients = null;
+    private static UsernameIndex caregivers = null;
+
+    private final SchedulerRepository repository;
+    private final boolean forCaregivers;
+    // made up front so names added while it is warmed are not lost
+    private final BloomFilter filter;
+    private volatile boolean warm = false;
+    private volatile boolean warming = false;
+    private volatile long failedAt = 0;
+
+    private final AtomicLong ruledOut = new AtomicLong();
+    private final AtomicLong lookedUp = new AtomicLong();
+
+    private UsernameIndex(SchedulerRepository repository, boolean forCaregivers, long capacity) {
+        this.repository = repository;
+        this.forCaregivers = forCaregivers;
+        this.filter = new BloomFilter(capacity, FALSE_POSITIVE_RATE);
+    }
+
+    public static synchronized UsernameIndex patients() {
+        SchedulerRepository repository = Repositories.get();
+        // start over when the store is swapped, e.g. between benchmark runs
+        if (patients == null || patients.repository != repository) {
+            patients = new UsernameIndex(repository, false, capacity());
+        }
+        return patients;
+    }
+
+    public static synchronized UsernameIndex caregivers() {
+        SchedulerRepository repository = Repositories.get();
+        if (caregivers == null || caregivers.repository != repository) {
+            caregivers = new UsernameIndex(repository, true, capacity());
+        }
+        return caregivers;
+    }
+
+    // starts warming both filters, without waiting for them
+    public static void warmUp() {
+        patients().warmInBackground();
+        caregivers().warmInBackground();
+    }
+
+    private static long capacity() {
+        String value = System.getenv("UsernameIndexCapacity");
+        if (value == null) {
+            return DEFAULT_CAPACITY;
+        }
+        try {
+            return Math.max(1, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid UsernameIndexCapacity: " + value);
+            return DEFAULT_CAPACITY;
+        }
+    }
+
+    /**
+     * Returns those of the usernames that may be taken and have to be looked up; the others are
+     * definitely free.
+     */
+    public List<String> mightBeTaken(Collection<String> usernames) {
+        if (!warm) {
+            if (!warming && System.currentTimeMillis() - failedAt >= RETRY_MILLIS) {
+                warmInBackground();
+            }
+            lookedUp.addAndGet(usernames.size());
+            return new ArrayList<>(usernames);
+        }
+        List<String> candidates = new ArrayList<>();
+        for (String username : usernames) {
+            if (filter.mightContain(key(username))) {
+                candidates.add(username);
+            }
+        }
+        lookedUp.addAndGet(candidates.size());
+        ruledOut.addAndGet(usernames.size() - candidates.size());
+        return candidates;
+    }
+
+    // the users were saved
+    public void added(Collection<String> usernames) {
+        for (String username : usernames) {
+            filter.add(key(username));
+        }
+    }
+
+    private synchronized void warmInBackground() {
+        if (warm || warming) {
+            return;
+        }
+        warming = true;
+        Thread thread = new Thread(this::warm, forCaregivers ? "caregiver-username-index" : "patient-username-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void warm() {
+        try {
+            List<String> usernames =
+                    forCaregivers ? repository.findCaregiverUsernames() : repository.findPatientUsernames();
+            added(usernames);
+            warm = true;
+        } catch (SQLException | RuntimeException e) {
+            // names keep being looked up, mightBeTaken() tries again later
+            failedAt = System.currentTimeMillis();
+            System.err.println("Could not load the " + (forCaregivers ? "caregiver" : "patient")
+                    + " usernames, every new one is looked up: " + e);
+        } finally {
+            warming = false;
+        }
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "UsernameIndex{%s, warm=%b, names=%d, falsePositiveRate=%.4f, ruledOut=%d, lookedUp=%d}",
+                forCaregivers ? "caregivers" : "patients", warm, filter.getAdded(), filter.getFalsePositiveRate(),
+                ruledOut.get(), lookedUp.get());
+    }
+}
@@ -0,0 +1,378 @@
+package scheduler.model;
+
+import scheduler.db.Repositories;
+import scheduler.journal.Intent;
+import scheduler.journal.OfflineQueue;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-through, in-process copy of the Vaccines table, read and written through the
+ * SchedulerRepository.
+ *
+ * Dose lookups are served from memory. Every change is written to the database with a relative
+ * UPDATE (never an absolute value computed here), so the table stays correct even when several
+ * processes share it; this cache only has to be refreshed to see their changes. That happens on a
+ * fixed interval (VaccineCacheReconcileSeconds, default 60) and whenever the database rejects a
+ * change the cache thought was possible.
+ *
+ * A reload must not undo doses this process has taken but not yet written: those stay taken, and
+ * may briefly be taken twice if the table already had them, which errs towards turning down a
+ * reservation the next reload will allow. Drift, the difference a reload finds, is only counted
+ * when the cached count did not change during the read, so it measures changes made outside
+ * this cache rather than races with its own.
+ */
+public class VaccineInventoryCache {
+
+    private static final long DEFAULT_RECONCILE_SECONDS = 60;
+
+    private static VaccineInventoryCache instance = null;
+
+    // keyed by lower-cased vaccine name, the database compares names case-insensitively
+    private final ConcurrentHashMap<String, Entry> doses = new ConcurrentHashMap<>();
+    // the spelling each vaccine is shown with, as stored or as first used
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reconciler;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong reconciliations = new AtomicLong();
+    private final AtomicLong driftedEntries = new AtomicLong();
+    private final AtomicLong totalDrift = new AtomicLong();
+
+    private VaccineInventoryCache(long reconcileSeconds) {
+        if (reconcileSeconds > 0) {
+            reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "vaccine-cache-reconciler");
+                t.setDaemon(true);
+                return t;
+            });
+            reconciler.scheduleWithFixedDelay(() -> {
+                try {
+                    reconcile();
+                } catch (SQLException e) {
+                    // keep serving the cached values, the next run will try again
+                    e.printStackTrace();
+                }
+            }, reconcileSeconds, reconcileSeconds, TimeUnit.SECONDS);
+        } else {
+            reconciler = null;
+        }
+    }
+
+    public static synchronized VaccineInventoryCache getInstance() {
+        if (instance == null) {
+            instance = new VaccineInventoryCache(reconcileSeconds());
+            try {
+                instance.reconcile();
+            } catch (SQLException e) {
+                // entries are loaded one by one on first use instead
+                e.printStackTrace();
+            }
+        }
+        return instance;
+    }
+
+    // 0 or less turns the periodic reconciliation off
+    private static long reconcileSeconds() {
+        String value = System.getenv("VaccineCacheReconcileSeconds");
+        if (value == null) {
+            return DEFAULT_RECONCILE_SECONDS;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid VaccineCacheReconcileSeconds: " + value);
+            return DEFAULT_RECONCILE_SECONDS;
+        }
+    }
+
+    // the cache if anything has used it yet, without loading it, e.g. for stats and metrics
+    public static synchronized VaccineInventoryCache instanceIfCreated() {
+        return instance;
+    }
+
+    /**
+     * Returns the number of available doses, or null if there is no such vaccine.
+     */
+    public Integer getDoses(String vaccineName) throws SQLException {
+        Entry cached = doses.get(key(vaccineName));
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached.doses.get();
+        }
+        misses.incrementAndGet();
+        return reconcile(vaccineName);
+    }
+
+    /**
+     * Returns every known vaccine and its doses, ordered by name.
+     */
+    public Map<String, Integer> snapshot() {
+        Map<String, Integer> result = new TreeMap<>();
+        doses.forEach((key, entry) -> result.put(names.getOrDefault(key, key), entry.doses.get()));
+        return result;
+    }
+
+    // records a vaccine that was just inserted into the table
+    public void put(String vaccineName, int availableDoses) {
+        names.put(key(vaccineName), vaccineName);
+        doses.put(key(vaccineName), new Entry(availableDoses));
+    }
+
+    /**
+     * Adds doses to an existing vaccine. Returns false if the vaccine is not in the table.
+     */
+    public boolean increase(String vaccineName, int num) throws SQLException {
+        if (!Repositories.get().increaseDoses(vaccineName, num)) {
+            forget(vaccineName);
+            return false;
+        }
+        applyCommitted(vaccineName, num);
+        return true;
+    }
+
+    /**
+     * Adds doses to many vaccines in one transaction, creating the ones that do not exist yet and
+     * offering the doses to the waitlist. If the database cannot be reached the doses are queued
+     * instead, see OfflineQueue.
+     */
+    public void addDoses(Map<String, Integer> deltas, Waitlist.Offer offer) throws SQLException {
+        Set<String> created = OfflineQueue.getInstance().run(Intent.addDoses(deltas),
+                () -> Repositories.get().addDoses(deltas, offer));
+        deltas.forEach((vaccineName, delta) -> {
+            if (created.contains(vaccineName)) {
+                put(vaccineName, delta);
+            } else {
+                // a vaccine this cache has not seen yet is loaded on its next lookup
+                applyCommitted(vaccineName, delta);
+            }
+        });
+    }
+
+    /**
+     * Takes doses from a vaccine, failing without touching the table when the cache already knows
+     * there are not enough. Returns false if there were not enough doses or no such vaccine.
+     */
+    public boolean decrease(String vaccineName, int num) throws SQLException {
+        Entry cached = doses.get(key(vaccineName));
+        if (cached == null) {
+            misses.incrementAndGet();
+            if (reconcile(vaccineName) == null || (cached = doses.get(key(vaccineName))) == null) {
+                return false;
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        if (!cached.take(num)) {
+            // the table may have been refilled by another process
+            if (reconcile(vaccineName) == null || !cached.take(num)) {
+                return false;
+            }
+        }
+
+        boolean taken = false;
+        try {
+            taken = Repositories.get().decreaseDoses(vaccineName, num);
+        } finally {
+            cached.settle(num, taken);
+        }
+        if (!taken) {
+            conflict(vaccineName);
+        }
+        return taken;
+    }
+
+    /**
+     * Adjusts the cached count after a caller has committed a relative change to the table itself,
+     * e.g. as part of a larger transaction.
+     */
+    public void applyCommitted(String vaccineName, int delta) {
+        Entry cached = doses.get(key(vaccineName));
+        if (cached != null) {
+            cached.apply(delta);
+        }
+    }
+
+    // called when the table rejected a change the cache expected to succeed
+    public void conflict(String vaccineName) throws SQLException {
+        conflicts.incrementAndGet();
+        reconcile(vaccineName);
+    }
+
+    /**
+     * Reloads one vaccine from the table and returns its doses, or null if it does not exist.
+     */
+    public Integer reconcile(String vaccineName) throws SQLException {
+        Entry cached = doses.get(key(vaccineName));
+        long mark = cached == null ? Entry.BUSY : cached.quietMark();
+        Integer actual = Repositories.get().findDoses(vaccineName);
+        if (actual == null) {
+            forget(vaccineName);
+            return null;
+        }
+        names.putIfAbsent(key(vaccineName), vaccineName);
+        record(vaccineName, actual, mark);
+        return actual;
+    }
+
+    /**
+     * Reloads every vaccine from the table.
+     */
+    public void reconcile() throws SQLException {
+        Map<String, Long> marks = new HashMap<>();
+        doses.forEach((key, entry) -> marks.put(key, entry.quietMark()));
+        Map<String, Integer> actual = Repositories.get().findVaccines();
+        Map<String, String> stored = new TreeMap<>();
+        actual.keySet().forEach(name -> stored.put(key(name), name));
+        doses.keySet().retainAll(stored.keySet());
+        names.keySet().retainAll(stored.keySet());
+        // the table's spelling wins over whatever a command used
+        names.putAll(stored);
+        actual.forEach((name, count) -> record(name, count, marks.getOrDefault(key(name), Entry.BUSY)));
+        reconciliations.incrementAndGet();
+    }
+
+    // mark is the entry's quietMark() from before the table was read
+    private void record(String vaccineName, int actual, long mark) {
+        Entry cached = doses.putIfAbsent(key(vaccineName), new Entry(actual));
+        if (cached == null) {
+            return;
+        }
+        int previous;
+        int updated;
+        do {
+            previous = cached.doses.get();
+            if (mark != Entry.BUSY && cached.activity.get() == mark) {
+                updated = actual;
+            } else {
+                // takes not settled yet may or may not be in the table, keep them taken
+                mark = Entry.BUSY;
+                updated = actual - cached.inFlight.get();
+            }
+        } while (!cached.doses.compareAndSet(previous, updated));
+        if (mark != Entry.BUSY && previous != actual) {
+            driftedEntries.incrementAndGet();
+            totalDrift.addAndGet(Math.abs(previous - actual));
+        }
+    }
+
+    private void forget(String vaccineName) {
+        doses.remove(key(vaccineName));
+        names.remove(key(vaccineName));
+    }
+
+    // like Waitlist, so "pfizer" and "Pfizer" share one counter
+    private static String key(String vaccineName) {
+        return vaccineName.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * One vaccine's cached doses and the doses taken from them that are still being written.
+     * take() and settle() change inFlight before activity, and quietMark() reads them the other
+     * way round, so a take overlapping a reload always shows up as changed activity. apply() bumps
+     * activity before the doses for the same reason.
+     */
+    private static final class Entry {
+        private static final long BUSY = -1;
+
+        private final AtomicInteger doses;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // bumped by every change
+        private final AtomicLong activity = new AtomicLong();
+
+        private Entry(int doses) {
+            this.doses = new AtomicInteger(doses);
+        }
+
+        private boolean take(int num) {
+            inFlight.addAndGet(num);
+            activity.incrementAndGet();
+            int current;
+            do {
+                current = doses.get();
+                if (current < num) {
+                    inFlight.addAndGet(-num);
+                    activity.incrementAndGet();
+                    return false;
+                }
+            } while (!doses.compareAndSet(current, current - num));
+            return true;
+        }
+
+        private void apply(int delta) {
+            activity.incrementAndGet();
+            doses.addAndGet(delta);
+        }
+
+        // the table has answered, give the doses back unless it took them
+        private void settle(int num, boolean taken) {
+            if (!taken) {
+                doses.addAndGet(num);
+            }
+            inFlight.addAndGet(-num);
+            activity.incrementAndGet();
+        }
+
+        // the activity count if nothing is being taken right now, BUSY otherwise
+        private long quietMark() {
+            long mark = activity.get();
+            return inFlight.get() == 0 ? mark : BUSY;
+        }
+    }
+
+    public void shutdown() {
+        if (reconciler != null) {
+            reconciler.shutdownNow();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    public long getReconciliations() {
+        return reconciliations.get();
+    }
+
+    public long getDriftedEntries() {
+        return driftedEntries.get();
+    }
+
+    public long getTotalDrift() {
+        return totalDrift.get();
+    }
+
+    @Override
+    public String toString() {
+        return "VaccineInventoryCache{" +
+                "vaccines=" + doses.size() +
+                ", hits=" + hits.get() +
+                ", misses=" + misses.get() +
+                ", conflicts=" + conflicts.get() +
+                ", reconciliations=" + reconciliations.get() +
+                ", driftedEntries=" + driftedEntries.get() +
+                ", totalDrift=" + totalDrift.get() +
+                '}';
+    }
+}
@@ -0,0 +1,211 @@
+package scheduler.model;
+
+import scheduler.db.Repositories;
+import scheduler.db.SchedulerRepository;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Patients waiting for a date and vaccine that had no caregiver or no dose left, so they are
+ * booked as soon as capacity frees up instead of retrying reserve in a loop.
+ *
+ * The Waitlist table is the record; this class keeps a first-in first-out queue per date and
+ * vaccine in memory, loaded on first use, so the commands that add capacity (cancel, add_doses,
+ * upload_availability) can tell without a query whether anyone is waiting. They pass an Offer to
+ * the repository, which books the waiting patients in the transaction that frees the capacity,
+ * so a crash cannot leave it free with someone still waiting for it. Entries added by other
+ * processes are only seen after a restart.
+ */
+public class Waitlist {
+
+    private static Waitlist instance = null;
+
+    private final SchedulerRepository repository;
+    // date, then lower-cased vaccine name
+    private final Map<Date, Map<String, Queue<WaitlistEntry>>> queues = new ConcurrentHashMap<>();
+
+    public Waitlist(SchedulerRepository repository) {
+        this.repository = repository;
+    }
+
+    public static synchronized Waitlist getInstance() {
+        SchedulerRepository repository = Repositories.get();
+        // start over when the store is swapped, e.g. between benchmark runs
+        if (instance == null || instance.repository != repository) {
+            instance = new Waitlist(repository);
+            try {
+                for (WaitlistEntry entry : repository.findWaitlist()) {
+                    instance.queue(entry.getTime(), entry.getVaccineName()).add(entry);
+                }
+            } catch (SQLException e) {
+                // only entries added from now on will be promoted by this process
+                e.printStackTrace();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Puts the patient at the back of the queue for the date and vaccine and returns their
+     * position, 1 being next. Fails if they are already waiting for it.
+     */
+    public int add(Date d, String vaccineName, String patientUsername) throws SQLException {
+        WaitlistEntry entry = repository.addToWaitlist(d, vaccineName, patientUsername);
+        Queue<WaitlistEntry> queue = queue(d, vaccineName);
+        queue.add(entry);
+        int position = 0;
+        for (WaitlistEntry waiting : queue) {
+            position++;
+            if (waiting == entry) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * A new Offer for one change that frees or adds capacity. Pass it to the repository (or model)
+     * method making the change, then call committed() once that returned.
+     */
+    public Offer offer() {
+        return new Offer();
+    }
+
+    // books whoever already fits on these dates, e.g. after joining, in a transaction per entry
+    public List<Promotion> promoteDates(Collection<Date> dates) throws SQLException {
+        List<Promotion> promoted = new ArrayList<>();
+        for (Date d : dates) {
+            Map<String, Queue<WaitlistEntry>> byVaccine = queues.get(d);
+            if (byVaccine != null) {
+                for (Queue<WaitlistEntry> queue : byVaccine.values()) {
+                    promote(queue, promoted);
+                }
+            }
+        }
+        return promoted;
+    }
+
+    // books the queue from the front until the capacity runs out
+    private void promote(Queue<WaitlistEntry> queue, List<Promotion> promoted) throws SQLException {
+        WaitlistEntry entry;
+        while ((entry = queue.peek()) != null) {
+            ReservationEngine.Reservation reservation = repository.promote(entry);
+            if (reservation.getStatus() == ReservationEngine.Status.NOT_WAITING) {
+                // promoted concurrently, move on to whoever is next
+                queue.remove(entry);
+                continue;
+            }
+            if (reservation.getStatus() != ReservationEngine.Status.RESERVED) {
+                return;
+            }
+            queue.remove(entry);
+            promoted.add(booked(entry, reservation));
+        }
+    }
+
+    // the caches learn of a committed booking the way reserve would tell them
+    private static Promotion booked(WaitlistEntry entry, ReservationEngine.Reservation reservation) {
+        CaregiverAvailabilityIndex.getInstance().claimed(entry.getTime(), reservation.getCaregiverUsername());
+        VaccineInventoryCache.getInstance().applyCommitted(entry.getVaccineName(), -1);
+        return new Promotion(entry, reservation);
+    }
+
+    private Queue<WaitlistEntry> queue(Date d, String vaccineName) {
+        return queues.computeIfAbsent(d, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(key(vaccineName), k -> new ConcurrentLinkedQueue<>());
+    }
+
+    // vaccine names compare case-insensitively in the database
+    private static String key(String vaccineName) {
+        return vaccineName.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The waiting entries one change offers its capacity to, and what the repository did with
+     * them, see SchedulerRepository.Waiting.
+     */
+    public final class Offer implements SchedulerRepository.Waiting {
+        private Map<WaitlistEntry, ReservationEngine.Reservation> outcomes = Collections.emptyMap();
+
+        private Offer() {
+        }
+
+        @Override
+        public List<WaitlistEntry> find(Collection<Date> dates, Collection<String> vaccineNames) {
+            Set<Date> freedDates = new HashSet<>(dates);
+            Set<String> freedVaccines = new HashSet<>();
+            for (String vaccineName : vaccineNames) {
+                freedVaccines.add(key(vaccineName));
+            }
+            List<WaitlistEntry> found = new ArrayList<>();
+            queues.forEach((d, byVaccine) -> byVaccine.forEach((vaccine, queue) -> {
+                if (freedDates.contains(d) || freedVaccines.contains(vaccine)) {
+                    found.addAll(queue);
+                }
+            }));
+            // waitlist IDs grow with every entry, across all queues
+            found.sort(Comparator.comparingInt(WaitlistEntry::getWaitlistId));
+            return found;
+        }
+
+        @Override
+        public void settled(Map<WaitlistEntry, ReservationEngine.Reservation> outcomes) {
+            this.outcomes = outcomes;
+        }
+
+        /**
+         * Call once the change is committed and the caches know about it: takes the entries it
+         * settled off the queues, tells the caches about the bookings and returns them.
+         */
+        public List<Promotion> committed() {
+            List<Promotion> promoted = new ArrayList<>();
+            outcomes.forEach((entry, reservation) -> {
+                queue(entry.getTime(), entry.getVaccineName()).remove(entry);
+                if (reservation.getStatus() == ReservationEngine.Status.RESERVED) {
+                    promoted.add(booked(entry, reservation));
+                }
+            });
+            outcomes = Collections.emptyMap();
+            return promoted;
+        }
+    }
+
+    public static class Promotion {
+        private final WaitlistEntry entry;
+        private final ReservationEngine.Reservation reservation;
+
+        private Promotion(WaitlistEntry entry, ReservationEngine.Reservation reservation) {
+            this.entry = entry;
+            this.reservation = reservation;
+        }
+
+        // Getters
+        public WaitlistEntry getEntry() {
+            return entry;
+        }
+
+        public ReservationEngine.Reservation getReservation() {
+            return reservation;
+        }
+
+        @Override
+        public String toString() {
+            return "Promoted from the waitlist: Appointment_ID: " + reservation.getAppointmentId()
+                    + " Patient username: " + entry.getPatientUsername()
+                    + " Caregiver username: " + reservation.getCaregiverUsername();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package scheduler.model;
+
+import java.sql.Date;
+
+public class WaitlistEntry {
+    private final int waitlistId;
+    private final Date time;
+    private final String vaccineName;
+    private final String patientUsername;
+
+    public WaitlistEntry(int waitlistId, Date time, String vaccineName, String patientUsername) {
+        this.waitlistId = waitlistId;
+        this.time = time;
+        this.vaccineName = vaccineName;
+        this.patientUsername = patientUsername;
+    }
+
+    // Getters
+    public int getWaitlistId() {
+        return waitlistId;
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public String getPatientUsername() {
+        return patientUsername;
+    }
+}
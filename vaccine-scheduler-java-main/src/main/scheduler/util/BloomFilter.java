@@ -0,0 +1,104 @@
+package scheduler.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of strings that can answer "definitely not added" but only "probably added": a Bloom
+ * filter sized for an expected number of strings and false positive rate. Adding more strings
+ * than expected keeps it correct, it only answers "probably" more often.
+ *
+ * Safe to use from many threads; add() never loses a concurrent add's bits.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bitCount;
+    private final int hashCount;
+    private final AtomicLong added = new AtomicLong();
+
+    public BloomFilter(long expected, double falsePositiveRate) {
+        if (expected <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid filter size: expected=" + expected
+                    + ", falsePositiveRate=" + falsePositiveRate);
+        }
+        // the optimal m = -n ln p / (ln 2)^2 bits and k = m/n ln 2 hash functions
+        long bits = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64);
+        this.words = new AtomicLongArray(wordCount);
+        this.bitCount = (long) wordCount * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expected * Math.log(2)));
+    }
+
+    public void add(String value) {
+        long hash = hash(value);
+        long h1 = hash;
+        long h2 = Long.rotateLeft(hash, 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(h1 + i * h2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long prev;
+            while (((prev = words.get(word)) & mask) == 0 && !words.compareAndSet(word, prev, prev | mask)) {
+                // another add changed the word, try again with its bits
+            }
+        }
+        added.incrementAndGet();
+    }
+
+    // false only if value was never added
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        long h1 = hash;
+        long h2 = Long.rotateLeft(hash, 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(h1 + i * h2);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The chance that mightContain() is true for a value that was never added, estimated from the
+     * number of adds so far: (1 - e^(-kn/m))^k.
+     */
+    public double getFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-hashCount * (double) added.get() / bitCount), hashCount);
+    }
+
+    // Getters
+    public long getAdded() {
+        return added.get();
+    }
+
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    // the k positions are h1 + i * h2, two hashes giving k as in Kirsch and Mitzenmacher
+    private long index(long combined) {
+        return Math.floorMod(combined, bitCount);
+    }
+
+    // FNV-1a over the UTF-8 bytes, finished with the murmur3 mixer so both halves are usable
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
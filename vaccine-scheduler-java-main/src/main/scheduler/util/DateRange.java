@@ -0,0 +1,84 @@
+package scheduler.util;
+
+import java.sql.Date;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * An inclusive range of dates, optionally restricted to some days of the week, of at most a
+ * year's worth of days.
+ */
+public class DateRange {
+    // all of a range is uploaded in one transaction, a longer one would hold Availabilities too long
+    public static final int MAX_DAYS = 366;
+
+    private final LocalDate from;
+    private final LocalDate to;
+    private final Set<DayOfWeek> weekdays;
+
+    public DateRange(LocalDate from, LocalDate to, Set<DayOfWeek> weekdays) {
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("End date is before start date!");
+        }
+        if (ChronoUnit.DAYS.between(from, to) >= MAX_DAYS) {
+            throw new IllegalArgumentException("A range spans at most " + MAX_DAYS + " days!");
+        }
+        this.from = from;
+        this.to = to;
+        this.weekdays = weekdays.isEmpty() ? EnumSet.allOf(DayOfWeek.class) : EnumSet.copyOf(weekdays);
+    }
+
+    public DateRange(LocalDate from, LocalDate to) {
+        this(from, to, EnumSet.allOf(DayOfWeek.class));
+    }
+
+    // Getters
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    public LocalDate getTo() {
+        return to;
+    }
+
+    public List<Date> dates() {
+        List<Date> dates = new ArrayList<>();
+        for (LocalDate d = from; !d.isAfter(to); d = d.plusDays(1)) {
+            if (weekdays.contains(d.getDayOfWeek())) {
+                dates.add(Date.valueOf(d));
+            }
+        }
+        return dates;
+    }
+
+    /**
+     * Parses a comma separated list of days such as "mon,wed,fri". Full names are accepted too.
+     */
+    public static Set<DayOfWeek> parseWeekdays(String list) {
+        Set<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+        for (String day : list.split(",")) {
+            String name = day.trim().toUpperCase(Locale.ROOT);
+            if (name.isEmpty()) {
+                continue;
+            }
+            DayOfWeek match = null;
+            for (DayOfWeek candidate : DayOfWeek.values()) {
+                if (name.length() >= 3 && candidate.name().startsWith(name)) {
+                    match = candidate;
+                    break;
+                }
+            }
+            if (match == null) {
+                throw new IllegalArgumentException("Unknown day of week: " + day);
+            }
+            days.add(match);
+        }
+        return days;
+    }
+}
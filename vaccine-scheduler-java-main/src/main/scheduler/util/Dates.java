@@ -0,0 +1,112 @@
+package scheduler.util;
+
+import java.sql.Date;
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parses the dates users type into commands: yyyy-MM-dd, "today", or a number of days or weeks
+ * from today such as +7d, -1d or +2w. Days that do not exist, such as 2024-02-30, are rejected.
+ *
+ * Scripts and benchmarks repeat the same few dates, so the last few hundred absolute dates parsed
+ * are kept and looked up before parsing again. Relative dates are not cached since they change at
+ * midnight. Everything here is thread-safe.
+ */
+public final class Dates {
+
+    // ISO_LOCAL_DATE resolves strictly, so 2024-02-30 fails instead of becoming 2024-03-01
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ISO_LOCAL_DATE;
+    // far enough for any appointment, small enough that the arithmetic cannot overflow
+    private static final int MAX_OFFSET_DAYS = 36_500;
+
+    // direct-mapped by hash; a slot may be overwritten by another thread, which only costs a parse
+    private static final int CACHE_SIZE = 256;
+    private static final CachedDate[] cache = new CachedDate[CACHE_SIZE];
+
+    private Dates() {
+    }
+
+    public static LocalDate parseLocal(String text) {
+        if (text.equals("today")) {
+            return LocalDate.now();
+        }
+        char sign = text.isEmpty() ? 0 : text.charAt(0);
+        if (sign == '+' || sign == '-') {
+            return LocalDate.now().plusDays(offsetDays(text));
+        }
+        int slot = text.hashCode() & (CACHE_SIZE - 1);
+        CachedDate cached = cache[slot];
+        if (cached != null && cached.text.equals(text)) {
+            return cached.date;
+        }
+        LocalDate date;
+        try {
+            date = LocalDate.parse(text, FORMAT);
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid date: " + text, e);
+        }
+        cache[slot] = new CachedDate(text, date);
+        return date;
+    }
+
+    /**
+     * Parses the date, throwing IllegalArgumentException if it is not one. A new Date is returned
+     * each time since java.sql.Date is mutable.
+     */
+    public static Date parse(String text) {
+        return Date.valueOf(parseLocal(text));
+    }
+
+    /**
+     * Parses the arguments of upload_availability: either {@code <date>} or
+     * {@code <from> <to> [weekdays]} where weekdays is a list such as mon,wed,fri.
+     */
+    public static List<Date> parseRange(String[] args) {
+        if (args.length == 1) {
+            return Collections.singletonList(parse(args[0]));
+        }
+        if (args.length != 2 && args.length != 3) {
+            throw new IllegalArgumentException("Expected <date> or <from> <to> [weekdays]");
+        }
+        Set<DayOfWeek> weekdays = args.length == 3 ? DateRange.parseWeekdays(args[2]) : EnumSet.allOf(DayOfWeek.class);
+        return new DateRange(parseLocal(args[0]), parseLocal(args[1]), weekdays).dates();
+    }
+
+    // +7d, -1d, +2w
+    private static int offsetDays(String text) {
+        int end = text.length() - 1;
+        char unit = end > 1 ? text.charAt(end) : 0;
+        if (unit != 'd' && unit != 'w') {
+            throw new IllegalArgumentException("Invalid date: " + text);
+        }
+        int amount = 0;
+        for (int i = 1; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9' || amount > MAX_OFFSET_DAYS) {
+                throw new IllegalArgumentException("Invalid date: " + text);
+            }
+            amount = amount * 10 + (c - '0');
+        }
+        int days = unit == 'w' ? amount * 7 : amount;
+        if (days > MAX_OFFSET_DAYS) {
+            throw new IllegalArgumentException("Invalid date: " + text);
+        }
+        return text.charAt(0) == '-' ? -days : days;
+    }
+
+    private static final class CachedDate {
+        private final String text;
+        private final LocalDate date;
+
+        private CachedDate(String text, LocalDate date) {
+            this.text = text;
+            this.date = date;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package scheduler.util;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hashes and verifies passwords with PBKDF2.
+ *
+ * The parameters a hash was made with are stored next to it (see {@link Params#encode()}), so the
+ * configured strength can be raised at any time: existing hashes still verify with the parameters
+ * they were made with, and {@link #needsRehash(Params)} tells the login path to replace them.
+ *
+ * The configured parameters come from the HashAlgorithm, HashIterations and HashKeyLength
+ * environment variables and default to the ones this application has always used.
+ */
+public class PasswordHasher {
+
+    // what every hash was made with before the parameters were stored alongside it
+    public static final Params LEGACY = new Params("PBKDF2WithHmacSHA1", 10, 16);
+
+    private static final int SALT_LENGTH = 16;
+
+    // SecretKeyFactory.getInstance walks the provider list and SecureRandom seeds itself, both are
+    // too slow to repeat per login and neither is safe to share between threads
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+    private static final Map<String, ThreadLocal<SecretKeyFactory>> factories = new ConcurrentHashMap<>();
+
+    private static PasswordHasher instance = null;
+
+    private final Params params;
+
+    public PasswordHasher(Params params) {
+        // fail on startup rather than on the first login
+        factory(params.algorithm);
+        this.params = params;
+    }
+
+    public static synchronized PasswordHasher getInstance() {
+        if (instance == null) {
+            String algorithm = System.getenv("HashAlgorithm");
+            instance = new PasswordHasher(new Params(algorithm == null ? LEGACY.algorithm : algorithm,
+                    envInt("HashIterations", LEGACY.iterations), envInt("HashKeyLength", LEGACY.keyLength)));
+        }
+        return instance;
+    }
+
+    private static int envInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public Params getParams() {
+        return params;
+    }
+
+    public byte[] generateSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.get().nextBytes(salt);
+        return salt;
+    }
+
+    // hashes with the configured parameters
+    public byte[] hash(String password, byte[] salt) {
+        return hash(password, salt, params);
+    }
+
+    public static byte[] hash(String password, byte[] salt, Params params) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, params.iterations, params.keyLength);
+        try {
+            return factory(params.algorithm).generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Checks a password against a stored hash in time that does not depend on where the two differ.
+     * The stored hash may carry trailing padding from a fixed-width column.
+     */
+    public static boolean verify(String password, byte[] salt, byte[] storedHash, Params params) {
+        byte[] expected = hash(password, salt, params);
+        if (storedHash == null || storedHash.length < expected.length) {
+            return false;
+        }
+        return MessageDigest.isEqual(expected, Arrays.copyOf(storedHash, expected.length));
+    }
+
+    public boolean needsRehash(Params stored) {
+        return !params.equals(stored);
+    }
+
+    private static SecretKeyFactory factory(String algorithm) {
+        return factories.computeIfAbsent(algorithm, name -> ThreadLocal.withInitial(() -> {
+            try {
+                return SecretKeyFactory.getInstance(name);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        })).get();
+    }
+
+    /**
+     * The algorithm, iteration count and key length (in bits) a hash was made with.
+     */
+    public static class Params {
+        // the Hash columns are VARBINARY(64)
+        private static final int MAX_KEY_LENGTH = 512;
+
+        private final String algorithm;
+        private final int iterations;
+        private final int keyLength;
+
+        public Params(String algorithm, int iterations, int keyLength) {
+            if (iterations < 1 || keyLength < 8 || keyLength > MAX_KEY_LENGTH || keyLength % 8 != 0) {
+                throw new IllegalArgumentException("Invalid hash parameters: " + iterations + " iterations, "
+                        + keyLength + " bit key");
+            }
+            this.algorithm = algorithm;
+            this.iterations = iterations;
+            this.keyLength = keyLength;
+        }
+
+        // Getters
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public int getKeyLength() {
+            return keyLength;
+        }
+
+        // the form stored in the HashParams column
+        public String encode() {
+            return algorithm + ":" + iterations + ":" + keyLength;
+        }
+
+        // rows written before HashParams existed have no value and used the legacy parameters
+        public static Params decode(String encoded) {
+            if (encoded == null) {
+                return LEGACY;
+            }
+            String[] parts = encoded.trim().split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid hash parameters: " + encoded);
+            }
+            return new Params(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Params)) {
+                return false;
+            }
+            Params other = (Params) o;
+            return iterations == other.iterations && keyLength == other.keyLength
+                    && algorithm.equals(other.algorithm);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(algorithm, iterations, keyLength);
+        }
+
+        @Override
+        public String toString() {
+            return encode();
+        }
+    }
+}